@@ -0,0 +1,102 @@
+package com.cloudfordev.itil;
+
+/**
+ * AvailabilityMetrics holds the outage totals for one ConfigurationItem, or for a group of them,
+ * over a reporting period, and derives mean time to repair, mean time between failures and
+ * availability from them.<br>
+ * <br>
+ * An outage is a span of time during which at least one Incident was open.  Overlapping
+ * Incidents are merged into one outage before they are counted.
+ *
+ * @author u1001
+ * @version 1.0
+ */
+public class AvailabilityMetrics {
+
+	private long outages = 0;
+	private long downtime = 0;
+	private long period = 0;
+	private int items = 0;
+
+	/**
+	 * Create empty AvailabilityMetrics.
+	 *
+	 * @param period The length of the reporting period in milliseconds
+	 * @param items The number of ConfigurationItems covered
+	 */
+	public AvailabilityMetrics(long period, int items) {
+		this.period = period;
+		this.items = items;
+	}
+
+	/**
+	 * Record one outage.
+	 *
+	 * @param length The length of the outage in milliseconds
+	 */
+	void addOutage(long length) {
+		outages++;
+		downtime += length;
+	}
+
+	/**
+	 * Add the totals of other AvailabilityMetrics into these.
+	 *
+	 * @param other The AvailabilityMetrics to add
+	 */
+	void add(AvailabilityMetrics other) {
+		outages += other.outages;
+		downtime += other.downtime;
+	}
+
+	/**
+	 * @return The number of outages
+	 */
+	public long getOutages() {
+		return outages;
+	}
+
+	/**
+	 * @return The total time in outage, in milliseconds
+	 */
+	public long getDowntime() {
+		return downtime;
+	}
+
+	/**
+	 * @return The total time covered, in milliseconds: the period times the number of ConfigurationItems
+	 */
+	public long getTotalTime() {
+		return period * items;
+	}
+
+	/**
+	 * @return The number of ConfigurationItems covered
+	 */
+	public int getItems() {
+		return items;
+	}
+
+	/**
+	 * @return The mean time to repair in milliseconds, or 0 if there were no outages
+	 */
+	public long getMTTR() {
+		return outages == 0 ? 0 : downtime / outages;
+	}
+
+	/**
+	 * @return The mean time between failures in milliseconds, or the total time if there were no outages
+	 */
+	public long getMTBF() {
+		long uptime = getTotalTime() - downtime;
+		return outages == 0 ? uptime : uptime / outages;
+	}
+
+	/**
+	 * @return The percentage of the total time not in outage
+	 */
+	public double getAvailability() {
+		long total = getTotalTime();
+		return total <= 0 ? 100.0 : 100.0 * (total - downtime) / total;
+	}
+}
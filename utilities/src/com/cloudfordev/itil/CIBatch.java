@@ -0,0 +1,62 @@
+package com.cloudfordev.itil;
+
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+/**
+ * CIBatch is the CIResolver shared by the Incidents of one listing.  The first Incident whose
+ * ConfigurationItem is read loads the ConfigurationItems of the whole listing with one call to
+ * resolveAll, so reading every CI of a listing costs one query rather than one per Incident,
+ * and a listing whose ConfigurationItems are never read costs none.  The ConfigurationItems the
+ * batch did not find are remembered too, so they are not looked up again one Incident at a time.
+ * A failure to load the batch is not remembered: the next read tries the whole batch again.
+ *
+ * @author u1001
+ * @version 1.0
+ */
+class CIBatch implements CIResolver {
+
+	private final CIResolver resolver;
+	private final LinkedHashSet<Integer> ciIds = new LinkedHashSet<Integer>();
+	private Map<Integer, ConfigurationItem> loaded = null;
+
+	/**
+	 * Create a new, empty CIBatch.
+	 *
+	 * @param resolver The CIResolver that does the loading
+	 */
+	CIBatch(CIResolver resolver) {
+		this.resolver = resolver;
+	}
+
+	/**
+	 * Add a ConfigurationItem to the batch.
+	 *
+	 * @param ciId The CMDB record ID of the ConfigurationItem
+	 */
+	synchronized void add(Integer ciId) {
+		if (ciId != null) {
+			ciIds.add(ciId);
+		}
+	}
+
+	public synchronized ConfigurationItem resolve(int ciId) throws ITILException {
+		if (! ciIds.contains(ciId)) {
+			// Not part of the batch
+			return resolver.resolve(ciId);
+		}
+		if (loaded == null) {
+			loaded = resolver.resolveAll(ciIds);
+		}
+		ConfigurationItem ci = loaded.get(ciId);
+		if (ci == null) {
+			throw new ITILException("ConfigurationItem " + ciId + " was not found in the CMDB");
+		}
+		return ci;
+	}
+
+	public Map<Integer, ConfigurationItem> resolveAll(Collection<Integer> ids) throws ITILException {
+		return resolver.resolveAll(ids);
+	}
+}
@@ -0,0 +1,694 @@
+package com.cloudfordev.itil;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.cloudfordev.util.InputScreener;
+import com.cloudfordev.util.InputScreenerException;
+import com.cloudfordev.util.Notification;
+
+/**
+ * CIImporter bulk loads ConfigurationItem records into the CMDB from CSV or JSON lines.<br>
+ * <br>
+ * Records are parsed one at a time and written in JDBC batches, each batch in its own
+ * transaction, so memory use depends on the batch size and not the size of the input.
+ * With the PostgreSQL driver, adding reWriteBatchedInserts=true to the connection
+ * turns each batch into a handful of multi-row INSERTs.<br>
+ * <br>
+ * Recognized fields are type, supplier, cost, watts_used, shipping_cost, order_date,
+ * receipt_date, install_date, prod_date, description and depends_on.  The type is the
+ * ci_types name rather than its id.  Dates are yyyy-mm-dd.  depends_on names other CIs
+ * by description, separated by | in CSV or as an array in JSON, and is resolved in a
+ * second pass once every record has been loaded, so records may depend on CIs that
+ * appear later in the same file.<br>
+ * <br>
+ * Records that fail screening or cannot be inserted are written to the reject file
+ * as CSV with the record number, the reason and the original record text.
+ *
+ * @author u1001
+ * @version 1.0
+ */
+public class CIImporter {
+
+	private static final String INSERT_SQL = "INSERT INTO cmdb(type,supplier,cost,watts_used,shipping_cost,order_date,receipt_date,install_date,prod_date,description,generation_hash) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+	private static final String LOOKUP_SQL = "SELECT id, description FROM cmdb WHERE retire_date is null AND description = ANY(?) ORDER BY id";
+	private static final String DEPENDENCY_SQL = "UPDATE cmdb SET dependent_on = ? WHERE id = ?";
+
+	// The record field used to carry a parse failure from a RecordSource to the screening step
+	private static final String PARSE_ERROR = "\0parse_error";
+
+	private CMDB cmdb;
+	private File rejectFile;
+	private int batchSize = 1000;
+	private int progressInterval = 10000;
+	private int maxRecordSpan = 64 * 1024;
+
+	private long rowsRead = 0;
+	private long rowsLoaded = 0;
+	private long rowsRejected = 0;
+	private long dependenciesResolved = 0;
+
+	private InputScreener screener = new InputScreener();
+	private SecureRandom random = new SecureRandom();
+
+	/**
+	 * Create a new CIImporter.
+	 *
+	 * @param cmdb The CMDB to load into
+	 * @param rejectFile The file that receives records which could not be loaded.  It is overwritten.
+	 */
+	public CIImporter(CMDB cmdb, File rejectFile) {
+		this.cmdb = cmdb;
+		this.rejectFile = rejectFile;
+	}
+
+	/**
+	 * Import CSV records.  The first record must be a header naming the fields, and
+	 * unrecognized columns are ignored.
+	 *
+	 * @param reader The CSV input
+	 * @return The number of ConfigurationItem records loaded
+	 * @throws ITILException If the CMDB or the input cannot be read
+	 */
+	public long importCSV(Reader reader) throws ITILException {
+		final BufferedReader in = new BufferedReader(reader);
+		final StringBuilder raw = new StringBuilder();
+		final ArrayList<String> header = new ArrayList<String>();
+
+		try {
+			ArrayList<String> names = RecordFormat.readCSVRecord(in, raw, maxRecordSpan);
+			if (names == null) {
+				return 0;
+			}
+			for (String name : names) {
+				header.add(name.trim().toLowerCase());
+			}
+		} catch (IOException e) {
+			throw new ITILException("Could not read the CSV header", e);
+		}
+
+		return importRecords(new RecordSource() {
+			public Map<String, Object> next() throws IOException {
+				ArrayList<String> fields;
+				do {
+					try {
+						fields = RecordFormat.readCSVRecord(in, raw, maxRecordSpan);
+					} catch (RecordFormat.UnterminatedFieldException e) {
+						// Reject the line with the stray quote; the reader is back at the line after it
+						HashMap<String, Object> record = new HashMap<String, Object>();
+						record.put(PARSE_ERROR, e.getMessage());
+						return record;
+					}
+				} while (fields != null && fields.size() == 1 && fields.get(0).trim().length() == 0);
+
+				if (fields == null) {
+					return null;
+				}
+
+				HashMap<String, Object> record = new HashMap<String, Object>();
+				for (int i = 0; i < header.size() && i < fields.size(); i++) {
+					String value = fields.get(i).trim();
+					if (header.get(i).equals("depends_on")) {
+						ArrayList<String> deps = new ArrayList<String>();
+						for (String dep : value.split("\\|")) {
+							if (dep.trim().length() > 0) {
+								deps.add(dep.trim());
+							}
+						}
+						record.put("depends_on", deps);
+					} else if (value.length() > 0) {
+						record.put(header.get(i), value);
+					}
+				}
+				return record;
+			}
+
+			public String raw() {
+				return raw.toString();
+			}
+		});
+	}
+
+	/**
+	 * Import JSON lines, one flat JSON object per line.
+	 *
+	 * @param reader The JSON lines input
+	 * @return The number of ConfigurationItem records loaded
+	 * @throws ITILException If the CMDB or the input cannot be read
+	 */
+	public long importJSON(Reader reader) throws ITILException {
+		final BufferedReader in = new BufferedReader(reader);
+
+		return importRecords(new RecordSource() {
+			private String line;
+
+			public Map<String, Object> next() throws IOException {
+				do {
+					line = in.readLine();
+				} while (line != null && line.trim().length() == 0);
+
+				if (line == null) {
+					return null;
+				}
+
+				LinkedHashMap<String, Object> record;
+				try {
+					record = RecordFormat.parseJSONObject(line);
+				} catch (IllegalArgumentException e) {
+					// Hand back an unparseable marker so the line is rejected rather than aborting the import
+					record = new LinkedHashMap<String, Object>();
+					record.put(PARSE_ERROR, e.getMessage());
+				}
+				return record;
+			}
+
+			public String raw() {
+				return line;
+			}
+		});
+	}
+
+	/**
+	 * A source of parsed records.
+	 */
+	private interface RecordSource {
+		/*
+		 * The next record's fields by lower case name, or null at the end of the input
+		 */
+		Map<String, Object> next() throws IOException;
+
+		/*
+		 * The original text of the last record returned
+		 */
+		String raw();
+	}
+
+	/**
+	 * A screened record waiting in the current batch.
+	 */
+	private static class PendingRow {
+		long recordNo;
+		String raw;
+		ConfigurationItem ci;
+		ArrayList<String> dependsOn;
+	}
+
+	/**
+	 * Load every record from the source, then resolve dependencies.
+	 */
+	private long importRecords(RecordSource source) throws ITILException {
+		// The counters describe one import at a time
+		rowsRead = 0;
+		rowsLoaded = 0;
+		rowsRejected = 0;
+		dependenciesResolved = 0;
+
+		Connection conn = cmdb.openConnection();
+		Writer rejects = null;
+		Writer deps = null;
+		File depsFile = null;
+		PreparedStatement ps = null;
+
+		try {
+			conn.setAutoCommit(false);
+			HashMap<String, Integer> types = loadTypes(conn);
+
+			rejects = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(rejectFile), "UTF-8"));
+			rejects.write("record,reason,text\n");
+
+			// Dependencies are spooled to disk so that memory does not grow with the input
+			depsFile = File.createTempFile("ci-import", ".deps");
+			deps = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(depsFile), "UTF-8"));
+
+			ps = conn.prepareStatement(INSERT_SQL);
+			ArrayList<PendingRow> batch = new ArrayList<PendingRow>(batchSize);
+			Map<String, Object> record;
+
+			while ((record = source.next()) != null) {
+				rowsRead++;
+
+				PendingRow row = new PendingRow();
+				row.recordNo = rowsRead;
+				row.raw = source.raw();
+
+				try {
+					screen(record, types, row);
+				} catch (InputScreenerException ise) {
+					reject(rejects, row.recordNo, ise.getMessage(), row.raw);
+					continue;
+				}
+
+				batch.add(row);
+				if (batch.size() >= batchSize) {
+					flushBatch(conn, ps, batch, rejects, deps);
+				}
+
+				if (rowsRead % progressInterval == 0) {
+					logProgress("Loading");
+				}
+			}
+
+			flushBatch(conn, ps, batch, rejects, deps);
+			deps.close();
+			deps = null;
+
+			// Second pass: now that every CI exists, translate descriptions into ids
+			resolveDependencies(conn, depsFile, rejects);
+			logProgress("Finished");
+		} catch (IOException e) {
+			throw new ITILException("Could not read the CI import", e);
+		} catch (SQLException e) {
+			Notification n = new Notification(this, e);
+			n.alert();
+			throw new ITILException("Could not import CIs into the CMDB", e);
+		} finally {
+			try {
+				if (ps != null) {
+					ps.close();
+				}
+			} catch (SQLException e) {
+				Notification n = new Notification(this, e);
+				n.log();
+			}
+			try {
+				conn.close();
+			} catch (SQLException e) {
+				Notification n = new Notification(this, e);
+				n.log();
+			}
+			try {
+				if (rejects != null) {
+					rejects.close();
+				}
+				if (deps != null) {
+					deps.close();
+				}
+			} catch (IOException e) {
+				Notification n = new Notification(this, e);
+				n.log();
+			}
+			if (depsFile != null) {
+				depsFile.delete();
+			}
+		}
+
+		return rowsLoaded;
+	}
+
+	/**
+	 * Load every active CI type.  The table is small, so this replaces a lookup per record.
+	 */
+	private HashMap<String, Integer> loadTypes(Connection conn) throws SQLException {
+		HashMap<String, Integer> types = new HashMap<String, Integer>();
+		PreparedStatement ps = conn.prepareStatement("SELECT type, id FROM ci_types WHERE retired = false");
+		try {
+			ResultSet rs = ps.executeQuery();
+			while (rs.next()) {
+				types.put(rs.getString(1), rs.getInt(2));
+			}
+			rs.close();
+		} finally {
+			ps.close();
+		}
+		return types;
+	}
+
+	/**
+	 * Screen a parsed record and build its ConfigurationItem.
+	 */
+	@SuppressWarnings("unchecked")
+	private void screen(Map<String, Object> record, HashMap<String, Integer> types, PendingRow row) throws InputScreenerException {
+		if (record.containsKey(PARSE_ERROR)) {
+			throw new InputScreenerException("Malformed record: " + record.get(PARSE_ERROR));
+		}
+
+		String typeName = text(record, "type");
+		String description = text(record, "description");
+
+		if (typeName == null) {
+			throw new InputScreenerException("Missing type");
+		}
+		Integer type = types.get(typeName);
+		if (type == null) {
+			throw new InputScreenerException("CI Type does not exist in CMDB: " + typeName);
+		}
+
+		if (description == null) {
+			throw new InputScreenerException("Missing description");
+		}
+		screener.screenDescription(description);
+
+		String supplier = text(record, "supplier");
+		if (supplier != null) {
+			screener.screenDescription(supplier);
+		}
+
+		ArrayList<String> dependsOn = new ArrayList<String>();
+		Object deps = record.get("depends_on");
+		if (deps instanceof ArrayList) {
+			for (String dep : (ArrayList<String>) deps) {
+				if (dep != null) {
+					screener.screenDescription(dep);
+					dependsOn.add(dep);
+				}
+			}
+		} else if (deps != null) {
+			throw new InputScreenerException("depends_on must be a list of descriptions");
+		}
+
+		try {
+			row.ci = new ConfigurationItem(type, supplier, decimal(record, "cost"), integer(record, "watts_used"),
+					null, decimal(record, "shipping_cost"), date(record, "order_date"), date(record, "receipt_date"),
+					date(record, "install_date"), date(record, "prod_date"), null, description);
+		} catch (IllegalArgumentException e) {
+			// NumberFormatException is an IllegalArgumentException, as is a bad Date
+			throw new InputScreenerException("Invalid field value: " + e.getMessage(), e);
+		}
+		row.dependsOn = dependsOn;
+	}
+
+	/**
+	 * Insert and commit the current batch.  If the batch fails, each row is retried on its own
+	 * so that one bad row only costs itself.
+	 */
+	private void flushBatch(Connection conn, PreparedStatement ps, ArrayList<PendingRow> batch, Writer rejects, Writer deps) throws SQLException, IOException {
+		if (batch.isEmpty()) {
+			return;
+		}
+
+		try {
+			for (PendingRow row : batch) {
+				bind(ps, row.ci);
+				ps.addBatch();
+			}
+			ps.executeBatch();
+			conn.commit();
+
+			for (PendingRow row : batch) {
+				spoolDependencies(deps, row);
+			}
+			rowsLoaded += batch.size();
+		} catch (SQLException batchException) {
+			conn.rollback();
+			ps.clearBatch();
+
+			for (PendingRow row : batch) {
+				try {
+					bind(ps, row.ci);
+					ps.executeUpdate();
+					conn.commit();
+					spoolDependencies(deps, row);
+					rowsLoaded++;
+				} catch (SQLException rowException) {
+					conn.rollback();
+					reject(rejects, row.recordNo, rowException.getMessage(), row.raw);
+				}
+			}
+		}
+
+		batch.clear();
+	}
+
+	private void bind(PreparedStatement ps, ConfigurationItem ci) throws SQLException {
+		ps.setInt(1, ci.getType());
+		setString(ps, 2, ci.getSupplier());
+		setDecimal(ps, 3, ci.getCost());
+		if (ci.getWattsUsed() == null) {
+			ps.setNull(4, Types.INTEGER);
+		} else {
+			ps.setInt(4, ci.getWattsUsed());
+		}
+		setDecimal(ps, 5, ci.getShippingCost());
+		setDate(ps, 6, ci.getOrderDate());
+		setDate(ps, 7, ci.getReceiptDate());
+		setDate(ps, 8, ci.getInstallDate());
+		setDate(ps, 9, ci.getProdDate());
+		ps.setString(10, ci.getDescription());
+		ps.setString(11, new BigInteger(130, random).toString(32));
+	}
+
+	/*
+	 * Dependencies are spooled as CSV: the CI description followed by the descriptions it depends on
+	 */
+	private void spoolDependencies(Writer deps, PendingRow row) throws IOException {
+		if (row.dependsOn.isEmpty()) {
+			return;
+		}
+
+		StringBuilder sb = new StringBuilder();
+		RecordFormat.appendCSV(sb, row.ci.getDescription());
+		for (String dep : row.dependsOn) {
+			sb.append(',');
+			RecordFormat.appendCSV(sb, dep);
+		}
+		sb.append('\n');
+		deps.write(sb.toString());
+	}
+
+	/**
+	 * Read the spooled dependencies back a batch at a time, look up the ids of every description
+	 * in the batch with one query, and set dependent_on.  When a description matches more than one
+	 * active CI, the most recently created one wins.
+	 */
+	private void resolveDependencies(Connection conn, File depsFile, Writer rejects) throws IOException, SQLException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(depsFile), "UTF-8"));
+		PreparedStatement lookup = conn.prepareStatement(LOOKUP_SQL);
+		PreparedStatement update = conn.prepareStatement(DEPENDENCY_SQL);
+		StringBuilder raw = new StringBuilder();
+
+		try {
+			ArrayList<ArrayList<String>> chunk = new ArrayList<ArrayList<String>>(batchSize);
+			ArrayList<String> entry;
+
+			do {
+				entry = RecordFormat.readCSVRecord(in, raw, maxRecordSpan);
+				if (entry != null) {
+					chunk.add(entry);
+				}
+				if (chunk.isEmpty() || (entry != null && chunk.size() < batchSize)) {
+					continue;
+				}
+
+				// Look up every description named in this chunk at once
+				HashSet<String> names = new HashSet<String>();
+				for (ArrayList<String> e : chunk) {
+					names.addAll(e);
+				}
+				HashMap<String, Integer> ids = new HashMap<String, Integer>();
+				lookup.setArray(1, conn.createArrayOf("varchar", names.toArray()));
+				ResultSet rs = lookup.executeQuery();
+				while (rs.next()) {
+					ids.put(rs.getString(2), rs.getInt(1));
+				}
+				rs.close();
+
+				int pending = 0;
+				for (ArrayList<String> e : chunk) {
+					Integer ciId = ids.get(e.get(0));
+					Integer[] dependentOn = new Integer[e.size() - 1];
+					String missing = ciId == null ? e.get(0) : null;
+
+					for (int i = 1; i < e.size() && missing == null; i++) {
+						dependentOn[i - 1] = ids.get(e.get(i));
+						if (dependentOn[i - 1] == null) {
+							missing = e.get(i);
+						}
+					}
+
+					if (missing != null) {
+						StringBuilder text = new StringBuilder();
+						for (int i = 0; i < e.size(); i++) {
+							if (i > 0) {
+								text.append(" | ");
+							}
+							text.append(e.get(i));
+						}
+						reject(rejects, 0, "Unresolved dependency: " + missing, text.toString());
+						continue;
+					}
+
+					update.setArray(1, conn.createArrayOf("int", dependentOn));
+					update.setInt(2, ciId);
+					update.addBatch();
+					pending++;
+				}
+
+				if (pending > 0) {
+					update.executeBatch();
+				}
+				conn.commit();
+				dependenciesResolved += pending;
+				chunk.clear();
+			} while (entry != null);
+		} finally {
+			in.close();
+			lookup.close();
+			update.close();
+		}
+	}
+
+	private void reject(Writer rejects, long recordNo, String reason, String raw) throws IOException {
+		rowsRejected++;
+
+		StringBuilder sb = new StringBuilder();
+		sb.append(recordNo).append(',');
+		RecordFormat.appendCSV(sb, reason == null ? "Unknown" : reason);
+		sb.append(',');
+		RecordFormat.appendCSV(sb, raw);
+		sb.append('\n');
+		rejects.write(sb.toString());
+	}
+
+	private void logProgress(String phase) {
+		Notification n = new Notification(this, phase + " CI import: " + rowsRead + " read, " + rowsLoaded + " loaded, "
+				+ rowsRejected + " rejected, " + dependenciesResolved + " dependencies resolved");
+		n.log();
+	}
+
+	/*
+	 * Field accessors for parsed records
+	 */
+	private static String text(Map<String, Object> record, String name) {
+		Object o = record.get(name);
+		return o instanceof String ? (String) o : null;
+	}
+
+	private static BigDecimal decimal(Map<String, Object> record, String name) {
+		String s = text(record, name);
+		return s == null ? null : new BigDecimal(s);
+	}
+
+	private static Integer integer(Map<String, Object> record, String name) {
+		String s = text(record, name);
+		return s == null ? null : Integer.valueOf(s);
+	}
+
+	private static Date date(Map<String, Object> record, String name) {
+		String s = text(record, name);
+		return s == null ? null : Date.valueOf(s);
+	}
+
+	private static void setString(PreparedStatement ps, int index, String value) throws SQLException {
+		if (value == null) {
+			ps.setNull(index, Types.VARCHAR);
+		} else {
+			ps.setString(index, value);
+		}
+	}
+
+	private static void setDecimal(PreparedStatement ps, int index, BigDecimal value) throws SQLException {
+		if (value == null) {
+			ps.setNull(index, Types.NUMERIC);
+		} else {
+			ps.setBigDecimal(index, value);
+		}
+	}
+
+	private static void setDate(PreparedStatement ps, int index, Date value) throws SQLException {
+		if (value == null) {
+			ps.setNull(index, Types.DATE);
+		} else {
+			ps.setDate(index, value);
+		}
+	}
+
+	/**
+	 * @return The number of records written and committed together
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * Set the number of records written and committed together.
+	 *
+	 * @param batchSize The batch size
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = Math.max(1, batchSize);
+	}
+
+	/**
+	 * @return The number of records read between progress log entries
+	 */
+	public int getProgressInterval() {
+		return progressInterval;
+	}
+
+	/**
+	 * Set how often, in records read, progress is logged through Notification.
+	 *
+	 * @param progressInterval The progress interval
+	 */
+	public void setProgressInterval(int progressInterval) {
+		this.progressInterval = Math.max(1, progressInterval);
+	}
+
+	/**
+	 * @return The most characters a CSV record may span past the end of its first line
+	 */
+	public int getMaxRecordSpan() {
+		return maxRecordSpan;
+	}
+
+	/**
+	 * Set how far a quoted CSV field may run on past the end of its first line.  A field still open
+	 * after that is taken for a stray quote, and only the first line of its record is rejected.  The
+	 * reader buffers this much of the input at most while it looks for the closing quote.
+	 *
+	 * @param maxRecordSpan The most characters, line breaks included
+	 */
+	public void setMaxRecordSpan(int maxRecordSpan) {
+		this.maxRecordSpan = Math.max(1, maxRecordSpan);
+	}
+
+	/**
+	 * @return The number of records read by the current or last import
+	 */
+	public long getRowsRead() {
+		return rowsRead;
+	}
+
+	/**
+	 * @return The number of ConfigurationItem records loaded by the current or last import
+	 */
+	public long getRowsLoaded() {
+		return rowsLoaded;
+	}
+
+	/**
+	 * @return The number of records and dependency lists the current or last import wrote to the reject file
+	 */
+	public long getRowsRejected() {
+		return rowsRejected;
+	}
+
+	/**
+	 * @return The number of CIs whose dependent_on was set by the second pass of the current or last import
+	 */
+	public long getDependenciesResolved() {
+		return dependenciesResolved;
+	}
+}
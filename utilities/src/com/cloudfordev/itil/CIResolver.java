@@ -0,0 +1,35 @@
+package com.cloudfordev.itil;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * CIResolver loads the ConfigurationItem an Incident refers to, when it is first needed.<br>
+ * <br>
+ * Incidents read from the ICMDB carry only the CMDB record ID of their ConfigurationItem, and ask
+ * a CIResolver for the ConfigurationItem itself the first time getCi is called.  Implementations
+ * may cache, and should load many ConfigurationItems at once in resolveAll.
+ *
+ * @author u1001
+ * @version 1.0
+ */
+public interface CIResolver {
+
+	/**
+	 * Load one ConfigurationItem.
+	 *
+	 * @param ciId The CMDB record ID of the ConfigurationItem
+	 * @return The ConfigurationItem
+	 * @throws ITILException If the ConfigurationItem does not exist or cannot be read
+	 */
+	ConfigurationItem resolve(int ciId) throws ITILException;
+
+	/**
+	 * Load many ConfigurationItems.
+	 *
+	 * @param ciIds The CMDB record IDs of the ConfigurationItems
+	 * @return The ConfigurationItems found, by CMDB record ID
+	 * @throws ITILException If the ConfigurationItems cannot be read
+	 */
+	Map<Integer, ConfigurationItem> resolveAll(Collection<Integer> ciIds) throws ITILException;
+}
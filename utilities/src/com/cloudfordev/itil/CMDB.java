@@ -14,6 +14,8 @@ import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
@@ -347,6 +349,93 @@ public class CMDB {
 		}
 	}
 	
+	/**
+	 * Get many ConfigurationItems specified by CMDB record ID with one query.
+	 * 
+	 * @param userIDs The ConfigurationItem CMDB record IDs
+	 * @return The ConfigurationItems found, by CMDB record ID.  Retired or unknown IDs are left out.
+	 * @throws ITILException In the case of communications errors with the CMDB
+	 */
+	public HashMap<Integer, ConfigurationItem> getCIByIDs(Collection<Integer> userIDs) throws ITILException {
+		HashMap<Integer, ConfigurationItem> allCIs = new HashMap<Integer, ConfigurationItem>();
+		if (userIDs.isEmpty()) {
+			return allCIs;
+		}
+		
+		// Specify the SQL of this method
+		String sql = "SELECT * FROM cmdb WHERE retire_date is null AND id = ANY(?)";
+		
+		// Add the Statement args
+		ArrayList<Object> args = new ArrayList<Object>();
+		args.add(userIDs.toArray(new Integer[userIDs.size()]));
+		
+		// Execute the SQL and store the returned rows
+		ArrayList<ITILRow> allRows = executeSQL(sql, args);
+		
+		for (ITILRow row : allRows) {
+			Integer id = (Integer) row.getObject(0);
+			Integer type = (Integer) row.getObject(1);
+			String supplier = (String) row.getObject(2);
+			BigDecimal cost = (BigDecimal) row.getObject(3);
+			Integer wattsUsed = (Integer) row.getObject(4);
+			@SuppressWarnings("unchecked")
+			ArrayList<Integer> tmpList = (ArrayList<Integer>) row.getObject(5);
+			Integer[] dependentOn = (Integer[]) ((ArrayList<Integer>) tmpList).toArray(new Integer[1]);
+			BigDecimal shippingCost = (BigDecimal) row.getObject(6);
+			Date orderDate = (Date) row.getObject(7);
+			Date receiptDate = (Date) row.getObject(8);
+			Date installDate = (Date) row.getObject(9);
+			Date prodDate = (Date) row.getObject(10);
+			Date retireDate = (Date) row.getObject(11);
+			String description = (String) row.getObject(12);
+			
+			allCIs.put(id, new ConfigurationItem(id, type, supplier, cost, wattsUsed, dependentOn, shippingCost, orderDate, receiptDate, installDate, prodDate, retireDate, description));
+		}
+		
+		return allCIs;
+	}
+	
+	/**
+	 * Map ConfigurationItems to their CI types, streaming the CMDB rather than building ConfigurationItems.
+	 * 
+	 * @param includeRetired True to include retired ConfigurationItems, which still have Incident history
+	 * @return The CI type ID of each ConfigurationItem, by CMDB record ID
+	 * @throws ITILException In the case of communications errors with the CMDB
+	 */
+	HashMap<Integer, Integer> getTypeMap(boolean includeRetired) throws ITILException {
+		HashMap<Integer, Integer> typeOf = new HashMap<Integer, Integer>();
+		Connection c = openConnection();
+		PreparedStatement ps = null;
+
+		try {
+			c.setAutoCommit(false);
+			ps = c.prepareStatement(includeRetired ? "SELECT id, type FROM cmdb" : "SELECT id, type FROM cmdb WHERE retire_date is null");
+			ps.setFetchSize(1000);
+			ResultSet rs = ps.executeQuery();
+			while (rs.next()) {
+				typeOf.put(rs.getInt(1), rs.getInt(2));
+			}
+			rs.close();
+			c.commit();
+		} catch (SQLException e) {
+			Notification n = new Notification(this, e);
+			n.alert();
+			throw new ITILException("Could not read CI types from the CMDB", e);
+		} finally {
+			try {
+				if (ps != null) {
+					ps.close();
+				}
+				c.close();
+			} catch (SQLException e) {
+				Notification n = new Notification(this, e);
+				n.log();
+			}
+		}
+
+		return typeOf;
+	}
+	
 	/**
 	 * Takes a string SQL statement meant to prepare a statement, and the arguments for that statement.
 	 * 
@@ -356,69 +445,55 @@ public class CMDB {
 	 * @throws ITILException If the SQL could not be executed
 	 */
 	private ArrayList<ITILRow> executeSQL(String sql, @SuppressWarnings("rawtypes") ArrayList args) throws ITILException {
-		ArrayList<ITILRow> allRows = new ArrayList<ITILRow>();
-		InitialContext ctx = null;
-		DataSource ds = null;
-		PreparedStatement ps = null;
-		ResultSet rs = null;
+		Connection c;
 		
-		if (conn == null) {
-			/*
-			 * Get a connection
-			 */
-			try {
-				// Lookup the context of the JNDI provided at this object's instantiation
-				ctx = new InitialContext();
-				// Obtain the DataSource object 
-				ds = (DataSource)ctx.lookup(Config.cmsJDBCJNDI);
-				// Open a connection to the DataSource
-				conn = ds.getConnection();
-			} catch (Exception jdbcException) {
-				// Hello, hum, we may not be in a J2EE container... In that case...
-				try {
-					// Load the driver
-					try {
-						Class.forName(Config.cmsDriver);
-					} catch (ClassNotFoundException cnfe) {
-						Notification n = new Notification(this,cnfe);
-						n.alert();
-						// And re-throw the exception as a ITILException
-						throw new ITILException("Cannot get a connection to the CMDB", cnfe);
-					}
-					
-					// Fire up an EnigmaMachine for database password decrypting
-					EnigmaMachine em = new EnigmaMachine(new File(Config.getCpEnigmaKey()));
-					String dbPassword = "";
-					
-					try {
-						/*
-						 *  This decrypted password is not stored as an instance variable because
-						 *  it would live longer in the memory image of the application, therefore
-						 *  making it more likely that a core dump would reveal it.   
-						 */
-						dbPassword = em.decrypt(Config.cmsDBPasswordCipher, Config.cmsDBPasswordIV);
-					} catch (Exception decryptionException) {
-						/*
-						 *  There are numerous possible decryption Exceptions.  Log them.
-						 *  See the Connection stanza for knock-on effects.
-						 */
-						Notification n = new Notification(this,decryptionException);
-						n.alert();
-						// And re-throw the exception as a ITILException
-						throw new ITILException("Cannot get a connection to the CMDB", decryptionException);
-					}
-	
-					conn = DriverManager.getConnection("jdbc:" + Config.cmsDBSoftware + "://" + Config.cmsDBHost + 
-							":" + new Integer(Config.cmsDBPort).toString() + "/" + Config.cmsDBName, Config.cmsDBUser, dbPassword);
-				} catch (SQLException directConnectionException) {
-					// Log any errors
-					Notification n = new Notification(this,directConnectionException);
-					n.alert();
-					// And re-throw the exception as a ITILException
-					throw new ITILException("Cannot get a connection to the CMDB", directConnectionException);
+		if (persistConnection) {
+			// The held connection is shared, so statements on it take turns
+			synchronized (this) {
+				if (conn == null) {
+					conn = openConnection();
 				}
-			} 
+				c = conn;
+			}
+			synchronized (c) {
+				return executeSQL(c, sql, args);
+			}
+		}
+		
+		// Otherwise every call has a connection of its own, so background threads never share one
+		synchronized (this) {
+			// A connection handed over with setConnection is used once, as before
+			c = conn;
+			conn = null;
+		}
+		if (c == null) {
+			c = openConnection();
 		}
+		try {
+			return executeSQL(c, sql, args);
+		} finally {
+			try {
+				c.close();
+			} catch (SQLException e) {
+				Notification n = new Notification(this,e);
+				n.log();
+			}
+		}
+	}
+	
+	/**
+	 * Execute a statement on a connection, leaving the connection open.
+	 * 
+	 * @param conn The connection
+	 * @param sql SQL Statement String
+	 * @param args Arguments to be passed into the Statement
+	 * @return ResultSet The results of the SQL
+	 * @throws ITILException If the SQL could not be executed
+	 */
+	private ArrayList<ITILRow> executeSQL(Connection conn, String sql, @SuppressWarnings("rawtypes") ArrayList args) throws ITILException {
+		ArrayList<ITILRow> allRows = new ArrayList<ITILRow>();
+		PreparedStatement ps = null;
+		ResultSet rs = null;
 
 		/*
 		 * Wrap everything in a try catch finally block to cleanup resources no matter what
@@ -531,15 +606,74 @@ public class CMDB {
 				Notification n = new Notification(this,e);
 				n.log();
 			}
+		}
+		
+		return allRows; 
+	}
+	
+	/**
+	 * Open a new connection to the CMDB.  The JNDI DataSource is preferred, and a direct
+	 * JDBC connection is made when we are not running inside a J2EE container.  The caller
+	 * owns the returned Connection and is responsible for closing it.
+	 * 
+	 * @return A new Connection to the CMDB
+	 * @throws ITILException If a connection cannot be obtained
+	 */
+	Connection openConnection() throws ITILException {
+		InitialContext ctx = null;
+		
+		try {
+			// Lookup the context of the JNDI provided at this object's instantiation
+			ctx = new InitialContext();
+			// Obtain the DataSource object 
+			DataSource ds = (DataSource)ctx.lookup(Config.cmsJDBCJNDI);
+			// Open a connection to the DataSource
+			return ds.getConnection();
+		} catch (Exception jdbcException) {
+			// Hello, hum, we may not be in a J2EE container... In that case...
 			try {
-				if (conn != null && ! persistConnection) {
-					conn.close();
-					conn = null;
+				// Load the driver
+				try {
+					Class.forName(Config.cmsDriver);
+				} catch (ClassNotFoundException cnfe) {
+					Notification n = new Notification(this,cnfe);
+					n.alert();
+					// And re-throw the exception as a ITILException
+					throw new ITILException("Cannot get a connection to the CMDB", cnfe);
 				}
-			} catch (SQLException e) {
-				Notification n = new Notification(this,e);
-				n.log();
+				
+				// Fire up an EnigmaMachine for database password decrypting
+				EnigmaMachine em = new EnigmaMachine(new File(Config.getCpEnigmaKey()));
+				String dbPassword = "";
+				
+				try {
+					/*
+					 *  This decrypted password is not stored as an instance variable because
+					 *  it would live longer in the memory image of the application, therefore
+					 *  making it more likely that a core dump would reveal it.   
+					 */
+					dbPassword = em.decrypt(Config.cmsDBPasswordCipher, Config.cmsDBPasswordIV);
+				} catch (Exception decryptionException) {
+					/*
+					 *  There are numerous possible decryption Exceptions.  Log them.
+					 *  See the Connection stanza for knock-on effects.
+					 */
+					Notification n = new Notification(this,decryptionException);
+					n.alert();
+					// And re-throw the exception as a ITILException
+					throw new ITILException("Cannot get a connection to the CMDB", decryptionException);
+				}
+
+				return DriverManager.getConnection("jdbc:" + Config.cmsDBSoftware + "://" + Config.cmsDBHost + 
+						":" + new Integer(Config.cmsDBPort).toString() + "/" + Config.cmsDBName, Config.cmsDBUser, dbPassword);
+			} catch (SQLException directConnectionException) {
+				// Log any errors
+				Notification n = new Notification(this,directConnectionException);
+				n.alert();
+				// And re-throw the exception as a ITILException
+				throw new ITILException("Cannot get a connection to the CMDB", directConnectionException);
 			}
+		} finally {
 			try {
 				if (ctx != null) {
 					ctx.close();
@@ -550,8 +684,6 @@ public class CMDB {
 				n.log();
 			}
 		}
-		
-		return allRows; 
 	}
 	
 	/**
@@ -560,7 +692,7 @@ public class CMDB {
 	 * 
 	 * @param conn
 	 */
-	public void setConnection(Connection conn) {
+	public synchronized void setConnection(Connection conn) {
 		this.conn = conn;
 	}
 	
@@ -570,7 +702,7 @@ public class CMDB {
 	 * 
 	 * @return
 	 */
-	public Connection getConnection() {
+	public synchronized Connection getConnection() {
 		return conn;
 	}
 	
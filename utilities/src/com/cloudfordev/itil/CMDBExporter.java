@@ -0,0 +1,357 @@
+package com.cloudfordev.itil;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.zip.GZIPOutputStream;
+
+import com.cloudfordev.util.Notification;
+
+/**
+ * CMDBExporter writes the whole CMDB to CSV or JSON lines without holding it in memory.<br>
+ * <br>
+ * Rows are read through a server-side cursor a fetch at a time and encoded straight into a
+ * reusable direct buffer that is drained to an NIO channel, optionally through gzip.  Heap use
+ * is bounded by the fetch size and the buffer size, whatever the size of the table.<br>
+ * <br>
+ * The field names match those read by CIImporter, so an export can be imported again.  The CI
+ * type is exported by name, and depends_on as the descriptions of the CIs depended on, separated
+ * by | in CSV or as an array in JSON, since record ids do not survive a re-import.  The id
+ * column is informational and ignored by CIImporter.
+ *
+ * @author u1001
+ * @version 1.0
+ */
+public class CMDBExporter {
+
+	/**
+	 * The output formats supported by the CMDBExporter.
+	 */
+	public enum Format {
+		CSV, JSON
+	}
+
+	private static final String[] COLUMNS = { "id", "type", "supplier", "cost", "watts_used", "depends_on", "shipping_cost",
+		"order_date", "receipt_date", "install_date", "prod_date", "retire_date", "description" };
+
+	// Columns written as JSON numbers rather than strings
+	private static final boolean[] NUMERIC = { true, false, false, true, true, false, true, false, false, false, false, false, false };
+
+	private static final String SELECT_SQL = "SELECT c.id, t.type, c.supplier, c.cost, c.watts_used, "
+			+ "ARRAY(SELECT d.description FROM cmdb d WHERE d.id = ANY(c.dependent_on) ORDER BY d.id), c.shipping_cost, "
+			+ "c.order_date, c.receipt_date, c.install_date, c.prod_date, c.retire_date, c.description "
+			+ "FROM cmdb c LEFT JOIN ci_types t ON t.id = c.type";
+
+	private CMDB cmdb;
+	private int fetchSize = 1000;
+	private int bufferSize = 64 * 1024;
+	private boolean includeRetired = false;
+
+	/**
+	 * Create a new CMDBExporter.
+	 *
+	 * @param cmdb The CMDB to export
+	 */
+	public CMDBExporter(CMDB cmdb) {
+		this.cmdb = cmdb;
+	}
+
+	/**
+	 * Export the CMDB to a file.
+	 *
+	 * @param file The file to write.  It is overwritten.
+	 * @param format The output format
+	 * @param gzip True to gzip compress the output
+	 * @return The number of ConfigurationItem records written
+	 * @throws ITILException If the CMDB cannot be read or the file cannot be written
+	 */
+	public long export(File file, Format format, boolean gzip) throws ITILException {
+		FileOutputStream fos = null;
+		WritableByteChannel channel = null;
+
+		try {
+			fos = new FileOutputStream(file);
+			if (gzip) {
+				OutputStream gz = new GZIPOutputStream(fos, bufferSize);
+				channel = Channels.newChannel(gz);
+			} else {
+				channel = fos.getChannel();
+			}
+
+			return export(channel, format);
+		} catch (IOException e) {
+			throw new ITILException("Could not write the CMDB export", e);
+		} finally {
+			try {
+				if (channel != null) {
+					// Closing the channel finishes the gzip trailer and closes the file
+					channel.close();
+				} else if (fos != null) {
+					// The gzip header could not be written, so the file is all there is to close
+					fos.close();
+				}
+			} catch (IOException e) {
+				Notification n = new Notification(this, e);
+				n.log();
+			}
+		}
+	}
+
+	/**
+	 * Export the CMDB to a channel.  The channel is not closed.
+	 *
+	 * @param channel The channel to write
+	 * @param format The output format
+	 * @return The number of ConfigurationItem records written
+	 * @throws ITILException If the CMDB cannot be read or the channel cannot be written
+	 */
+	public long export(WritableByteChannel channel, Format format) throws ITILException {
+		long rows = 0;
+		Connection conn = cmdb.openConnection();
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		ChannelWriter out = new ChannelWriter(channel, bufferSize);
+		StringBuilder sb = new StringBuilder(512);
+
+		try {
+			// PostgreSQL only streams with a fetch size when autocommit is off
+			conn.setAutoCommit(false);
+
+			String sql = SELECT_SQL + (includeRetired ? "" : " WHERE c.retire_date is null") + " ORDER BY c.id";
+			ps = conn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			ps.setFetchSize(fetchSize);
+			rs = ps.executeQuery();
+
+			if (format == Format.CSV) {
+				for (int i = 0; i < COLUMNS.length; i++) {
+					if (i > 0) {
+						sb.append(',');
+					}
+					sb.append(COLUMNS[i]);
+				}
+				sb.append('\n');
+				out.write(sb);
+			}
+
+			while (rs.next()) {
+				sb.setLength(0);
+
+				if (format == Format.CSV) {
+					appendCSVRow(sb, rs);
+				} else {
+					appendJSONRow(sb, rs);
+				}
+
+				out.write(sb);
+				rows++;
+			}
+
+			out.flush();
+			conn.commit();
+		} catch (IOException e) {
+			throw new ITILException("Could not write the CMDB export", e);
+		} catch (SQLException e) {
+			Notification n = new Notification(this, e);
+			n.alert();
+			throw new ITILException("Could not read the CMDB for export", e);
+		} finally {
+			try {
+				if (rs != null) {
+					rs.close();
+				}
+				if (ps != null) {
+					ps.close();
+				}
+			} catch (SQLException e) {
+				Notification n = new Notification(this, e);
+				n.log();
+			}
+			try {
+				conn.close();
+			} catch (SQLException e) {
+				Notification n = new Notification(this, e);
+				n.log();
+			}
+		}
+
+		return rows;
+	}
+
+	private void appendCSVRow(StringBuilder sb, ResultSet rs) throws SQLException {
+		for (int i = 0; i < COLUMNS.length; i++) {
+			if (i > 0) {
+				sb.append(',');
+			}
+
+			if (i == 5) {
+				StringBuilder deps = new StringBuilder();
+				for (String dep : descriptions(rs, i + 1)) {
+					if (deps.length() > 0) {
+						deps.append('|');
+					}
+					deps.append(dep);
+				}
+				RecordFormat.appendCSV(sb, deps.toString());
+			} else {
+				RecordFormat.appendCSV(sb, rs.getString(i + 1));
+			}
+		}
+		sb.append('\n');
+	}
+
+	private void appendJSONRow(StringBuilder sb, ResultSet rs) throws SQLException {
+		sb.append('{');
+		for (int i = 0; i < COLUMNS.length; i++) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			sb.append('"').append(COLUMNS[i]).append("\":");
+
+			if (i == 5) {
+				sb.append('[');
+				String[] deps = descriptions(rs, i + 1);
+				for (int d = 0; d < deps.length; d++) {
+					if (d > 0) {
+						sb.append(',');
+					}
+					RecordFormat.appendJSON(sb, deps[d]);
+				}
+				sb.append(']');
+				continue;
+			}
+
+			String value = rs.getString(i + 1);
+			if (value == null) {
+				sb.append("null");
+			} else if (NUMERIC[i]) {
+				sb.append(value);
+			} else {
+				RecordFormat.appendJSON(sb, value);
+			}
+		}
+		sb.append("}\n");
+	}
+
+	/*
+	 * The descriptions of the CIs a row depends on, from the text[] column
+	 */
+	private String[] descriptions(ResultSet rs, int column) throws SQLException {
+		Array array = rs.getArray(column);
+		if (array == null) {
+			return new String[0];
+		}
+		try {
+			return (String[]) array.getArray();
+		} finally {
+			array.free();
+		}
+	}
+
+	/**
+	 * Encodes character data as UTF-8 into a single reusable direct buffer, and drains the
+	 * buffer to the channel whenever it fills.
+	 */
+	private static class ChannelWriter {
+		private final WritableByteChannel channel;
+		private final CharsetEncoder encoder = Charset.forName("UTF-8").newEncoder();
+		private final ByteBuffer bytes;
+		private char[] chars = new char[1024];
+
+		ChannelWriter(WritableByteChannel channel, int bufferSize) {
+			this.channel = channel;
+			this.bytes = ByteBuffer.allocateDirect(bufferSize);
+		}
+
+		void write(StringBuilder sb) throws IOException {
+			if (chars.length < sb.length()) {
+				chars = new char[Math.max(sb.length(), chars.length * 2)];
+			}
+			sb.getChars(0, sb.length(), chars, 0);
+
+			CharBuffer in = CharBuffer.wrap(chars, 0, sb.length());
+			while (true) {
+				CoderResult result = encoder.encode(in, bytes, false);
+				if (result.isOverflow()) {
+					drain();
+				} else if (result.isUnderflow()) {
+					return;
+				} else {
+					result.throwException();
+				}
+			}
+		}
+
+		void flush() throws IOException {
+			drain();
+		}
+
+		private void drain() throws IOException {
+			bytes.flip();
+			while (bytes.hasRemaining()) {
+				channel.write(bytes);
+			}
+			bytes.clear();
+		}
+	}
+
+	/**
+	 * @return The number of rows fetched from the cursor at a time
+	 */
+	public int getFetchSize() {
+		return fetchSize;
+	}
+
+	/**
+	 * Set the number of rows fetched from the server-side cursor at a time.
+	 *
+	 * @param fetchSize The fetch size
+	 */
+	public void setFetchSize(int fetchSize) {
+		this.fetchSize = Math.max(1, fetchSize);
+	}
+
+	/**
+	 * @return The size in bytes of the output buffer
+	 */
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * Set the size in bytes of the output buffer.
+	 *
+	 * @param bufferSize The buffer size
+	 */
+	public void setBufferSize(int bufferSize) {
+		this.bufferSize = Math.max(4096, bufferSize);
+	}
+
+	/**
+	 * @return True if retired ConfigurationItems are exported
+	 */
+	public boolean isIncludeRetired() {
+		return includeRetired;
+	}
+
+	/**
+	 * Set whether retired ConfigurationItems are exported.  By default only active ones are.
+	 *
+	 * @param includeRetired True to export retired ConfigurationItems
+	 */
+	public void setIncludeRetired(boolean includeRetired) {
+		this.includeRetired = includeRetired;
+	}
+}
@@ -0,0 +1,125 @@
+package com.cloudfordev.itil;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * CachingCIResolver resolves ConfigurationItems from the CMDB, keeping each one for a time to
+ * live so that repeated listings do not read the same ConfigurationItems again.  Many
+ * ConfigurationItems are read with one query.  With a time to live of 0 nothing is cached.<br>
+ * <br>
+ * The cache holds at most a fixed number of ConfigurationItems; when it is full it is cleared,
+ * which is cheap and keeps the working set of a busy period.
+ *
+ * @author u1001
+ * @version 1.0
+ */
+public class CachingCIResolver implements CIResolver {
+
+	private final CMDB cmdb;
+	private final long ttl;
+	private final int maxEntries;
+	private final ConcurrentHashMap<Integer, Cached> cache = new ConcurrentHashMap<Integer, Cached>();
+
+	/**
+	 * Create a new CachingCIResolver.
+	 *
+	 * @param cmdb The CMDB to read ConfigurationItems from
+	 * @param ttl The time in milliseconds a ConfigurationItem is kept, or 0 to keep none
+	 * @param maxEntries The maximum number of ConfigurationItems kept
+	 */
+	public CachingCIResolver(CMDB cmdb, long ttl, int maxEntries) {
+		this.cmdb = cmdb;
+		this.ttl = Math.max(0, ttl);
+		this.maxEntries = Math.max(1, maxEntries);
+	}
+
+	public ConfigurationItem resolve(int ciId) throws ITILException {
+		ConfigurationItem ci = cached(ciId, System.currentTimeMillis());
+		if (ci == null) {
+			ci = cmdb.getCIByID(ciId);
+			store(ci, System.currentTimeMillis());
+		}
+		return ci;
+	}
+
+	public Map<Integer, ConfigurationItem> resolveAll(Collection<Integer> ciIds) throws ITILException {
+		long now = System.currentTimeMillis();
+		HashMap<Integer, ConfigurationItem> found = new HashMap<Integer, ConfigurationItem>();
+		ArrayList<Integer> missing = new ArrayList<Integer>();
+
+		for (Integer ciId : ciIds) {
+			ConfigurationItem ci = cached(ciId, now);
+			if (ci != null) {
+				found.put(ciId, ci);
+			} else if (! found.containsKey(ciId) && ciId != null) {
+				missing.add(ciId);
+			}
+		}
+
+		if (! missing.isEmpty()) {
+			for (ConfigurationItem ci : cmdb.getCIByIDs(missing).values()) {
+				found.put(ci.getId(), ci);
+				store(ci, now);
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Forget a ConfigurationItem, so that it is read again on next use.
+	 *
+	 * @param ciId The CMDB record ID of the ConfigurationItem
+	 */
+	public void invalidate(int ciId) {
+		cache.remove(ciId);
+	}
+
+	/**
+	 * Forget every ConfigurationItem.
+	 */
+	public void clear() {
+		cache.clear();
+	}
+
+	private ConfigurationItem cached(Integer ciId, long now) {
+		if (ttl == 0 || ciId == null) {
+			return null;
+		}
+		Cached c = cache.get(ciId);
+		if (c == null) {
+			return null;
+		}
+		if (now - c.loaded >= ttl) {
+			cache.remove(ciId, c);
+			return null;
+		}
+		return c.ci;
+	}
+
+	private void store(ConfigurationItem ci, long now) {
+		if (ttl == 0) {
+			return;
+		}
+		if (cache.size() >= maxEntries) {
+			cache.clear();
+		}
+		cache.put(ci.getId(), new Cached(ci, now));
+	}
+
+	/**
+	 * A ConfigurationItem and when it was read.
+	 */
+	private static class Cached {
+		final ConfigurationItem ci;
+		final long loaded;
+
+		Cached(ConfigurationItem ci, long loaded) {
+			this.ci = ci;
+			this.loaded = loaded;
+		}
+	}
+}
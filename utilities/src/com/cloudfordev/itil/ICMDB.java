@@ -3,6 +3,9 @@ package com.cloudfordev.itil;
 import java.io.File;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
 import java.security.SecureRandom;
 import java.sql.Connection;
 import java.sql.Date;
@@ -10,9 +13,17 @@ import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
 import java.sql.Timestamp;
 import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
@@ -25,12 +36,21 @@ import com.cloudfordev.util.Notification;
  * The Incident Management Database (ICMDB) warehouses all Incidents.  
  * 
  * @author u1001
- * @version 1.1
+ * @version 1.2
  */
 public class ICMDB {
 	
 	Connection conn = null;
 	boolean persistConnection = false;
+	IncidentDeduplicator deduplicator = null;
+	OpenIncidentIndex openIndex = null;
+	IncidentArchive archive = null;
+	IncidentCorrelator correlator = null;
+	IncidentEscalator escalator = null;
+	volatile IncidentEventBus eventBus = null;
+	IncidentSpool spool = null;
+	IncidentRollups rollups = null;
+	CIResolver ciResolver = null;
 	
 	/**
 	 * Instantiate a new instance for access to the ICMDB
@@ -40,18 +60,23 @@ public class ICMDB {
 	}
 
 	/**
-	 * Add an Incident to the ICMDB.  
+	 * Add an Incident to the ICMDB.<br>
+	 * <br>
+	 * If an IncidentSpool is set and the ICMDB cannot be reached, the Incident is spooled instead,
+	 * and written and notified once the ICMDB recovers.
 	 * 
 	 * @param i The Incident to add to the ICMDB
-	 * @return The int of the newly generated Incident record in the ICMDB
-	 * @throws ITILException If the Incident record cannot be created in the ICMDB
+	 * @return The int of the newly generated Incident record in the ICMDB, or 0 if the Incident was spooled
+	 * @throws ITILException If the Incident record cannot be created in the ICMDB or spooled
 	 */
 	public int addIncident(Incident i) throws ITILException {
-		int incId = 0;
-		int severity = i.getSeverity();
-		String source = i.getSource();
-		String errorMsg = i.getErrorMsg();
-		String contactEmail = i.getContactEmail();
+		// Repeats of a recent failure are collapsed into it rather than written and notified again
+		Incident original = collapseDuplicate(i);
+		writeDueOccurrences();
+		if (original != null) {
+			// The original may still be queued in an IncidentIngestor, without a record number yet
+			return original.getId() != null ? original.getId() : 0;
+		}
 		
 		/*
 		 *  The generationHash is simply a unique String to keep track of the new Incident we create
@@ -60,12 +85,52 @@ public class ICMDB {
 		SecureRandom random = new SecureRandom();
 		String generationHash = new BigInteger(130, random).toString(32);
 		
+		// While the spool holds Incidents, new ones queue behind them so they are written in order
+		if (spool != null && spool.isPending()) {
+			spool.add(i, generationHash);
+			return 0;
+		}
+		
+		int incId = 0;
+		try {
+			incId = insertIncident(i, generationHash);
+		} catch (ITILException e) {
+			if (spool == null || ! isUnavailable(e)) {
+				// Repeats within the window must not collapse into a report that was never written
+				forgetDuplicate(i);
+				throw e;
+			}
+			// The ICMDB is unreachable, so keep the Incident locally until it can be written
+			spool.add(i, generationHash);
+			return 0;
+		}
+		i.setId(incId);
+		
+		// The Incident is committed, so notify
+		incidentAdded(i);
+		return incId;
+	}
+	
+	/**
+	 * Write a new Incident record and find its record number.
+	 * 
+	 * @param i The Incident to write
+	 * @param generationHash The unique String used to find the record once written
+	 * @return The ICMDB record number of the new Incident
+	 * @throws ITILException If the Incident record cannot be created in the ICMDB
+	 */
+	private int insertIncident(Incident i, String generationHash) throws ITILException {
+		int severity = i.getSeverity();
+		String source = i.getSource();
+		String errorMsg = i.getErrorMsg();
+		String contactEmail = i.getContactEmail();
+		
 		// Specify the insert SQL
 		String sql = "INSERT INTO incidents (ci,start_date,resolve_date,source,severity,error_no,error_msg,contact_email,generation_hash,resolution) values (?, ?, ?, ?, ?, ?, ?, ?, ?,?)";
 		
 		// Add the Statement args
 		ArrayList<Object> insertArgs = new ArrayList<Object>();
-		insertArgs.add(i.getCi().getId());
+		insertArgs.add(i.getCiId());
 		insertArgs.add(i.getStartDate());
 		insertArgs.add(i.getResolveDate());
 		insertArgs.add(source);
@@ -79,27 +144,6 @@ public class ICMDB {
 		// Execute the SQL 
 		executeSQL(sql, insertArgs);
 		
-        /*
-         * Auto notifications
-         */
-		if (severity < 4) {
-			String msg = "";
-			if (i.isResolved()) {
-				msg = "Doc Inc: " + i.getCi().getDescription() + ": " + errorMsg;
-			} else {
-				msg = "Err Inc: " + i.getCi().getDescription() + ": " + errorMsg;
-			}
-			
-	        Notification n = new Notification(source, msg);
-	
-	        if (severity == 3) {
-	            n.email(contactEmail);
-	            n.log();
-	        } else if (severity < 3) {
-	            n.alert();
-	        }
-		}
-		
 		/* 
 		 * Now we need to find the newly created Incident int for return to the user
 		 */
@@ -120,13 +164,148 @@ public class ICMDB {
 			ITILRow row = allRows.get(0);
 			// Cast the object in the first field of the row to an integer
 			// This is our type id
-			incId = (int) row.getObject(0);
-			return incId;
+			return (int) row.getObject(0);
 		} else {
 			throw new ITILException("Could not find the Incident we just inserted into the ICMDB");
 		}	
 	}
 	
+	/**
+	 * Run an Incident through the IncidentDeduplicator, if one is set.  No JDBC is done here, so
+	 * producers can call it on their own threads; the occurrence counters are written by
+	 * writeDueOccurrences.
+	 * 
+	 * @param i The reported Incident
+	 * @return The earlier Incident this report was collapsed into, or null if it should be written
+	 */
+	Incident collapseDuplicate(Incident i) {
+		if (deduplicator == null) {
+			return null;
+		}
+		
+		return deduplicator.collapse(i);
+	}
+	
+	/**
+	 * Stop the IncidentDeduplicator, if one is set, from collapsing repeats into an Incident that
+	 * could not be written.
+	 *
+	 * @param i The Incident that collapseDuplicate returned null for
+	 */
+	void forgetDuplicate(Incident i) {
+		if (deduplicator != null) {
+			deduplicator.forget(i);
+		}
+	}
+	
+	/**
+	 * Write the occurrence counters of the IncidentDeduplicator if a flush is due.  This is cheap
+	 * when none is due.
+	 */
+	void writeDueOccurrences() {
+		if (deduplicator != null) {
+			writeOccurrences(deduplicator.takeDirty(false));
+		}
+	}
+	
+	/**
+	 * Write every pending occurrence counter of the IncidentDeduplicator to the ICMDB.  Call this
+	 * before shutting down so that the counts of the last window are not lost.
+	 */
+	public void flushOccurrences() {
+		if (deduplicator != null) {
+			writeOccurrences(deduplicator.takeDirty(true));
+		}
+	}
+	
+	/**
+	 * Update the occurrence counters of Incidents already in the ICMDB, in one batch.
+	 * 
+	 * @param incs The Incidents whose occurrences and last seen time changed
+	 */
+	private void writeOccurrences(ArrayList<Incident> incs) {
+		if (incs.isEmpty()) {
+			return;
+		}
+		
+		Connection c = null;
+		PreparedStatement ps = null;
+		try {
+			c = openConnection();
+			ps = c.prepareStatement("UPDATE incidents SET occurrences = ?, last_seen = ? WHERE id = ?");
+			for (Incident i : incs) {
+				ps.setInt(1, i.getOccurrences());
+				ps.setTimestamp(2, i.getLastSeen());
+				ps.setInt(3, i.getId());
+				ps.addBatch();
+			}
+			ps.executeBatch();
+		} catch (Exception e) {
+			// The counters are informational, so a failure is logged rather than paged
+			Notification n = new Notification(this,e);
+			n.log();
+		} finally {
+			closeQuietly(ps, c);
+		}
+	}
+	
+	/**
+	 * Everything that follows the commit of a new Incident.  Both addIncident and the
+	 * IncidentIngestor call this once the Incident has its ICMDB record number.
+	 * 
+	 * @param i The newly committed Incident
+	 */
+	void incidentAdded(Incident i) {
+		int severity = i.getSeverity();
+		
+		if (openIndex != null) {
+			openIndex.opened(i);
+		}
+		
+		if (eventBus != null) {
+			eventBus.publish(IncidentEvent.Type.CREATED, i);
+		}
+		
+		if (rollups != null) {
+			rollups.added(i);
+			if (i.isResolved()) {
+				// Documented after the fact, so it never passes through resolveIncident
+				rollups.resolved(i);
+			}
+		}
+		
+		// Only the root of a correlated failure notifies
+		if (correlator != null && correlator.correlate(i) != null) {
+			return;
+		}
+		
+		if (escalator != null) {
+			escalator.watch(i);
+		}
+		
+        /*
+         * Auto notifications
+         */
+		if (severity < 4) {
+			String msg = "";
+			if (i.isResolved()) {
+				msg = "Doc Inc: " + i.getCi().getDescription() + ": " + i.getErrorMsg();
+			} else {
+				msg = "Err Inc: " + i.getCi().getDescription() + ": " + i.getErrorMsg();
+			}
+			
+	        Notification n = new Notification(i.getSource(), msg);
+	        n.setSeverity(severity);
+	
+	        if (severity == 3) {
+	            n.email(i.getContactEmail());
+	            n.log();
+	        } else if (severity < 3) {
+	            n.alert();
+	        }
+		}
+	}
+	
 	/**
 	 * Get all Incidents for a specified ConfigurationItem
 	 * 
@@ -168,10 +347,35 @@ public class ICMDB {
 			allIncs.add(i);
 		}
 		
+		if (archive != null) {
+			// Add the archived history, skipping anything not yet deleted from the ICMDB
+			HashSet<Integer> hot = new HashSet<Integer>();
+			for (Incident i : allIncs) {
+				hot.add(i.getId());
+			}
+			for (Incident i : archive.read(userCI, null, null)) {
+				if (! hot.contains(i.getId())) {
+					allIncs.add(i);
+				}
+			}
+		}
+		
 		// And return all the Incident objects
 		return allIncs;			
 	}
 	
+	/**
+	 * Get the Incident history of a ConfigurationItem, newest first, for reading a page at a time or
+	 * as a stream.  Like getIncByCI, it includes archived Incidents when an IncidentArchive is set.
+	 * Prefer this to getIncByCI for ConfigurationItems with long histories.
+	 * 
+	 * @param userCI The ConfigurationItem whose Incidents are sought
+	 * @return An IncidentHistory, to which time and severity filters can be added
+	 */
+	public IncidentHistory getIncHistory(ConfigurationItem userCI) {
+		return new IncidentHistory(this, userCI.getId());
+	}
+	
 	/**
 	 * Get an Incident specified by its ICMDB record number.  
 	 * 
@@ -180,7 +384,7 @@ public class ICMDB {
 	 * @throws ITILException If there is a failure while working with the back-end ICMDB
 	 */
 	public Incident getIncByID(int userIncID) throws ITILException {
-		CMDB cmdb = new CMDB();
+		CIResolver resolver = getCIResolver();
 		
 		// Specify the SQL of this method
 		String sql = "SELECT * FROM incidents WHERE id = ?";
@@ -208,16 +412,22 @@ public class ICMDB {
 			String contactEmail = (String) row.getObject(8);
 			String resolution = (String) row.getObject(10);
 			
-			// Fetch the ConfigurationItem specified by this CMDB record ID
-			ConfigurationItem ci = cmdb.getCIByID(ciID);
-			
-			// Create an Incident
-			Incident i = new Incident(ci, startDate, resolveDate, source, severity, errorNo, errorMsg, contactEmail, resolution);
+			// Create an Incident, which loads the ConfigurationItem specified by this CMDB record ID when it is read
+			Incident i = new Incident(null, startDate, resolveDate, source, severity, errorNo, errorMsg, contactEmail, resolution);
 			i.setId(id);
+			i.setCiReference(ciID, resolver);
 			
 			// Return that Incident
 			return i;
 		} else {
+			// It may have been moved to the archive
+			if (archive != null) {
+				Incident i = archive.find(userIncID, resolver);
+				if (i != null) {
+					return i;
+				}
+			}
+			
 			// Or throw an exception if that Incident doesn't exist
 			throw new ITILException("Incident does not exist in ICMDB");
 		}
@@ -230,7 +440,22 @@ public class ICMDB {
 	 * @throws ITILException If there is a failure while working with the back-end ICMDB
 	 */
 	public ArrayList<Incident> getOpenIncidents() throws ITILException {
-		CMDB cmdb = new CMDB();
+		// A seeded OpenIncidentIndex already holds the answer
+		if (openIndex != null && openIndex.isSeeded()) {
+			return openIndex.getAll();
+		}
+		
+		return loadOpenIncidents();
+	}
+	
+	/**
+	 * Retrieve all unresolved Incident objects from the ICMDB database itself.
+	 * 
+	 * @return All unresolved Incident objects from the ICMDB
+	 * @throws ITILException If there is a failure while working with the back-end ICMDB
+	 */
+	ArrayList<Incident> loadOpenIncidents() throws ITILException {
+		CIBatch batch = new CIBatch(getCIResolver());
 		
 		// Specify the SQL of this method
 		String sql = "SELECT * FROM incidents WHERE resolve_date is null ORDER BY start_date";
@@ -255,12 +480,11 @@ public class ICMDB {
 			String errorMsg = (String) row.getObject(7);
 			String contactEmail = (String) row.getObject(8);
 			
-			// Fetch the ConfigurationItem specified by this CMDB record ID
-			ConfigurationItem ci = cmdb.getCIByID(ciID);
-			
-			// Create the Incident
-			Incident i = new Incident(ci, startDate, source, severity, errorNo, errorMsg, contactEmail);
+			// Create the Incident, whose ConfigurationItem is loaded with the rest of the batch when first read
+			Incident i = new Incident(null, startDate, source, severity, errorNo, errorMsg, contactEmail);
 			i.setId(id);
+			batch.add(ciID);
+			i.setCiReference(ciID, batch);
 			
 			// Add it to the ArrayList
 			allIncs.add(i);
@@ -270,6 +494,26 @@ public class ICMDB {
 		return allIncs;	
 	}
 	
+	/**
+	 * Get the ICMDB record numbers of all unresolved Incidents.
+	 * 
+	 * @return The record numbers of all unresolved Incidents
+	 * @throws ITILException If there is a failure while working with the back-end ICMDB
+	 */
+	public ArrayList<Integer> getOpenIncidentIds() throws ITILException {
+		// Specify the SQL of this method
+		String sql = "SELECT id FROM incidents WHERE resolve_date is null";
+		
+		// Execute the SQL and store the returned rows
+		ArrayList<ITILRow> allRows = executeSQL(sql, new ArrayList<Object>());
+		
+		ArrayList<Integer> ids = new ArrayList<Integer>(allRows.size());
+		for (ITILRow row : allRows) {
+			ids.add((Integer) row.getObject(0));
+		}
+		return ids;
+	}
+	
 	/**
 	 * Get all Incident records from the ICMDB within the last n hours.
 	 * 
@@ -278,15 +522,15 @@ public class ICMDB {
 	 * @throws ITILException If there is a failure while working with the back-end ICMDB
 	 */
 	public ArrayList<Incident> getRecentIncidents(int hours) throws ITILException {
-		CMDB cmdb = new CMDB();
+		CIBatch batch = new CIBatch(getCIResolver());
 		
 		// Specify the SQL of this method
-		// single quote is required by INTERVAL, but causes the PreparedStatement ? to bomb
-		String sql = "SELECT * FROM incidents WHERE start_date >= date_trunc('hour', now()) - INTERVAL '" + hours + " hour' ORDER BY start_date";
+		// The window is a bound multiple of one hour so that the statement text never changes
+		String sql = "SELECT * FROM incidents WHERE start_date >= date_trunc('hour', now()) - ? * INTERVAL '1 hour' ORDER BY start_date, id";
 		
 		// Add the Statement args
 		ArrayList<Object> args = new ArrayList<Object>();
-		//args.add(hours);
+		args.add(hours);
 		
 		// Execute the SQL and store the returned rows
 		ArrayList<ITILRow> allRows = executeSQL(sql, args);
@@ -296,32 +540,163 @@ public class ICMDB {
 		
 		// For each returned row, create an Incident
 		for (ITILRow row : allRows) {
-			Integer id = (Integer) row.getObject(0);
-			Integer ciID = (Integer) row.getObject(1);
-			Timestamp startDate = (Timestamp) row.getObject(2);
-			Timestamp resolveDate = (Timestamp) row.getObject(3);
-			String source = (String) row.getObject(4);
-			Integer severity = (Integer) row.getObject(5);
-			Integer errorNo = (Integer) row.getObject(6);
-			String errorMsg = (String) row.getObject(7);
-			String contactEmail = (String) row.getObject(8);
-			String resolution = (String) row.getObject(10);
-			
-			// Fetch the ConfigurationItem specified by this CMDB record ID
-			ConfigurationItem ci = cmdb.getCIByID(ciID);
-			
-			// Create the Incident
-			Incident i = new Incident(ci, startDate, resolveDate, source, severity, errorNo, errorMsg, contactEmail, resolution);
-			i.setId(id);
-			
-			// Add it to the ArrayList
-			allIncs.add(i);
+			allIncs.add(toIncident(row, batch));
 		}
 		
 		// And return the list of Incidents
 		return allIncs;	
 	}
 	
+	/**
+	 * Get all Incident records that sort after the specified Incident, ordered by start date and then
+	 * record number.  This is the delta query behind RecentIncidentWindow.  An Incident committed
+	 * after an earlier call with a start date behind its cursor is not returned, so callers that
+	 * poll look again a grace period behind the cursor and skip what they already hold.
+	 * 
+	 * @param startDate The start date of the last Incident already seen
+	 * @param id The ICMDB record number of the last Incident already seen
+	 * @return All Incidents that started after the specified Incident
+	 * @throws ITILException If there is a failure while working with the back-end ICMDB
+	 */
+	public ArrayList<Incident> getIncidentsAfter(Timestamp startDate, int id) throws ITILException {
+		CIBatch batch = new CIBatch(getCIResolver());
+		
+		// Specify the SQL of this method
+		String sql = "SELECT * FROM incidents WHERE (start_date, id) > (?, ?) ORDER BY start_date, id";
+		
+		// Add the Statement args
+		ArrayList<Object> args = new ArrayList<Object>();
+		args.add(startDate);
+		args.add(id);
+		
+		// Execute the SQL and store the returned rows
+		ArrayList<ITILRow> allRows = executeSQL(sql, args);
+		
+		// Prepare an ArrayList to store the Incident objects
+		ArrayList<Incident> allIncs = new ArrayList<Incident>();
+		
+		// For each returned row, create an Incident
+		for (ITILRow row : allRows) {
+			allIncs.add(toIncident(row, batch));
+		}
+		
+		return allIncs;
+	}
+	
+	/**
+	 * Get the highest Incident record number in the ICMDB.
+	 * 
+	 * @return The highest ICMDB record number, or 0 if the ICMDB is empty
+	 * @throws ITILException If there is a failure while working with the back-end ICMDB
+	 */
+	public int getLastIncidentId() throws ITILException {
+		// Execute the SQL and store the returned rows
+		ArrayList<ITILRow> allRows = executeSQL("SELECT coalesce(max(id), 0) FROM incidents", new ArrayList<Object>());
+		
+		if (allRows.size() > 0) {
+			return (Integer) allRows.get(0).getObject(0);
+		}
+		return 0;
+	}
+	
+	/**
+	 * Get the Incident records with a record number above the specified one, in record number order.
+	 * This is how IncidentChangePoller finds Incidents added by other processes.
+	 * 
+	 * @param id The highest ICMDB record number already seen
+	 * @param limit The maximum number of Incidents to return
+	 * @return The Incidents added after the specified record number
+	 * @throws ITILException If there is a failure while working with the back-end ICMDB
+	 */
+	public ArrayList<Incident> getIncidentsAfterId(int id, int limit) throws ITILException {
+		CIBatch batch = new CIBatch(getCIResolver());
+		
+		// Specify the SQL of this method
+		String sql = "SELECT * FROM incidents WHERE id > ? ORDER BY id LIMIT ?";
+		
+		// Add the Statement args
+		ArrayList<Object> args = new ArrayList<Object>();
+		args.add(id);
+		args.add(limit);
+		
+		// Execute the SQL and store the returned rows
+		ArrayList<ITILRow> allRows = executeSQL(sql, args);
+		
+		// Prepare an ArrayList to store the Incident objects
+		ArrayList<Incident> allIncs = new ArrayList<Incident>();
+		
+		// For each returned row, create an Incident
+		for (ITILRow row : allRows) {
+			allIncs.add(toIncident(row, batch));
+		}
+		
+		return allIncs;
+	}
+	
+	/**
+	 * Get the Incident records resolved at or after the specified time, in resolve date order.
+	 * 
+	 * @param since The earliest resolve date wanted
+	 * @return The Incidents resolved since the specified time
+	 * @throws ITILException If there is a failure while working with the back-end ICMDB
+	 */
+	public ArrayList<Incident> getIncidentsResolvedSince(Timestamp since) throws ITILException {
+		CIBatch batch = new CIBatch(getCIResolver());
+		
+		// Specify the SQL of this method
+		String sql = "SELECT * FROM incidents WHERE resolve_date >= ? ORDER BY resolve_date, id";
+		
+		// Add the Statement args
+		ArrayList<Object> args = new ArrayList<Object>();
+		args.add(since);
+		
+		// Execute the SQL and store the returned rows
+		ArrayList<ITILRow> allRows = executeSQL(sql, args);
+		
+		// Prepare an ArrayList to store the Incident objects
+		ArrayList<Incident> allIncs = new ArrayList<Incident>();
+		
+		// For each returned row, create an Incident
+		for (ITILRow row : allRows) {
+			allIncs.add(toIncident(row, batch));
+		}
+		
+		return allIncs;
+	}
+	
+	/**
+	 * Create an Incident from a full incidents row.
+	 * 
+	 * @param row A row selected with SELECT * FROM incidents
+	 * @param batch The CIBatch of the listing, which loads the ConfigurationItem of the Incident when it is read
+	 * @return The Incident
+	 */
+	Incident toIncident(ITILRow row, CIBatch batch) {
+		Integer id = (Integer) row.getObject(0);
+		Integer ciID = (Integer) row.getObject(1);
+		Timestamp startDate = (Timestamp) row.getObject(2);
+		Timestamp resolveDate = (Timestamp) row.getObject(3);
+		String source = (String) row.getObject(4);
+		Integer severity = (Integer) row.getObject(5);
+		Integer errorNo = (Integer) row.getObject(6);
+		String errorMsg = (String) row.getObject(7);
+		String contactEmail = (String) row.getObject(8);
+		String resolution = (String) row.getObject(10);
+		
+		// Create the Incident, whose ConfigurationItem is loaded with the rest of the batch when first read
+		Incident i = new Incident(null, startDate, resolveDate, source, severity, errorNo, errorMsg, contactEmail, resolution);
+		i.setId(id);
+		batch.add(ciID);
+		i.setCiReference(ciID, batch);
+		
+		// The occurrence columns only exist where the IncidentDeduplicator is in use
+		if (row.size() > 12 && row.getObject(11) != null) {
+			i.setOccurrences((Integer) row.getObject(11));
+			i.setLastSeen((Timestamp) row.getObject(12));
+		}
+		return i;
+	}
+	
 	/**
 	 * Mark an ICMDB Incident record as resolved.  
 	 * 
@@ -348,7 +723,12 @@ public class ICMDB {
 			n.log();
 		}
 		
-		// Specify the SQL of this method
+		// A resolution queues behind spooled Incidents, since it may be for one of them
+		if (spool != null && spool.isPending() && spoolResolution(i)) {
+			return;
+		}
+		
+		// Specify the SQL of this method
 		String sql = "UPDATE incidents SET resolve_date = ?, resolution = ? WHERE id = ?";
 		
 		// Add the Statement args
@@ -358,19 +738,266 @@ public class ICMDB {
 		args.add(i.getId());
 		
 		// Execute the SQL
+		boolean updated = false;
 		try {
 			executeSQL(sql, args);
+			updated = true;
 		} catch (ITILException e) {
 			Notification n = new Notification(this,e);
 			n.log();
+			
+			// The resolution is written and notified when the ICMDB recovers
+			if (spool != null && isUnavailable(e) && spoolResolution(i)) {
+				return;
+			}
+		}
+		
+		if (updated) {
+			incidentResolved(i);
+		} else {
+			// Notify even though the record could not be updated
+			notifyResolved(i);
+		}
+	}
+	
+	/**
+	 * Mark many ICMDB Incident records as resolved in one transaction, using a JDBC batch.  Each
+	 * Incident must carry its ICMDB record number, resolve date and resolution.  If the transaction
+	 * fails, no Incident is resolved and an exception is thrown.
+	 * 
+	 * @param incs The Incident objects that represent the existing ICMDB records
+	 * @return Each Incident, in the order given, mapped to true if its record was resolved, or false if it was invalid or not found
+	 * @throws ITILException If the transaction fails
+	 */
+	public LinkedHashMap<Incident, Boolean> resolveIncidents(Collection<Incident> incs) throws ITILException {
+		LinkedHashMap<Incident, Boolean> outcomes = new LinkedHashMap<Incident, Boolean>();
+		ArrayList<Incident> batch = new ArrayList<Incident>(incs.size());
+		
+		for (Incident i : incs) {
+			outcomes.put(i, false);
+			
+			// Incidents that resolveIncident would complain about are not sent to the database
+			if (! i.isResolved() || i.getResolveDate() == null || i.getId() == null || i.getId() == 0) {
+				Notification n = new Notification(this,"Cannot resolve Incident " + i.getId() + ": it has no record number or resolve date");
+				n.log();
+			} else {
+				batch.add(i);
+			}
+		}
+		
+		if (batch.isEmpty()) {
+			return outcomes;
+		}
+		
+		Connection c = openConnection();
+		PreparedStatement ps = null;
+		try {
+			c.setAutoCommit(false);
+			ps = c.prepareStatement("UPDATE incidents SET resolve_date = ?, resolution = ? WHERE id = ?");
+			for (Incident i : batch) {
+				ps.setTimestamp(1, i.getResolveDate());
+				ps.setString(2, i.getResolution());
+				ps.setInt(3, i.getId());
+				ps.addBatch();
+			}
+			
+			int[] counts = ps.executeBatch();
+			c.commit();
+			
+			for (int b = 0; b < batch.size(); b++) {
+				// A driver may report success without a row count
+				outcomes.put(batch.get(b), counts[b] > 0 || counts[b] == Statement.SUCCESS_NO_INFO);
+			}
+		} catch (SQLException e) {
+			try {
+				c.rollback();
+			} catch (SQLException re) {
+				Notification n = new Notification(this,re);
+				n.log();
+			}
+			Notification n = new Notification(this,e);
+			n.alert();
+			throw new ITILException("Could not resolve ICMDB Incidents", e);
+		} finally {
+			closeQuietly(ps, c);
+		}
+		
+		// The transaction is committed, so notify
+		for (Map.Entry<Incident, Boolean> outcome : outcomes.entrySet()) {
+			if (outcome.getValue()) {
+				incidentResolved(outcome.getKey());
+			}
+		}
+		
+		return outcomes;
+	}
+	
+	/**
+	 * Resolve every unresolved Incident of the specified ConfigurationItems with one UPDATE.
+	 * 
+	 * @param ciIds The CMDB record IDs of the ConfigurationItems
+	 * @param resolveDate The resolve date to record
+	 * @param resolution The resolution to record
+	 * @return The Incidents that were resolved
+	 * @throws ITILException If there is a failure while working with the back-end ICMDB
+	 */
+	public ArrayList<Incident> resolveIncidentsByCI(Collection<Integer> ciIds, Timestamp resolveDate, String resolution) throws ITILException {
+		ArrayList<ITILRow> allRows = new ArrayList<ITILRow>();
+		
+		if (ciIds.isEmpty()) {
+			return new ArrayList<Incident>();
+		}
+		
+		Connection c = openConnection();
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		try {
+			c.setAutoCommit(false);
+			ps = c.prepareStatement("UPDATE incidents SET resolve_date = ?, resolution = ? WHERE ci = ANY(?) AND resolve_date is null RETURNING *");
+			ps.setTimestamp(1, resolveDate);
+			ps.setString(2, resolution);
+			ps.setArray(3, c.createArrayOf("int", ciIds.toArray()));
+			
+			rs = ps.executeQuery();
+			int numCols = rs.getMetaData().getColumnCount();
+			while (rs.next()) {
+				ITILRow row = new ITILRow();
+				for (int colNum=1; colNum<=numCols; colNum++) {
+					row.add(rs.getObject(colNum));
+				}
+				allRows.add(row);
+			}
+			rs.close();
+			rs = null;
+			c.commit();
+		} catch (SQLException e) {
+			try {
+				c.rollback();
+			} catch (SQLException re) {
+				Notification n = new Notification(this,re);
+				n.log();
+			}
+			Notification n = new Notification(this,e);
+			n.alert();
+			throw new ITILException("Could not resolve ICMDB Incidents", e);
+		} finally {
+			try {
+				if (rs != null) {
+					rs.close();
+				}
+			} catch (SQLException e) {
+				Notification n = new Notification(this,e);
+				n.log();
+			}
+			closeQuietly(ps, c);
+		}
+		
+		// The transaction is committed, so notify
+		CIBatch batch = new CIBatch(getCIResolver());
+		ArrayList<Incident> resolved = new ArrayList<Incident>(allRows.size());
+		for (ITILRow row : allRows) {
+			Incident i = toIncident(row, batch);
+			resolved.add(i);
+			incidentResolved(i);
+		}
+		
+		return resolved;
+	}
+	
+	/**
+	 * Everything that follows the commit of an Incident resolution.
+	 * 
+	 * @param i The newly resolved Incident
+	 */
+	void incidentResolved(Incident i) {
+		if (openIndex != null) {
+			openIndex.resolved(i);
+		}
+		
+		if (eventBus != null) {
+			eventBus.publish(IncidentEvent.Type.RESOLVED, i);
+		}
+		
+		if (rollups != null) {
+			rollups.resolved(i);
+		}
+		
+		if (escalator != null) {
+			escalator.resolved(i);
 		}
 		
+		if (correlator != null) {
+			boolean child = i.getId() != null && correlator.isChild(i.getId());
+			correlator.resolved(i);
+			if (child) {
+				return;
+			}
+		}
+		
+		notifyResolved(i);
+	}
+	
+	/**
+	 * Decide whether a failure means the ICMDB could not be reached, rather than that it refused
+	 * what was sent.  Only the first kind is worth spooling, since the second fails again on replay.
+	 * A failure is a connection failure when a SQLException in its causes has an SQLState of class
+	 * 08, or no SQLState at all because the driver failed before the server answered, or when a
+	 * socket failed.
+	 * 
+	 * @param t The failure
+	 * @return True if the ICMDB could not be reached
+	 */
+	static boolean isUnavailable(Throwable t) {
+		for (Throwable c = t; c != null; c = c.getCause() == c ? null : c.getCause()) {
+			if (c instanceof SQLRecoverableException || c instanceof SQLTransientConnectionException
+					|| c instanceof SQLNonTransientConnectionException) {
+				return true;
+			}
+			if (c instanceof SQLException) {
+				String state = ((SQLException) c).getSQLState();
+				if (state == null || state.startsWith("08")) {
+					return true;
+				}
+				// The server answered, so the statement itself was refused
+				return false;
+			}
+			if (c instanceof SocketException || c instanceof SocketTimeoutException || c instanceof UnknownHostException) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Spool a resolution that cannot be written now.
+	 * 
+	 * @param i The resolved Incident
+	 * @return True if the resolution was spooled
+	 */
+	private boolean spoolResolution(Incident i) {
+		try {
+			spool.resolve(i);
+			return true;
+		} catch (ITILException e) {
+			Notification n = new Notification(this,e);
+			n.alert();
+			return false;
+		}
+	}
+	
+	/**
+	 * Send the notifications for a resolved Incident.
+	 * 
+	 * @param i The resolved Incident
+	 */
+	private void notifyResolved(Incident i) {
 		// Notify
 		int severity = i.getSeverity();
 		if (severity < 4) {
 			String msg = "";
 			msg = "Resolved: " + i.getCi().getDescription() + ": " + i.getErrorMsg();
 	        Notification n = new Notification(i.getSource(), msg);
+	        n.setSeverity(severity);
 	
 	        if (severity == 3) {
 	            n.email(i.getContactEmail());
@@ -381,6 +1008,31 @@ public class ICMDB {
 		}
 	}
 	
+	/**
+	 * Close a statement and connection opened with openConnection, logging any failure.
+	 * 
+	 * @param ps The statement, or null
+	 * @param c The connection
+	 */
+	private void closeQuietly(Statement ps, Connection c) {
+		try {
+			if (ps != null) {
+				ps.close();
+			}
+		} catch (SQLException e) {
+			Notification n = new Notification(this,e);
+			n.log();
+		}
+		try {
+			if (c != null) {
+				c.close();
+			}
+		} catch (SQLException e) {
+			Notification n = new Notification(this,e);
+			n.log();
+		}
+	}
+	
 	/**
 	 * Takes a string SQL statement meant to prepare a statement, and the arguments for that statement.
 	 * 
@@ -390,69 +1042,55 @@ public class ICMDB {
 	 * @throws ITILException If the SQL could not be executed
 	 */
 	private ArrayList<ITILRow> executeSQL(String sql, @SuppressWarnings("rawtypes") ArrayList args) throws ITILException {
-		ArrayList<ITILRow> allRows = new ArrayList<ITILRow>();
-		InitialContext ctx = null;
-		DataSource ds = null;
-		PreparedStatement ps = null;
-		ResultSet rs = null;
+		Connection c;
 		
-		if (conn == null) {
-			/*
-			 * Get a connection
-			 */
-			try {
-				// Lookup the context of the JNDI provided at this object's instantiation
-				ctx = new InitialContext();
-				// Obtain the DataSource object 
-				ds = (DataSource)ctx.lookup(Config.icmJDBCJNDI);
-				// Open a connection to the DataSource
-				conn = ds.getConnection();
-			} catch (Exception jdbcException) {
-				// Hello, hum, we may not be in a J2EE container... In that case...
-				try {
-					// Load the driver
-					try {
-						Class.forName(Config.icmDriver);
-					} catch (ClassNotFoundException cnfe) {
-						Notification n = new Notification(this,cnfe);
-						n.alert();
-						// And re-throw the exception as a ITILException
-						throw new ITILException("Cannot get a connection to the ICMDB", cnfe);
-					}
-					
-					// Fire up an EnigmaMachine for database password decrypting
-					EnigmaMachine em = new EnigmaMachine(new File(Config.getCpEnigmaKey()));
-					String dbPassword = "";
-					
-					try {
-						/*
-						 *  This decrypted password is not stored as an instance variable because
-						 *  it would live longer in the memory image of the application, therefore
-						 *  making it more likely that a core dump would reveal it.   
-						 */
-						dbPassword = em.decrypt(Config.icmDBPasswordCipher, Config.icmDBPasswordIV);
-					} catch (Exception decryptionException) {
-						/*
-						 *  There are numerous possible decryption Exceptions.  Log them.
-						 *  See the Connection stanza for knock-on effects.
-						 */
-						Notification n = new Notification(this,decryptionException);
-						n.alert();
-						// And re-throw the exception as a ITILException
-						throw new ITILException("Cannot get a connection to the ICMDB", decryptionException);
-					}
-	
-					conn = DriverManager.getConnection("jdbc:" + Config.icmDBSoftware + "://" + Config.icmDBHost + 
-							":" + new Integer(Config.icmDBPort).toString() + "/" + Config.icmDBName, Config.icmDBUser, dbPassword);
-				} catch (SQLException directConnectionException) {
-					// Log any errors
-					Notification n = new Notification(this,directConnectionException);
-					n.alert();
-					// And re-throw the exception as a ITILException
-					throw new ITILException("Cannot get a connection to the ICMDB", directConnectionException);
+		if (persistConnection) {
+			// The held connection is shared, so statements on it take turns
+			synchronized (this) {
+				if (conn == null) {
+					conn = openConnection();
 				}
-			} 
+				c = conn;
+			}
+			synchronized (c) {
+				return executeSQL(c, sql, args);
+			}
 		}
+		
+		// Otherwise every call has a connection of its own, so background threads never share one
+		synchronized (this) {
+			// A connection handed over with setConnection is used once, as before
+			c = conn;
+			conn = null;
+		}
+		if (c == null) {
+			c = openConnection();
+		}
+		try {
+			return executeSQL(c, sql, args);
+		} finally {
+			try {
+				c.close();
+			} catch (SQLException e) {
+				Notification n = new Notification(this,e);
+				n.log();
+			}
+		}
+	}
+	
+	/**
+	 * Execute a statement on a connection, leaving the connection open.
+	 * 
+	 * @param conn The connection
+	 * @param sql SQL Statement String
+	 * @param args Arguments to be passed into the Statement
+	 * @return ResultSet The results of the SQL
+	 * @throws ITILException If the SQL could not be executed
+	 */
+	private ArrayList<ITILRow> executeSQL(Connection conn, String sql, @SuppressWarnings("rawtypes") ArrayList args) throws ITILException {
+		ArrayList<ITILRow> allRows = new ArrayList<ITILRow>();
+		PreparedStatement ps = null;
+		ResultSet rs = null;
 
 		/*
 		 * Wrap everything in a try catch finally block to cleanup resources no matter what
@@ -549,15 +1187,74 @@ public class ICMDB {
 				Notification n = new Notification(this,e);
 				n.log();
 			}
+		}
+		
+		return allRows; 
+	}
+	
+	/**
+	 * Open a new connection to the ICMDB.  The JNDI DataSource is preferred, and a direct
+	 * JDBC connection is made when we are not running inside a J2EE container.  The caller
+	 * owns the returned Connection and is responsible for closing it.
+	 * 
+	 * @return A new Connection to the ICMDB
+	 * @throws ITILException If a connection cannot be obtained
+	 */
+	Connection openConnection() throws ITILException {
+		InitialContext ctx = null;
+		
+		try {
+			// Lookup the context of the JNDI provided at this object's instantiation
+			ctx = new InitialContext();
+			// Obtain the DataSource object 
+			DataSource ds = (DataSource)ctx.lookup(Config.icmJDBCJNDI);
+			// Open a connection to the DataSource
+			return ds.getConnection();
+		} catch (Exception jdbcException) {
+			// Hello, hum, we may not be in a J2EE container... In that case...
 			try {
-				if (conn != null && ! persistConnection) {
-					conn.close();
-					conn = null;
+				// Load the driver
+				try {
+					Class.forName(Config.icmDriver);
+				} catch (ClassNotFoundException cnfe) {
+					Notification n = new Notification(this,cnfe);
+					n.alert();
+					// And re-throw the exception as a ITILException
+					throw new ITILException("Cannot get a connection to the ICMDB", cnfe);
 				}
-			} catch (SQLException e) {
-				Notification n = new Notification(this,e);
-				n.log();
+				
+				// Fire up an EnigmaMachine for database password decrypting
+				EnigmaMachine em = new EnigmaMachine(new File(Config.getCpEnigmaKey()));
+				String dbPassword = "";
+				
+				try {
+					/*
+					 *  This decrypted password is not stored as an instance variable because
+					 *  it would live longer in the memory image of the application, therefore
+					 *  making it more likely that a core dump would reveal it.   
+					 */
+					dbPassword = em.decrypt(Config.icmDBPasswordCipher, Config.icmDBPasswordIV);
+				} catch (Exception decryptionException) {
+					/*
+					 *  There are numerous possible decryption Exceptions.  Log them.
+					 *  See the Connection stanza for knock-on effects.
+					 */
+					Notification n = new Notification(this,decryptionException);
+					n.alert();
+					// And re-throw the exception as a ITILException
+					throw new ITILException("Cannot get a connection to the ICMDB", decryptionException);
+				}
+
+				return DriverManager.getConnection("jdbc:" + Config.icmDBSoftware + "://" + Config.icmDBHost + 
+						":" + new Integer(Config.icmDBPort).toString() + "/" + Config.icmDBName, Config.icmDBUser, dbPassword);
+			} catch (SQLException directConnectionException) {
+				// Log any errors
+				Notification n = new Notification(this,directConnectionException);
+				n.alert();
+				// And re-throw the exception as a ITILException
+				throw new ITILException("Cannot get a connection to the ICMDB", directConnectionException);
 			}
+		} finally {
 			try {
 				if (ctx != null) {
 					ctx.close();
@@ -568,8 +1265,6 @@ public class ICMDB {
 				n.log();
 			}
 		}
-		
-		return allRows; 
 	}
 	
 	/**
@@ -578,7 +1273,7 @@ public class ICMDB {
 	 * 
 	 * @param conn
 	 */
-	public void setConnection(Connection conn) {
+	public synchronized void setConnection(Connection conn) {
 		this.conn = conn;
 	}
 	
@@ -588,10 +1283,203 @@ public class ICMDB {
 	 * 
 	 * @return
 	 */
-	public Connection getConnection() {
+	public synchronized Connection getConnection() {
 		return conn;
 	}
 	
+	/**
+	 * Get the IncidentDeduplicator that collapses repeated Incidents, or null if none is set.
+	 * 
+	 * @return the deduplicator
+	 */
+	public IncidentDeduplicator getDeduplicator() {
+		return deduplicator;
+	}
+	
+	/**
+	 * Set an IncidentDeduplicator to collapse repeated Incidents before they are written.  
+	 * This is optional.  If not set, every Incident is written.
+	 * 
+	 * @param deduplicator The IncidentDeduplicator to use, or null for none
+	 */
+	public void setDeduplicator(IncidentDeduplicator deduplicator) {
+		this.deduplicator = deduplicator;
+	}
+	
+	/**
+	 * Get the OpenIncidentIndex kept current by this ICMDB, or null if none is set.
+	 * 
+	 * @return the openIndex
+	 */
+	public OpenIncidentIndex getOpenIndex() {
+		return openIndex;
+	}
+	
+	/**
+	 * Set an OpenIncidentIndex for this ICMDB to keep current as Incidents are added and resolved.
+	 * Once the index is seeded, getOpenIncidents is answered from it.  This is optional.
+	 * 
+	 * @param openIndex The OpenIncidentIndex to maintain, or null for none
+	 */
+	public void setOpenIndex(OpenIncidentIndex openIndex) {
+		this.openIndex = openIndex;
+	}
+	
+	/**
+	 * Get the IncidentArchive that holds this ICMDB's older Incidents, or null if none is set.
+	 * 
+	 * @return the archive
+	 */
+	public IncidentArchive getArchive() {
+		return archive;
+	}
+	
+	/**
+	 * Set an IncidentArchive for this ICMDB.  getIncByCI and getIncByID then include archived
+	 * Incidents as well as those still in the ICMDB.  This is optional.
+	 * 
+	 * @param archive The IncidentArchive to read from, or null for none
+	 */
+	public void setArchive(IncidentArchive archive) {
+		this.archive = archive;
+	}
+	
+	/**
+	 * Get the IncidentCorrelator that groups this ICMDB's Incidents, or null if none is set.
+	 * 
+	 * @return the correlator
+	 */
+	public IncidentCorrelator getCorrelator() {
+		return correlator;
+	}
+	
+	/**
+	 * Set an IncidentCorrelator for this ICMDB.  Incidents it attaches to a root Incident are still
+	 * written, but do not notify.  This is optional.
+	 * 
+	 * @param correlator The IncidentCorrelator to use, or null for none
+	 */
+	public void setCorrelator(IncidentCorrelator correlator) {
+		this.correlator = correlator;
+	}
+	
+	/**
+	 * Get the IncidentEscalator that pages again for unresolved Incidents, or null if none is set.
+	 * 
+	 * @return the escalator
+	 */
+	public IncidentEscalator getEscalator() {
+		return escalator;
+	}
+	
+	/**
+	 * Set an IncidentEscalator for this ICMDB.  The severity 1 and 2 Incidents that notify are
+	 * watched by it until resolved.  This is optional.
+	 * 
+	 * @param escalator The IncidentEscalator to use, or null for none
+	 */
+	public void setEscalator(IncidentEscalator escalator) {
+		this.escalator = escalator;
+	}
+	
+	/**
+	 * Subscribe a listener to the creation and resolution of the Incidents that match a filter.
+	 * Events are delivered asynchronously, through an IncidentEventBus with two delivery threads
+	 * that is created on the first subscription unless one was set.
+	 * 
+	 * @param filter The IncidentFilter, or null for every Incident
+	 * @param listener The IncidentListener
+	 * @param capacity The maximum number of events waiting for the listener before the oldest are dropped
+	 * @return The Subscription, used to unsubscribe
+	 */
+	public IncidentEventBus.Subscription subscribe(IncidentFilter filter, IncidentListener listener, int capacity) {
+		synchronized (this) {
+			if (eventBus == null) {
+				eventBus = new IncidentEventBus(2);
+			}
+		}
+		return eventBus.subscribe(filter, listener, capacity);
+	}
+	
+	/**
+	 * Get the IncidentEventBus this ICMDB publishes to, or null if none is set.
+	 * 
+	 * @return the eventBus
+	 */
+	public IncidentEventBus getEventBus() {
+		return eventBus;
+	}
+	
+	/**
+	 * Set the IncidentEventBus for this ICMDB to publish Incident creation and resolution to.
+	 * 
+	 * @param eventBus The IncidentEventBus to publish to, or null for none
+	 */
+	public void setEventBus(IncidentEventBus eventBus) {
+		this.eventBus = eventBus;
+	}
+	
+	/**
+	 * Get the IncidentSpool that keeps Incidents while the ICMDB is unreachable, or null if none is set.
+	 * 
+	 * @return the spool
+	 */
+	public IncidentSpool getSpool() {
+		return spool;
+	}
+	
+	/**
+	 * Set an IncidentSpool for this ICMDB.  Incidents and resolutions that cannot be written are
+	 * then spooled locally instead of lost.  This is optional.
+	 * 
+	 * @param spool The IncidentSpool to use, or null for none
+	 */
+	public void setSpool(IncidentSpool spool) {
+		this.spool = spool;
+	}
+	
+	/**
+	 * Get the IncidentRollups kept current by this ICMDB, or null if none is set.
+	 * 
+	 * @return the rollups
+	 */
+	public IncidentRollups getRollups() {
+		return rollups;
+	}
+	
+	/**
+	 * Set an IncidentRollups for this ICMDB to count Incidents into as they are added and resolved.
+	 * This is optional.
+	 * 
+	 * @param rollups The IncidentRollups to maintain, or null for none
+	 */
+	public void setRollups(IncidentRollups rollups) {
+		this.rollups = rollups;
+	}
+	
+	/**
+	 * Get the CIResolver that loads the ConfigurationItems of Incidents read from this ICMDB.  Unless
+	 * one was set, this is a CachingCIResolver that reads the CMDB and caches nothing.
+	 * 
+	 * @return the ciResolver
+	 */
+	public synchronized CIResolver getCIResolver() {
+		if (ciResolver == null) {
+			ciResolver = new CachingCIResolver(new CMDB(), 0, 1);
+		}
+		return ciResolver;
+	}
+	
+	/**
+	 * Set the CIResolver that loads the ConfigurationItems of Incidents read from this ICMDB, for
+	 * example a CachingCIResolver with a time to live.
+	 * 
+	 * @param ciResolver The CIResolver to use, or null for the default
+	 */
+	public synchronized void setCIResolver(CIResolver ciResolver) {
+		this.ciResolver = ciResolver;
+	}
+	
 	/**
 	 * Return the persistConnection value.  If true, the CMDB object will hold
 	 * open its connection to the CMDB DB.  If false, it will close the connection
@@ -43,4 +43,13 @@ public class ITILRow {
     public Object getObject(int index) {
             return fields.get(index);
     }
+
+    /**
+     * Get the number of fields in the ITILRow
+     *
+     * @return int The number of fields
+     */
+    public int size() {
+            return fields.size();
+    }
 }
@@ -2,6 +2,8 @@ package com.cloudfordev.itil;
 
 import java.sql.Timestamp;
 
+import com.cloudfordev.util.Notification;
+
 /**
  * An unplanned interruption to an IT service or reduction in
  * the quality of an IT service. Failure of a configuration item that has not yet affected
@@ -15,7 +17,9 @@ import java.sql.Timestamp;
 public class Incident {
 	
 	private Integer id = 0;
-	private ConfigurationItem ci = null;
+	private volatile ConfigurationItem ci = null;
+	private Integer ciId = null;
+	private CIResolver ciResolver = null;
 	private Timestamp startDate = null;
 	private Timestamp resolveDate = null;
 	private String source = "";
@@ -25,6 +29,9 @@ public class Incident {
 	private String contactEmail = "";
 	private boolean isResolved = false;
 	private String resolution = "";
+	private int occurrences = 1;
+	private Timestamp lastSeen = null;
+	private String generationHash = null;
 	
 	/**
 	 * Create an unresolved Incident</br>
@@ -104,10 +111,35 @@ public class Incident {
 	}
 
 	/**
+	 * Get the ConfigurationItem of this Incident.  An Incident read from the ICMDB loads it through
+	 * its CIResolver on the first call that succeeds.  If it cannot be loaded, the failure is logged
+	 * and a ConfigurationItem holding only the CMDB record ID is returned for this call alone, so
+	 * the next call tries again.
+	 * 
 	 * @return the ci
 	 */
 	public ConfigurationItem getCi() {
-		return ci;
+		ConfigurationItem loaded = ci;
+		if (loaded != null || ciResolver == null) {
+			return loaded;
+		}
+		
+		synchronized (this) {
+			if (ci == null) {
+				try {
+					ci = ciResolver.resolve(ciId);
+				} catch (ITILException e) {
+					Notification n = new Notification(this, e);
+					n.log();
+					
+					// Retired or unreachable, so fall back to what is known, but only for now
+					ConfigurationItem unknown = new ConfigurationItem(null, "CI " + ciId);
+					unknown.setId(ciId);
+					return unknown;
+				}
+			}
+			return ci;
+		}
 	}
 
 	/**
@@ -115,6 +147,40 @@ public class Incident {
 	 */
 	public void setCi(ConfigurationItem ci) {
 		this.ci = ci;
+		this.ciId = ci == null ? null : ci.getId();
+		this.ciResolver = null;
+	}
+	
+	/**
+	 * Get the CMDB record ID of the ConfigurationItem of this Incident, without loading the ConfigurationItem.
+	 * 
+	 * @return the CMDB record ID of the ci, or null if it is not known
+	 */
+	public Integer getCiId() {
+		ConfigurationItem loaded = ci;
+		if (loaded != null) {
+			return loaded.getId();
+		}
+		return ciId;
+	}
+	
+	/**
+	 * Refer to the ConfigurationItem of this Incident by CMDB record ID, to be loaded when first read.
+	 * 
+	 * @param ciId The CMDB record ID of the ConfigurationItem
+	 * @param resolver The CIResolver that loads it
+	 */
+	void setCiReference(Integer ciId, CIResolver resolver) {
+		this.ci = null;
+		this.ciId = ciId;
+		this.ciResolver = resolver;
+	}
+	
+	/**
+	 * @return True if the ConfigurationItem is loaded, so getCi will not read the CMDB
+	 */
+	boolean isCiLoaded() {
+		return ci != null || ciResolver == null;
 	}
 
 	/**
@@ -236,4 +302,65 @@ public class Incident {
 	public void setResolution(String resolution) {
 		this.resolution = resolution;
 	}
+
+	/**
+	 * @return The number of times this Incident was reported, counting repeats that were collapsed into it
+	 */
+	public int getOccurrences() {
+		return occurrences;
+	}
+
+	/**
+	 * @param occurrences The number of times this Incident was reported
+	 */
+	public void setOccurrences(int occurrences) {
+		this.occurrences = occurrences;
+	}
+
+	/**
+	 * @return The time of the most recent report of this Incident, or null if it was reported only once
+	 */
+	public Timestamp getLastSeen() {
+		return lastSeen;
+	}
+
+	/**
+	 * @param lastSeen The time of the most recent report of this Incident
+	 */
+	public void setLastSeen(Timestamp lastSeen) {
+		this.lastSeen = lastSeen;
+	}
+
+	/**
+	 * @return The generation hash this Incident was spooled with while the ICMDB was unreachable, or null
+	 */
+	String getGenerationHash() {
+		return generationHash;
+	}
+
+	/**
+	 * @param generationHash The generation hash this Incident was spooled with
+	 */
+	void setGenerationHash(String generationHash) {
+		this.generationHash = generationHash;
+	}
+
+	/**
+	 * Copy this Incident, so that a caller may change the copy without changing an Incident held
+	 * elsewhere, such as in an OpenIncidentIndex.  The ConfigurationItem is shared, or loaded
+	 * separately by the copy if it is not loaded yet.
+	 * 
+	 * @return The copy
+	 */
+	Incident copy() {
+		Incident c = new Incident(ci, startDate, resolveDate, source, severity, errorNo, errorMsg, contactEmail, resolution);
+		c.id = id;
+		c.ciId = ciId;
+		c.ciResolver = ciResolver;
+		c.isResolved = isResolved;
+		c.occurrences = occurrences;
+		c.lastSeen = lastSeen;
+		c.generationHash = generationHash;
+		return c;
+	}
 }
@@ -0,0 +1,252 @@
+package com.cloudfordev.itil;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.cloudfordev.util.Notification;
+
+/**
+ * IncidentAnalytics computes AvailabilityMetrics per ConfigurationItem, per CI type and per
+ * severity from the ICMDB in a single pass.<br>
+ * <br>
+ * Incidents are streamed through a server-side cursor ordered by ConfigurationItem and start
+ * date, so overlapping Incidents can be merged into outages as they arrive.  Only the outage in
+ * progress for the current ConfigurationItem is held, and memory grows with the number of
+ * ConfigurationItems rather than the number of Incidents.<br>
+ * <br>
+ * Incidents are clipped to the reporting period, and unresolved Incidents are treated as running
+ * until the end of the period or now, whichever is earlier.  Per severity metrics merge each
+ * severity's Incidents separately, and cover every active ConfigurationItem in the CMDB, as the
+ * per type metrics cover every active ConfigurationItem of the type.  ConfigurationItems without
+ * Incidents have no per CI entry and were fully available.
+ *
+ * @author u1001
+ * @version 1.0
+ */
+public class IncidentAnalytics {
+
+	private static final String SELECT_SQL = "SELECT ci, start_date, resolve_date, severity FROM incidents "
+			+ "WHERE start_date < ? AND (resolve_date is null OR resolve_date > ?) ORDER BY ci, start_date";
+
+	private ICMDB icmdb;
+	private CMDB cmdb;
+	private int fetchSize = 1000;
+
+	private HashMap<Integer, AvailabilityMetrics> byCI = new HashMap<Integer, AvailabilityMetrics>();
+	private HashMap<Integer, AvailabilityMetrics> byType = new HashMap<Integer, AvailabilityMetrics>();
+	private HashMap<Integer, AvailabilityMetrics> bySeverity = new HashMap<Integer, AvailabilityMetrics>();
+
+	/**
+	 * Create a new IncidentAnalytics.
+	 *
+	 * @param icmdb The ICMDB to read Incidents from
+	 * @param cmdb The CMDB to read CI types from
+	 */
+	public IncidentAnalytics(ICMDB icmdb, CMDB cmdb) {
+		this.icmdb = icmdb;
+		this.cmdb = cmdb;
+	}
+
+	/**
+	 * Compute the metrics for a reporting period, replacing any earlier results.
+	 *
+	 * @param from The start of the period
+	 * @param to The end of the period
+	 * @throws ITILException If there is a failure while working with the back-end ICMDB or CMDB
+	 */
+	public void compute(Timestamp from, Timestamp to) throws ITILException {
+		long start = from.getTime();
+		long end = Math.min(to.getTime(), System.currentTimeMillis());
+		long period = Math.max(0, end - start);
+
+		byCI = new HashMap<Integer, AvailabilityMetrics>();
+		byType = new HashMap<Integer, AvailabilityMetrics>();
+		bySeverity = new HashMap<Integer, AvailabilityMetrics>();
+
+		// The CI types live in the CMDB, so they cannot be joined in the ICMDB query
+		HashMap<Integer, Integer> typeOf = cmdb.getTypeMap(false);
+		HashMap<Integer, Integer> typeCounts = new HashMap<Integer, Integer>();
+		for (Integer type : typeOf.values()) {
+			Integer count = typeCounts.get(type);
+			typeCounts.put(type, count == null ? 1 : count + 1);
+		}
+
+		Connection conn = icmdb.openConnection();
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+
+		try {
+			// PostgreSQL only streams with a fetch size when autocommit is off
+			conn.setAutoCommit(false);
+			ps = conn.prepareStatement(SELECT_SQL, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			ps.setFetchSize(fetchSize);
+			ps.setTimestamp(1, to);
+			ps.setTimestamp(2, from);
+			rs = ps.executeQuery();
+
+			int currentCI = 0;
+			boolean haveCI = false;
+			Outage overall = new Outage();
+			HashMap<Integer, Outage> perSeverity = new HashMap<Integer, Outage>();
+			AvailabilityMetrics ciMetrics = null;
+
+			while (rs.next()) {
+				int ci = rs.getInt(1);
+				Timestamp startDate = rs.getTimestamp(2);
+				Timestamp resolveDate = rs.getTimestamp(3);
+				int severity = rs.getInt(4);
+
+				if (! haveCI || ci != currentCI) {
+					// The previous CI is complete, so close its outages
+					if (haveCI) {
+						finishCI(overall, perSeverity, ciMetrics);
+					}
+					currentCI = ci;
+					haveCI = true;
+					ciMetrics = new AvailabilityMetrics(period, 1);
+					byCI.put(ci, ciMetrics);
+				}
+
+				// Clip the Incident to the period
+				long s = Math.max(start, startDate.getTime());
+				long e = Math.min(end, resolveDate == null ? end : resolveDate.getTime());
+				if (e <= s) {
+					continue;
+				}
+
+				overall.extend(s, e, ciMetrics);
+
+				Outage sev = perSeverity.get(severity);
+				if (sev == null) {
+					sev = new Outage();
+					perSeverity.put(severity, sev);
+				}
+				sev.extend(s, e, severityMetrics(severity, period, typeOf.size()));
+			}
+
+			if (haveCI) {
+				finishCI(overall, perSeverity, ciMetrics);
+			}
+
+			conn.commit();
+		} catch (SQLException e) {
+			Notification n = new Notification(this, e);
+			n.alert();
+			throw new ITILException("Could not read the ICMDB for analytics", e);
+		} finally {
+			try {
+				if (rs != null) {
+					rs.close();
+				}
+				if (ps != null) {
+					ps.close();
+				}
+			} catch (SQLException e) {
+				Notification n = new Notification(this, e);
+				n.log();
+			}
+			try {
+				conn.close();
+			} catch (SQLException e) {
+				Notification n = new Notification(this, e);
+				n.log();
+			}
+		}
+
+		// Roll the per CI metrics up into their types
+		for (Map.Entry<Integer, Integer> e : typeCounts.entrySet()) {
+			byType.put(e.getKey(), new AvailabilityMetrics(period, e.getValue()));
+		}
+		for (Map.Entry<Integer, AvailabilityMetrics> e : byCI.entrySet()) {
+			Integer type = typeOf.get(e.getKey());
+			if (type == null) {
+				// A retired CI still has history
+				continue;
+			}
+			byType.get(type).add(e.getValue());
+		}
+	}
+
+	/*
+	 * Close the outages still open for a CI
+	 */
+	private void finishCI(Outage overall, HashMap<Integer, Outage> perSeverity, AvailabilityMetrics ciMetrics) {
+		overall.close(ciMetrics);
+		for (Map.Entry<Integer, Outage> e : perSeverity.entrySet()) {
+			e.getValue().close(bySeverity.get(e.getKey()));
+		}
+		perSeverity.clear();
+	}
+
+	private AvailabilityMetrics severityMetrics(int severity, long period, int items) {
+		AvailabilityMetrics m = bySeverity.get(severity);
+		if (m == null) {
+			m = new AvailabilityMetrics(period, items);
+			bySeverity.put(severity, m);
+		}
+		return m;
+	}
+
+	/**
+	 * The outage being merged for the current ConfigurationItem.  Incidents arrive in start date
+	 * order, so an Incident either overlaps the outage and extends it, or starts a new one.
+	 */
+	private static class Outage {
+		boolean open = false;
+		long start;
+		long end;
+
+		void extend(long s, long e, AvailabilityMetrics metrics) {
+			if (open && s <= end) {
+				end = Math.max(end, e);
+				return;
+			}
+			close(metrics);
+			open = true;
+			start = s;
+			end = e;
+		}
+
+		void close(AvailabilityMetrics metrics) {
+			if (open) {
+				metrics.addOutage(end - start);
+				open = false;
+			}
+		}
+	}
+
+	/**
+	 * @return The metrics of each ConfigurationItem with Incidents in the period, by CMDB record ID
+	 */
+	public HashMap<Integer, AvailabilityMetrics> getByCI() {
+		return byCI;
+	}
+
+	/**
+	 * @return The metrics of each CI type, by CI type ID
+	 */
+	public HashMap<Integer, AvailabilityMetrics> getByType() {
+		return byType;
+	}
+
+	/**
+	 * @return The metrics of each severity with Incidents in the period
+	 */
+	public HashMap<Integer, AvailabilityMetrics> getBySeverity() {
+		return bySeverity;
+	}
+
+	/**
+	 * Set the number of rows fetched from the server-side cursor at a time.
+	 *
+	 * @param fetchSize The fetch size
+	 */
+	public void setFetchSize(int fetchSize) {
+		this.fetchSize = Math.max(1, fetchSize);
+	}
+}
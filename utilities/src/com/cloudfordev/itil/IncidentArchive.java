@@ -0,0 +1,692 @@
+package com.cloudfordev.itil;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.PriorityQueue;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.cloudfordev.util.Notification;
+
+/**
+ * IncidentArchive moves old, resolved Incidents out of the ICMDB into compressed segment files,
+ * and reads them back for history queries.<br>
+ * <br>
+ * Each archive run streams the resolved Incidents older than the retention period, ordered by
+ * start date, into one segment per calendar month of start date.  A segment is a gzip file of
+ * Incident records that is written once, synced, and never modified.  Next to it is a small index
+ * holding the range of start dates and record numbers, and the sorted CMDB record IDs of the
+ * ConfigurationItems in the segment.  The indexes of every segment are kept in memory, so a query
+ * only decompresses segments that hold the ConfigurationItem and overlap the requested range.<br>
+ * <br>
+ * Incidents are deleted from the ICMDB only after their segment is safely on disk.  If a run is
+ * interrupted between the two, the next run archives the same Incidents again, and readers skip
+ * the duplicate record numbers.
+ *
+ * @author u1001
+ * @version 1.0
+ */
+public class IncidentArchive {
+
+	private static final String SELECT_SQL = "SELECT * FROM incidents WHERE resolve_date is not null "
+			+ "AND resolve_date < now() - ? * INTERVAL '1 day' ORDER BY start_date, id";
+	private static final int SEGMENT_VERSION = 1;
+
+	private final File directory;
+	private final ICMDB icmdb;
+	private final CopyOnWriteArrayList<Segment> segments = new CopyOnWriteArrayList<Segment>();
+	private int fetchSize = 1000;
+
+	/**
+	 * Open an IncidentArchive, loading the index of every segment already in the directory.
+	 *
+	 * @param directory The directory that holds the segment files.  It is created if it does not exist.
+	 * @param icmdb The ICMDB that Incidents are archived from
+	 * @throws ITILException If the directory or an index cannot be read
+	 */
+	public IncidentArchive(File directory, ICMDB icmdb) throws ITILException {
+		this.directory = directory;
+		this.icmdb = icmdb;
+
+		if (! directory.isDirectory() && ! directory.mkdirs()) {
+			throw new ITILException("Cannot create the incident archive directory " + directory);
+		}
+
+		// A run interrupted while writing leaves temporary files, and a segment without its index
+		File[] leftovers = directory.listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.endsWith(".tmp") || (name.endsWith(".seg")
+						&& ! new File(dir, name.substring(0, name.length() - ".seg".length()) + ".idx").exists());
+			}
+		});
+		for (File leftover : leftovers) {
+			// Their Incidents were never deleted from the ICMDB, so the next run archives them again
+			if (! leftover.delete()) {
+				Notification n = new Notification(this, "Could not delete the unfinished incident archive file " + leftover);
+				n.log();
+			}
+		}
+
+		File[] indexes = directory.listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.endsWith(".idx");
+			}
+		});
+
+		try {
+			for (File idx : indexes) {
+				Segment s = Segment.readIndex(idx);
+				if (! new File(directory, s.name + ".seg").exists()) {
+					// An index only counts alongside its data file
+					continue;
+				}
+				segments.add(s);
+			}
+		} catch (IOException e) {
+			throw new ITILException("Cannot read the incident archive index", e);
+		}
+	}
+
+	/**
+	 * Move resolved Incidents older than the retention period from the ICMDB into new segments.
+	 *
+	 * @param days The number of days after resolution that an Incident stays in the ICMDB
+	 * @return The number of Incidents archived
+	 * @throws ITILException If the ICMDB cannot be read or a segment cannot be written
+	 */
+	public synchronized long archive(int days) throws ITILException {
+		long archived = 0;
+		Connection reader = icmdb.openConnection();
+		Connection deleter = null;
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		SegmentWriter writer = null;
+
+		try {
+			// The cursor needs its own transaction, so deletes are committed on a second connection
+			deleter = icmdb.openConnection();
+			reader.setAutoCommit(false);
+
+			ps = reader.prepareStatement(SELECT_SQL, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			ps.setFetchSize(fetchSize);
+			ps.setInt(1, days);
+			rs = ps.executeQuery();
+
+			int numCols = rs.getMetaData().getColumnCount();
+			while (rs.next()) {
+				Timestamp startDate = rs.getTimestamp(3);
+				String partition = partitionOf(startDate);
+
+				if (writer != null && ! writer.partition.equals(partition)) {
+					SegmentWriter done = writer;
+					writer = null;
+					archived += commit(done, deleter);
+				}
+				if (writer == null) {
+					writer = new SegmentWriter(directory, partition);
+				}
+
+				writer.write(rs, numCols);
+			}
+
+			if (writer != null) {
+				SegmentWriter done = writer;
+				writer = null;
+				archived += commit(done, deleter);
+			}
+
+			reader.commit();
+		} catch (IOException e) {
+			throw new ITILException("Could not write an incident archive segment", e);
+		} catch (SQLException e) {
+			Notification n = new Notification(this, e);
+			n.alert();
+			throw new ITILException("Could not archive ICMDB Incidents", e);
+		} finally {
+			if (writer != null) {
+				// An unfinished segment is never renamed into place, so it is simply discarded
+				writer.abandon();
+			}
+			try {
+				if (rs != null) {
+					rs.close();
+				}
+				if (ps != null) {
+					ps.close();
+				}
+			} catch (SQLException e) {
+				Notification n = new Notification(this, e);
+				n.log();
+			}
+			try {
+				reader.close();
+				if (deleter != null) {
+					deleter.close();
+				}
+			} catch (SQLException e) {
+				Notification n = new Notification(this, e);
+				n.log();
+			}
+		}
+
+		if (archived > 0) {
+			Notification n = new Notification(this, "Archived " + archived + " Incidents older than " + days + " days");
+			n.log();
+		}
+		return archived;
+	}
+
+	/**
+	 * Read the archived Incidents of a ConfigurationItem.
+	 *
+	 * @param ci The ConfigurationItem
+	 * @param from The earliest start date wanted, or null for no lower bound
+	 * @param to The start date before which Incidents are wanted, or null for no upper bound
+	 * @return The archived Incidents, ordered by start date
+	 * @throws ITILException If a segment cannot be read
+	 */
+	public ArrayList<Incident> read(ConfigurationItem ci, Timestamp from, Timestamp to) throws ITILException {
+		ArrayList<Incident> incs = new ArrayList<Incident>();
+		HashSet<Integer> seen = new HashSet<Integer>();
+		long lo = from == null ? Long.MIN_VALUE : from.getTime();
+		long hi = to == null ? Long.MAX_VALUE : to.getTime();
+		int ciId = ci.getId();
+
+		for (Segment segment : sortedSegments()) {
+			// Skip the segments that cannot hold a match without opening them
+			if (segment.maxStart < lo || segment.minStart >= hi || Arrays.binarySearch(segment.cis, ciId) < 0) {
+				continue;
+			}
+
+			try {
+				DataInputStream in = segment.open(directory);
+				try {
+					while (true) {
+						Record r = Record.read(in);
+						if (r == null) {
+							break;
+						}
+						if (r.ci == ciId && r.startDate >= lo && r.startDate < hi && seen.add(r.id)) {
+							incs.add(r.toIncident(ci));
+						}
+					}
+				} finally {
+					in.close();
+				}
+			} catch (IOException e) {
+				throw new ITILException("Could not read incident archive segment " + segment.name, e);
+			}
+		}
+
+		return incs;
+	}
+
+	/**
+	 * Open a reader over the archived Incidents of a ConfigurationItem, newest first, for merging
+	 * with the Incidents still in the ICMDB.  Segments are only decompressed as the reader reaches
+	 * them, and one at a time as far as their start dates allow.
+	 *
+	 * @param ciId The CMDB record ID of the ConfigurationItem
+	 * @param from The earliest start date wanted, or null for no lower bound
+	 * @param to The start date before which Incidents are wanted, or null for no upper bound
+	 * @param severities The severities wanted, or null for every severity
+	 * @param afterStart The start date of a keyset cursor, which the reader continues strictly after, or null for none
+	 * @param afterId The record number of the keyset cursor
+	 * @return The reader
+	 */
+	History history(int ciId, Timestamp from, Timestamp to, Integer[] severities, Timestamp afterStart, int afterId) {
+		ArrayList<Segment> wanted = new ArrayList<Segment>();
+		for (Segment segment : segments) {
+			// Skip the segments that cannot hold a match without opening them
+			if ((from != null && segment.maxStart < from.getTime()) || (to != null && segment.minStart >= to.getTime())
+					|| (afterStart != null && segment.minStart > afterStart.getTime()) || Arrays.binarySearch(segment.cis, ciId) < 0) {
+				continue;
+			}
+			wanted.add(segment);
+		}
+		Collections.sort(wanted, new Comparator<Segment>() {
+			public int compare(Segment a, Segment b) {
+				return a.maxStart > b.maxStart ? -1 : (a.maxStart < b.maxStart ? 1 : 0);
+			}
+		});
+		return new History(wanted, ciId, from, to, severities, afterStart, afterId);
+	}
+
+	/**
+	 * Find an archived Incident by its ICMDB record number.
+	 *
+	 * @param id The ICMDB record number
+	 * @param resolver The CIResolver that loads the ConfigurationItem of the Incident when it is read
+	 * @return The Incident, or null if it is not in the archive
+	 * @throws ITILException If a segment cannot be read
+	 */
+	public Incident find(int id, CIResolver resolver) throws ITILException {
+		for (Segment segment : segments) {
+			if (id < segment.minId || id > segment.maxId) {
+				continue;
+			}
+
+			try {
+				DataInputStream in = segment.open(directory);
+				try {
+					Record r;
+					while ((r = Record.read(in)) != null) {
+						if (r.id == id) {
+							Incident i = r.toIncident(null);
+							i.setCiReference(r.ci, resolver);
+							return i;
+						}
+					}
+				} finally {
+					in.close();
+				}
+			} catch (IOException e) {
+				throw new ITILException("Could not read incident archive segment " + segment.name, e);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return The number of segments in the archive
+	 */
+	public int getSegmentCount() {
+		return segments.size();
+	}
+
+	/**
+	 * Set the number of rows fetched from the server-side cursor at a time while archiving.
+	 *
+	 * @param fetchSize The fetch size
+	 */
+	public void setFetchSize(int fetchSize) {
+		this.fetchSize = Math.max(1, fetchSize);
+	}
+
+	/*
+	 * Finish a segment, put it in place, and only then delete its Incidents from the ICMDB
+	 */
+	private long commit(SegmentWriter writer, Connection deleter) throws IOException, SQLException {
+		Segment segment;
+		try {
+			segment = writer.finish();
+		} catch (IOException e) {
+			writer.abandon();
+			throw e;
+		}
+		segments.add(segment);
+
+		PreparedStatement ps = deleter.prepareStatement("DELETE FROM incidents WHERE id = ANY(?)");
+		try {
+			ps.setArray(1, deleter.createArrayOf("int", writer.ids.toArray()));
+			ps.executeUpdate();
+		} finally {
+			ps.close();
+		}
+
+		return segment.count;
+	}
+
+	private ArrayList<Segment> sortedSegments() {
+		ArrayList<Segment> sorted = new ArrayList<Segment>(segments);
+		Collections.sort(sorted, new Comparator<Segment>() {
+			public int compare(Segment a, Segment b) {
+				return a.minStart < b.minStart ? -1 : (a.minStart > b.minStart ? 1 : 0);
+			}
+		});
+		return sorted;
+	}
+
+	private static String partitionOf(Timestamp startDate) {
+		return new SimpleDateFormat("yyyyMM").format(new Date(startDate.getTime()));
+	}
+
+	/**
+	 * The in-memory index of one segment file.
+	 */
+	private static class Segment {
+		String name;
+		long minStart;
+		long maxStart;
+		int minId;
+		int maxId;
+		int count;
+		int[] cis;
+
+		DataInputStream open(File directory) throws IOException {
+			return new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(new File(directory, name + ".seg")), 64 * 1024)));
+		}
+
+		static Segment readIndex(File idx) throws IOException {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(idx)));
+			try {
+				if (in.readInt() != SEGMENT_VERSION) {
+					throw new IOException("Unknown incident archive index version in " + idx);
+				}
+				Segment s = new Segment();
+				String file = idx.getName();
+				s.name = file.substring(0, file.length() - ".idx".length());
+				s.minStart = in.readLong();
+				s.maxStart = in.readLong();
+				s.minId = in.readInt();
+				s.maxId = in.readInt();
+				s.count = in.readInt();
+				s.cis = new int[in.readInt()];
+				for (int i = 0; i < s.cis.length; i++) {
+					s.cis[i] = in.readInt();
+				}
+				return s;
+			} finally {
+				in.close();
+			}
+		}
+
+		void writeIndex(File idx) throws IOException {
+			FileOutputStream fos = new FileOutputStream(idx);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+			try {
+				out.writeInt(SEGMENT_VERSION);
+				out.writeLong(minStart);
+				out.writeLong(maxStart);
+				out.writeInt(minId);
+				out.writeInt(maxId);
+				out.writeInt(count);
+				out.writeInt(cis.length);
+				for (int ci : cis) {
+					out.writeInt(ci);
+				}
+				out.flush();
+				fos.getFD().sync();
+			} finally {
+				out.close();
+			}
+		}
+	}
+
+	/**
+	 * Writes one new segment under a temporary name, and builds its index as it goes.
+	 */
+	private static class SegmentWriter {
+		final String partition;
+		final File directory;
+		final String name;
+		final File tmp;
+		final FileOutputStream fos;
+		final GZIPOutputStream gzip;
+		final DataOutputStream out;
+		final ArrayList<Integer> ids = new ArrayList<Integer>();
+		final TreeSet<Integer> cis = new TreeSet<Integer>();
+		final Segment segment = new Segment();
+
+		SegmentWriter(File directory, String partition) throws IOException {
+			this.partition = partition;
+			this.directory = directory;
+			this.name = "incidents-" + partition + "-" + System.currentTimeMillis();
+			this.tmp = new File(directory, name + ".tmp");
+			this.fos = new FileOutputStream(tmp);
+			this.gzip = new GZIPOutputStream(new BufferedOutputStream(fos, 64 * 1024), 64 * 1024);
+			this.out = new DataOutputStream(gzip);
+
+			segment.name = name;
+			segment.minStart = Long.MAX_VALUE;
+			segment.maxStart = Long.MIN_VALUE;
+			segment.minId = Integer.MAX_VALUE;
+			segment.maxId = Integer.MIN_VALUE;
+		}
+
+		void write(ResultSet rs, int numCols) throws SQLException, IOException {
+			Record r = new Record();
+			r.id = rs.getInt(1);
+			r.ci = rs.getInt(2);
+			r.startDate = rs.getTimestamp(3).getTime();
+			r.resolveDate = rs.getTimestamp(4).getTime();
+			r.source = rs.getString(5);
+			r.severity = rs.getInt(6);
+			r.errorNo = rs.getInt(7);
+			r.errorMsg = rs.getString(8);
+			r.contactEmail = rs.getString(9);
+			r.resolution = rs.getString(11);
+			if (numCols > 12) {
+				// The occurrence columns only exist where the IncidentDeduplicator is in use
+				r.occurrences = rs.getInt(12);
+				Timestamp lastSeen = rs.getTimestamp(13);
+				r.lastSeen = lastSeen == null ? -1 : lastSeen.getTime();
+			}
+			r.write(out);
+
+			ids.add(r.id);
+			cis.add(r.ci);
+			segment.count++;
+			segment.minStart = Math.min(segment.minStart, r.startDate);
+			segment.maxStart = Math.max(segment.maxStart, r.startDate);
+			segment.minId = Math.min(segment.minId, r.id);
+			segment.maxId = Math.max(segment.maxId, r.id);
+		}
+
+		Segment finish() throws IOException {
+			out.flush();
+			gzip.finish();
+			gzip.flush();
+			fos.getFD().sync();
+			out.close();
+
+			segment.cis = new int[cis.size()];
+			int i = 0;
+			for (Integer ci : cis) {
+				segment.cis[i++] = ci;
+			}
+
+			// The data file goes in place first; a segment only counts once its index is renamed in beside it
+			if (! tmp.renameTo(new File(directory, name + ".seg"))) {
+				throw new IOException("Could not rename " + tmp + " into place");
+			}
+			File idxTmp = new File(directory, name + ".idx.tmp");
+			segment.writeIndex(idxTmp);
+			if (! idxTmp.renameTo(new File(directory, name + ".idx"))) {
+				throw new IOException("Could not rename " + idxTmp + " into place");
+			}
+			return segment;
+		}
+
+		void abandon() {
+			try {
+				out.close();
+			} catch (IOException e) {
+				// Nothing more can be done with a segment that is being thrown away
+			}
+			tmp.delete();
+			new File(directory, name + ".idx.tmp").delete();
+			new File(directory, name + ".seg").delete();
+		}
+	}
+
+	/**
+	 * Reads the archived Incidents of one ConfigurationItem, newest first.  Segments are loaded in
+	 * order of their latest start date, and a loaded Incident is only handed out once no segment
+	 * still unread can hold a newer one.
+	 */
+	class History {
+		private final ArrayList<Segment> unread;
+		private final int ciId;
+		private final Timestamp from;
+		private final Timestamp to;
+		private final Integer[] severities;
+		private final Timestamp afterStart;
+		private final int afterId;
+		private final PriorityQueue<Record> pending = new PriorityQueue<Record>(64, new Comparator<Record>() {
+			public int compare(Record a, Record b) {
+				if (a.startDate != b.startDate) {
+					return a.startDate > b.startDate ? -1 : 1;
+				}
+				return a.id > b.id ? -1 : (a.id < b.id ? 1 : 0);
+			}
+		});
+		private int lastId = 0;
+		private long lastStart = Long.MIN_VALUE;
+
+		private History(ArrayList<Segment> unread, int ciId, Timestamp from, Timestamp to, Integer[] severities, Timestamp afterStart, int afterId) {
+			this.unread = unread;
+			this.ciId = ciId;
+			this.from = from;
+			this.to = to;
+			this.severities = severities;
+			this.afterStart = afterStart;
+			this.afterId = afterId;
+		}
+
+		/**
+		 * Read the next archived Incident.  Its ConfigurationItem is not set.
+		 *
+		 * @return The Incident, or null when there are no more
+		 * @throws ITILException If a segment cannot be read
+		 */
+		Incident next() throws ITILException {
+			while (true) {
+				while (! unread.isEmpty() && (pending.isEmpty() || unread.get(0).maxStart >= pending.peek().startDate)) {
+					load(unread.remove(0));
+				}
+				Record r = pending.poll();
+				if (r == null) {
+					return null;
+				}
+				// A run interrupted before its deletes archives the same Incident twice, and the copies sort together
+				if (r.id == lastId && r.startDate == lastStart) {
+					continue;
+				}
+				lastId = r.id;
+				lastStart = r.startDate;
+				return r.toIncident(null);
+			}
+		}
+
+		private void load(Segment segment) throws ITILException {
+			try {
+				DataInputStream in = segment.open(directory);
+				try {
+					Record r;
+					while ((r = Record.read(in)) != null) {
+						if (r.ci == ciId && wanted(r)) {
+							pending.add(r);
+						}
+					}
+				} finally {
+					in.close();
+				}
+			} catch (IOException e) {
+				throw new ITILException("Could not read incident archive segment " + segment.name, e);
+			}
+		}
+
+		private boolean wanted(Record r) {
+			Timestamp start = new Timestamp(r.startDate);
+			if ((from != null && start.before(from)) || (to != null && ! start.before(to))) {
+				return false;
+			}
+			if (afterStart != null) {
+				int c = start.compareTo(afterStart);
+				if (c > 0 || (c == 0 && r.id >= afterId)) {
+					return false;
+				}
+				// The cursor may be the copy still in the ICMDB, whose start date keeps its microseconds
+				if (r.id == afterId) {
+					return false;
+				}
+			}
+			if (severities != null) {
+				for (Integer severity : severities) {
+					if (severity == r.severity) {
+						return true;
+					}
+				}
+				return false;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * One archived Incident.
+	 */
+	private static class Record {
+		int id;
+		int ci;
+		long startDate;
+		long resolveDate;
+		String source;
+		int severity;
+		int errorNo;
+		String errorMsg;
+		String contactEmail;
+		String resolution;
+		int occurrences = 1;
+		long lastSeen = -1;
+
+		void write(DataOutputStream out) throws IOException {
+			out.writeInt(id);
+			out.writeInt(ci);
+			out.writeLong(startDate);
+			out.writeLong(resolveDate);
+			RecordFormat.writeString(out, source);
+			out.writeInt(severity);
+			out.writeInt(errorNo);
+			RecordFormat.writeString(out, errorMsg);
+			RecordFormat.writeString(out, contactEmail);
+			RecordFormat.writeString(out, resolution);
+			out.writeInt(occurrences);
+			out.writeLong(lastSeen);
+		}
+
+		static Record read(DataInputStream in) throws IOException {
+			Record r = new Record();
+			try {
+				r.id = in.readInt();
+			} catch (EOFException e) {
+				return null;
+			}
+			r.ci = in.readInt();
+			r.startDate = in.readLong();
+			r.resolveDate = in.readLong();
+			r.source = RecordFormat.readString(in);
+			r.severity = in.readInt();
+			r.errorNo = in.readInt();
+			r.errorMsg = RecordFormat.readString(in);
+			r.contactEmail = RecordFormat.readString(in);
+			r.resolution = RecordFormat.readString(in);
+			r.occurrences = in.readInt();
+			r.lastSeen = in.readLong();
+			return r;
+		}
+
+		Incident toIncident(ConfigurationItem ci) {
+			Incident i = new Incident(ci, new Timestamp(startDate), new Timestamp(resolveDate), source, severity, errorNo, errorMsg, contactEmail, resolution);
+			i.setId(id);
+			i.setOccurrences(occurrences);
+			if (lastSeen >= 0) {
+				i.setLastSeen(new Timestamp(lastSeen));
+			}
+			return i;
+		}
+	}
+}
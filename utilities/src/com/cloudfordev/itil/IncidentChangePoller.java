@@ -0,0 +1,157 @@
+package com.cloudfordev.itil;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.cloudfordev.util.Notification;
+
+/**
+ * IncidentChangePoller finds Incidents created and resolved by other processes and publishes them
+ * on an IncidentEventBus, so that subscribers see every change and not only this process's own.<br>
+ * <br>
+ * New Incidents are found by record number, starting after the highest record number at the first
+ * poll.  Record numbers are handed out before their transactions commit, so a lower number can
+ * become visible after a higher one; each poll therefore looks again a number of records behind
+ * the highest seen.  Resolutions are found by resolve date, looking back a little further than the
+ * previous poll, since the resolve date is set by the resolving process and may arrive late.
+ * Changes this process published itself, and changes already found, are recognised by the
+ * IncidentEventBus and not published again, so the lag should stay well under the number of
+ * events the bus remembers.
+ *
+ * @author u1001
+ * @version 1.0
+ */
+public class IncidentChangePoller {
+
+	private final ICMDB icmdb;
+	private final IncidentEventBus bus;
+	private long lookback = 60000;
+	private int idLag = 1000;
+	private int batchSize = 1000;
+
+	private int lastId = -1;
+	private long lastPoll = 0;
+	private ScheduledExecutorService poller = null;
+
+	/**
+	 * Create a new IncidentChangePoller.
+	 *
+	 * @param icmdb The ICMDB to poll
+	 * @param bus The IncidentEventBus to publish the changes on
+	 */
+	public IncidentChangePoller(ICMDB icmdb, IncidentEventBus bus) {
+		this.icmdb = icmdb;
+		this.bus = bus;
+	}
+
+	/**
+	 * Look for changes once.  The first poll only records where to start from.
+	 *
+	 * @return The number of events published
+	 * @throws ITILException If there is a failure while working with the back-end ICMDB
+	 */
+	public synchronized int poll() throws ITILException {
+		long started = System.currentTimeMillis();
+		int published = 0;
+
+		if (lastId < 0) {
+			lastId = icmdb.getLastIncidentId();
+			lastPoll = started;
+			return 0;
+		}
+
+		ArrayList<Incident> created;
+		int from = Math.max(0, lastId - idLag);
+		do {
+			created = icmdb.getIncidentsAfterId(from, batchSize);
+			for (Incident i : created) {
+				from = Math.max(from, i.getId());
+				lastId = Math.max(lastId, i.getId());
+				if (bus.publishRemote(IncidentEvent.Type.CREATED, i)) {
+					published++;
+				}
+			}
+		} while (created.size() == batchSize);
+
+		for (Incident i : icmdb.getIncidentsResolvedSince(new Timestamp(lastPoll - lookback))) {
+			if (bus.publishRemote(IncidentEvent.Type.RESOLVED, i)) {
+				published++;
+			}
+		}
+
+		lastPoll = started;
+		return published;
+	}
+
+	/**
+	 * Poll periodically on a background thread.
+	 *
+	 * @param period The time between polls
+	 * @param unit The unit of the period
+	 */
+	public synchronized void start(long period, TimeUnit unit) {
+		if (poller != null) {
+			return;
+		}
+
+		poller = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "IncidentChangePoller");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		poller.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					poll();
+				} catch (Exception e) {
+					Notification n = new Notification(IncidentChangePoller.this, e);
+					n.log();
+				}
+			}
+		}, 0, period, unit);
+	}
+
+	/**
+	 * Stop the periodic poll.
+	 */
+	public synchronized void stop() {
+		if (poller != null) {
+			poller.shutdownNow();
+			poller = null;
+		}
+	}
+
+	/**
+	 * Set how far before the previous poll resolutions are looked for.
+	 *
+	 * @param lookback The lookback in milliseconds
+	 */
+	public void setLookback(long lookback) {
+		this.lookback = Math.max(0, lookback);
+	}
+
+	/**
+	 * Set how many record numbers behind the highest seen each poll looks again, for Incidents
+	 * whose transactions committed late.
+	 *
+	 * @param idLag The lag in record numbers
+	 */
+	public void setIdLag(int idLag) {
+		this.idLag = Math.max(0, idLag);
+	}
+
+	/**
+	 * Set the maximum number of new Incidents read per query.
+	 *
+	 * @param batchSize The batch size
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = Math.max(1, batchSize);
+	}
+}
@@ -0,0 +1,385 @@
+package com.cloudfordev.itil;
+
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import com.cloudfordev.util.Notification;
+
+/**
+ * IncidentCorrelator groups Incidents whose ConfigurationItems fail together because of a shared
+ * dependency, so that only the root Incident of a failure pages.<br>
+ * <br>
+ * The dependencies are the CMDB dependent_on relationships, loaded once into memory.  When an
+ * Incident arrives, the ConfigurationItems it depends on are walked upwards, nearest first.  If one
+ * of them already has an Incident in a correlation group active within the window, the new Incident
+ * is attached to that group as a child and does not notify.  If instead the new Incident's
+ * ConfigurationItem is a dependency of the roots of active groups, as when a hypervisor reports
+ * after its virtual machines, it becomes the root and those groups are attached under it.  Pages
+ * already sent for the earlier roots cannot be recalled, but nothing more is sent for them.<br>
+ * <br>
+ * Each Incident costs one walk of its ConfigurationItem's dependencies, one walk of its dependents
+ * through a reverse index built with the dependencies, and a few map lookups.  Groups are dropped
+ * once no Incident has joined them for a window, but a child stays suppressed until it is itself
+ * resolved, so that it does not page its resolution just because its group went quiet.
+ *
+ * @author u1001
+ * @version 1.0
+ */
+public class IncidentCorrelator {
+
+	private final long window;
+	private int maxDepth = 8;
+
+	// ConfigurationItem record ID to the record IDs it depends on
+	private HashMap<Integer, Integer[]> dependencies = new HashMap<Integer, Integer[]>();
+	// ConfigurationItem record ID to the record IDs that depend on it directly
+	private HashMap<Integer, ArrayList<Integer>> dependents = new HashMap<Integer, ArrayList<Integer>>();
+
+	// Every ConfigurationItem with an Incident in an active group, and every grouped Incident, to its group
+	private final HashMap<Integer, Group> byCI = new HashMap<Integer, Group>();
+	private final HashMap<Integer, Group> byIncident = new HashMap<Integer, Group>();
+	private final LinkedHashSet<Group> groups = new LinkedHashSet<Group>();
+	// The record IDs of the Incidents attached as children and not yet resolved
+	private final HashSet<Integer> suppressedChildren = new HashSet<Integer>();
+	private long lastSweep = System.currentTimeMillis();
+
+	/**
+	 * Create a new IncidentCorrelator with no dependencies loaded.
+	 *
+	 * @param window The time in milliseconds after the last Incident joined a group during which new Incidents may join it
+	 */
+	public IncidentCorrelator(long window) {
+		this.window = Math.max(1, window);
+	}
+
+	/**
+	 * Load the dependencies of every active ConfigurationItem from the CMDB, replacing those loaded before.
+	 *
+	 * @param cmdb The CMDB to read
+	 * @throws ITILException If there is a failure while working with the back-end CMDB
+	 */
+	public void loadDependencies(CMDB cmdb) throws ITILException {
+		HashMap<Integer, Integer[]> loaded = new HashMap<Integer, Integer[]>();
+		Connection conn = cmdb.openConnection();
+		PreparedStatement ps = null;
+
+		try {
+			conn.setAutoCommit(false);
+			ps = conn.prepareStatement("SELECT id, dependent_on FROM cmdb WHERE retire_date is null AND dependent_on is not null");
+			ps.setFetchSize(1000);
+			ResultSet rs = ps.executeQuery();
+			while (rs.next()) {
+				Array deps = rs.getArray(2);
+				loaded.put(rs.getInt(1), (Integer[]) deps.getArray());
+			}
+			rs.close();
+			conn.commit();
+		} catch (SQLException e) {
+			Notification n = new Notification(this, e);
+			n.alert();
+			throw new ITILException("Could not read CI dependencies from the CMDB", e);
+		} finally {
+			try {
+				if (ps != null) {
+					ps.close();
+				}
+				conn.close();
+			} catch (SQLException e) {
+				Notification n = new Notification(this, e);
+				n.log();
+			}
+		}
+
+		HashMap<Integer, ArrayList<Integer>> reverse = new HashMap<Integer, ArrayList<Integer>>();
+		for (Map.Entry<Integer, Integer[]> e : loaded.entrySet()) {
+			for (Integer dep : e.getValue()) {
+				// The CMDB pads empty dependency arrays with null
+				if (dep == null) {
+					continue;
+				}
+				ArrayList<Integer> list = reverse.get(dep);
+				if (list == null) {
+					list = new ArrayList<Integer>(2);
+					reverse.put(dep, list);
+				}
+				list.add(e.getKey());
+			}
+		}
+
+		synchronized (this) {
+			dependencies = loaded;
+			dependents = reverse;
+		}
+	}
+
+	/**
+	 * Correlate a newly added Incident with the active groups.
+	 *
+	 * @param i The Incident, with its ICMDB record number set
+	 * @return The root Incident this Incident was attached to as a child, or null if it is a root and should notify
+	 */
+	public synchronized Incident correlate(Incident i) {
+		long now = System.currentTimeMillis();
+		sweep(now);
+
+		Integer ciId = i.getCiId();
+		if (ciId == null || i.getId() == null) {
+			return null;
+		}
+
+		// A failing dependency, or another Incident on the same ConfigurationItem, makes this a child
+		Group g = byCI.get(ciId);
+		if (g == null || g.expired(now, window)) {
+			g = null;
+			for (Integer dep : dependenciesOf(ciId, loadedDependencies(i))) {
+				Group candidate = byCI.get(dep);
+				if (candidate != null && ! candidate.expired(now, window)) {
+					g = candidate;
+					break;
+				}
+			}
+		}
+		if (g != null) {
+			g.attach(i, now);
+			byCI.put(ciId, g);
+			byIncident.put(i.getId(), g);
+			suppressedChildren.add(i.getId());
+			return g.root;
+		}
+
+		// Otherwise this is a new root, and it takes over any active groups rooted below it
+		Group root = new Group(i, now);
+		for (Integer dependent : dependentsOf(ciId)) {
+			Group below = byCI.get(dependent);
+			if (below == null || below.expired(now, window) || ! dependent.equals(below.root.getCiId())) {
+				continue;
+			}
+			groups.remove(below);
+			root.absorb(below, now);
+			for (Incident child : below.members()) {
+				byCI.put(child.getCiId(), root);
+				byIncident.put(child.getId(), root);
+				suppressedChildren.add(child.getId());
+			}
+		}
+		groups.add(root);
+		byCI.put(ciId, root);
+		byIncident.put(i.getId(), root);
+		return null;
+	}
+
+	/**
+	 * Record that an Incident was resolved.  Once a root is resolved, its group closes, so that a
+	 * further failure of the same ConfigurationItems notifies again.
+	 *
+	 * @param i The resolved Incident
+	 */
+	public synchronized void resolved(Incident i) {
+		if (i.getId() == null) {
+			return;
+		}
+		suppressedChildren.remove(i.getId());
+		Group g = byIncident.get(i.getId());
+		if (g != null && g.root.getId().equals(i.getId())) {
+			close(g);
+		}
+	}
+
+	/**
+	 * Check whether an Incident was attached to another as a child.  Children neither page when
+	 * they open nor when they are resolved, even if their group has since been dropped.
+	 *
+	 * @param incidentId The ICMDB record number of the Incident
+	 * @return True if the Incident was attached as a child and is not yet resolved
+	 */
+	public synchronized boolean isChild(int incidentId) {
+		return suppressedChildren.contains(incidentId);
+	}
+
+	/**
+	 * @param incidentId The ICMDB record number of an Incident
+	 * @return The active group the Incident belongs to, or null if it is not grouped
+	 */
+	public synchronized Group getGroup(int incidentId) {
+		return byIncident.get(incidentId);
+	}
+
+	/**
+	 * @return The number of active groups
+	 */
+	public synchronized int getGroupCount() {
+		return groups.size();
+	}
+
+	/**
+	 * Set how many levels of dependencies are walked above an Incident's ConfigurationItem.
+	 *
+	 * @param maxDepth The maximum depth
+	 */
+	public synchronized void setMaxDepth(int maxDepth) {
+		this.maxDepth = Math.max(1, maxDepth);
+	}
+
+	/*
+	 * The ConfigurationItems a ConfigurationItem depends on, directly or not, nearest first
+	 */
+	private List<Integer> dependenciesOf(Integer ciId, Integer[] direct) {
+		ArrayList<Integer> found = new ArrayList<Integer>();
+		HashSet<Integer> seen = new HashSet<Integer>();
+		seen.add(ciId);
+
+		ArrayDeque<Integer> level = new ArrayDeque<Integer>();
+		addAll(level, seen, direct != null ? direct : dependencies.get(ciId));
+
+		for (int depth = 0; depth < maxDepth && ! level.isEmpty(); depth++) {
+			ArrayDeque<Integer> next = new ArrayDeque<Integer>();
+			for (Integer dep : level) {
+				found.add(dep);
+				addAll(next, seen, dependencies.get(dep));
+			}
+			level = next;
+		}
+		return found;
+	}
+
+	/*
+	 * The ConfigurationItems that depend on a ConfigurationItem, directly or not, nearest first
+	 */
+	private List<Integer> dependentsOf(Integer ciId) {
+		ArrayList<Integer> found = new ArrayList<Integer>();
+		HashSet<Integer> seen = new HashSet<Integer>();
+		seen.add(ciId);
+
+		ArrayDeque<Integer> level = new ArrayDeque<Integer>();
+		addAll(level, seen, dependents.get(ciId));
+
+		for (int depth = 0; depth < maxDepth && ! level.isEmpty(); depth++) {
+			ArrayDeque<Integer> next = new ArrayDeque<Integer>();
+			for (Integer dependent : level) {
+				found.add(dependent);
+				addAll(next, seen, dependents.get(dependent));
+			}
+			level = next;
+		}
+		return found;
+	}
+
+	/*
+	 * The dependencies an Incident already carries, without loading its ConfigurationItem
+	 */
+	private static Integer[] loadedDependencies(Incident i) {
+		return i.isCiLoaded() && i.getCi() != null ? i.getCi().getDependentOn() : null;
+	}
+
+	private static void addAll(ArrayDeque<Integer> level, HashSet<Integer> seen, List<Integer> deps) {
+		if (deps == null) {
+			return;
+		}
+		for (Integer dep : deps) {
+			if (seen.add(dep)) {
+				level.add(dep);
+			}
+		}
+	}
+
+	private static void addAll(ArrayDeque<Integer> level, HashSet<Integer> seen, Integer[] deps) {
+		if (deps == null) {
+			return;
+		}
+		for (Integer dep : deps) {
+			// The CMDB pads empty dependency arrays with null
+			if (dep != null && seen.add(dep)) {
+				level.add(dep);
+			}
+		}
+	}
+
+	/*
+	 * Drop the groups nobody has joined for a window, at most every quarter window
+	 */
+	private void sweep(long now) {
+		if (now - lastSweep < window / 4) {
+			return;
+		}
+		lastSweep = now;
+
+		for (Group g : new ArrayList<Group>(groups)) {
+			if (g.expired(now, window)) {
+				close(g);
+			}
+		}
+	}
+
+	private void close(Group g) {
+		groups.remove(g);
+		for (Incident member : g.members()) {
+			if (byCI.get(member.getCiId()) == g) {
+				byCI.remove(member.getCiId());
+			}
+			if (byIncident.get(member.getId()) == g) {
+				byIncident.remove(member.getId());
+			}
+		}
+	}
+
+	/**
+	 * A root Incident and the child Incidents attached to it.
+	 */
+	public static class Group {
+		private final Incident root;
+		private final ArrayList<Incident> children = new ArrayList<Incident>();
+		private long lastJoined;
+
+		Group(Incident root, long now) {
+			this.root = root;
+			this.lastJoined = now;
+		}
+
+		synchronized void attach(Incident child, long now) {
+			children.add(child);
+			lastJoined = now;
+		}
+
+		synchronized void absorb(Group below, long now) {
+			children.add(below.root);
+			children.addAll(below.children);
+			lastJoined = now;
+		}
+
+		boolean expired(long now, long window) {
+			return now - lastJoined >= window;
+		}
+
+		synchronized ArrayList<Incident> members() {
+			ArrayList<Incident> members = new ArrayList<Incident>(children.size() + 1);
+			members.add(root);
+			members.addAll(children);
+			return members;
+		}
+
+		/**
+		 * @return The root Incident, the only one of the group that notifies
+		 */
+		public Incident getRoot() {
+			return root;
+		}
+
+		/**
+		 * @return The child Incidents, in the order they were attached
+		 */
+		public synchronized List<Incident> getChildren() {
+			return Collections.unmodifiableList(new ArrayList<Incident>(children));
+		}
+	}
+}
@@ -0,0 +1,327 @@
+package com.cloudfordev.itil;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * IncidentDeduplicator collapses repeated reports of the same failure before they reach the ICMDB.<br>
+ * <br>
+ * Two Incidents are the same failure when they share the ConfigurationItem, source and error
+ * number.  The first report within a window is written and notified as usual.  Repeats within the
+ * window of that first report are not written; they increase its occurrence counter and last seen
+ * time, which are written back periodically.  Once the window has passed, the next report is
+ * written as a new Incident, so a long storm leaves one Incident per window rather than thousands.<br>
+ * <br>
+ * Entries live in buckets one window wide.  Only the current and previous buckets are kept, and
+ * older buckets are dropped whole, so expiry costs nothing per entry.  The number of tracked
+ * entries is also capped; once the cap is reached, new failures are simply not deduplicated.<br>
+ * <br>
+ * The counters are stored in two columns that the incidents table must have:<br>
+ * ALTER TABLE incidents ADD COLUMN occurrences int NOT NULL DEFAULT 1, ADD COLUMN last_seen timestamp;
+ *
+ * @author u1001
+ * @version 1.0
+ */
+public class IncidentDeduplicator {
+
+	private final long window;
+	private final int maxEntries;
+	private long flushInterval = 5000;
+
+	private volatile Bucket current;
+	private volatile Bucket previous;
+	private final AtomicInteger size = new AtomicInteger();
+	private final AtomicLong lastFlush = new AtomicLong(System.currentTimeMillis());
+	private final AtomicLong collapsed = new AtomicLong();
+
+	// Entries from dropped buckets whose counters have not been written yet
+	private final ConcurrentLinkedQueue<Entry> retired = new ConcurrentLinkedQueue<Entry>();
+
+	/**
+	 * Create a new IncidentDeduplicator.
+	 *
+	 * @param window The time in milliseconds after a first report during which repeats are collapsed into it
+	 * @param maxEntries The maximum number of distinct failures tracked at once
+	 */
+	public IncidentDeduplicator(long window, int maxEntries) {
+		this.window = Math.max(1, window);
+		this.maxEntries = maxEntries;
+		this.current = new Bucket(System.currentTimeMillis() / this.window);
+	}
+
+	/**
+	 * Check an Incident against recent reports.
+	 *
+	 * @param i The reported Incident
+	 * @return The earlier Incident that this report was collapsed into, or null if this report is new and should be written
+	 */
+	public Incident collapse(Incident i) {
+		long now = System.currentTimeMillis();
+		Bucket cur = bucketFor(now);
+		Key key = new Key(i.getCiId(), i.getSource(), i.getErrorNo());
+
+		Entry e = cur.entries.get(key);
+		if (e == null) {
+			Bucket prev = previous;
+			if (prev != null) {
+				e = prev.entries.get(key);
+			}
+		}
+		if (e != null && e.incident == i) {
+			// The tracked first report itself, being written after all
+			return null;
+		}
+		if (e != null && now - e.firstSeen < window) {
+			e.hit(now);
+			collapsed.incrementAndGet();
+			return e.incident;
+		}
+
+		if (size.get() >= maxEntries) {
+			// Memory is bounded, so this failure goes untracked until a bucket is dropped
+			return null;
+		}
+
+		Entry fresh = new Entry(i, now);
+		Entry raced = cur.entries.putIfAbsent(key, fresh);
+		if (raced != null) {
+			// Another thread reported the same failure first
+			raced.hit(now);
+			collapsed.incrementAndGet();
+			return raced.incident;
+		}
+
+		size.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Stop tracking an Incident whose write failed, so that repeats of its failure are written
+	 * rather than collapsed into a report that never reached the ICMDB.
+	 *
+	 * @param i The Incident that collapse returned null for
+	 */
+	public void forget(Incident i) {
+		Key key = new Key(i.getCiId(), i.getSource(), i.getErrorNo());
+		Bucket[] buckets = { current, previous };
+		for (Bucket b : buckets) {
+			if (b == null) {
+				continue;
+			}
+			Entry e = b.entries.get(key);
+			if (e != null && e.incident == i && b.entries.remove(key, e)) {
+				size.decrementAndGet();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Take the Incidents whose occurrence counters changed and have not been written yet.  This
+	 * returns an empty list until the flush interval has passed since the last flush, so it is
+	 * cheap to call on every report.
+	 *
+	 * @param force True to ignore the flush interval
+	 * @return The Incidents to update in the ICMDB, with their occurrences and last seen time set
+	 */
+	public ArrayList<Incident> takeDirty(boolean force) {
+		ArrayList<Incident> dirty = new ArrayList<Incident>();
+		long now = System.currentTimeMillis();
+		long last = lastFlush.get();
+
+		// Only one caller per interval does the work
+		if (! force && (now - last < flushInterval || ! lastFlush.compareAndSet(last, now))) {
+			return dirty;
+		}
+		if (force) {
+			lastFlush.set(now);
+		}
+
+		bucketFor(now);
+
+		Entry e;
+		while ((e = retired.poll()) != null) {
+			e.drainInto(dirty, false);
+		}
+
+		Bucket prev = previous;
+		if (prev != null) {
+			for (Entry entry : prev.entries.values()) {
+				entry.drainInto(dirty, true);
+			}
+		}
+		for (Entry entry : current.entries.values()) {
+			entry.drainInto(dirty, true);
+		}
+
+		return dirty;
+	}
+
+	/**
+	 * @return The number of reports collapsed into an earlier Incident
+	 */
+	public long getCollapsed() {
+		return collapsed.get();
+	}
+
+	/**
+	 * @return The number of distinct failures currently tracked
+	 */
+	public int getTracked() {
+		return size.get();
+	}
+
+	/**
+	 * @return The collapse window in milliseconds
+	 */
+	public long getWindow() {
+		return window;
+	}
+
+	/**
+	 * @return The minimum time in milliseconds between writes of the occurrence counters
+	 */
+	public long getFlushInterval() {
+		return flushInterval;
+	}
+
+	/**
+	 * Set the minimum time between writes of the occurrence counters.
+	 *
+	 * @param flushInterval The flush interval in milliseconds
+	 */
+	public void setFlushInterval(long flushInterval) {
+		this.flushInterval = flushInterval;
+	}
+
+	/*
+	 * Return the bucket for the current time, rotating the buckets if a window boundary has passed
+	 */
+	private Bucket bucketFor(long now) {
+		long slot = now / window;
+		Bucket cur = current;
+		if (cur.slot == slot) {
+			return cur;
+		}
+
+		synchronized (this) {
+			cur = current;
+			if (cur.slot != slot) {
+				Bucket dropped = previous;
+				if (cur.slot == slot - 1) {
+					previous = cur;
+				} else {
+					// More than a window has passed, so the current bucket is dropped too
+					previous = null;
+					retire(cur);
+				}
+				retire(dropped);
+				cur = new Bucket(slot);
+				current = cur;
+			}
+			return cur;
+		}
+	}
+
+	private void retire(Bucket b) {
+		if (b == null) {
+			return;
+		}
+		for (Entry e : b.entries.values()) {
+			if (e.dirty) {
+				retired.add(e);
+			}
+		}
+		size.addAndGet(-b.entries.size());
+	}
+
+	/**
+	 * The failures first seen within one window.
+	 */
+	private static class Bucket {
+		final long slot;
+		final ConcurrentHashMap<Key, Entry> entries = new ConcurrentHashMap<Key, Entry>();
+
+		Bucket(long slot) {
+			this.slot = slot;
+		}
+	}
+
+	/**
+	 * A failure identity: ConfigurationItem, source and error number.
+	 */
+	private static final class Key {
+		final int ci;
+		final int errorNo;
+		final String source;
+		final int hash;
+
+		Key(Integer ci, String source, int errorNo) {
+			this.ci = ci == null ? 0 : ci;
+			this.errorNo = errorNo;
+			this.source = source == null ? "" : source;
+			this.hash = (this.ci * 31 + errorNo) * 31 + this.source.hashCode();
+		}
+
+		public int hashCode() {
+			return hash;
+		}
+
+		public boolean equals(Object o) {
+			if (! (o instanceof Key)) {
+				return false;
+			}
+			Key k = (Key) o;
+			return ci == k.ci && errorNo == k.errorNo && source.equals(k.source);
+		}
+	}
+
+	/**
+	 * The first Incident of a failure and its repeat count.
+	 */
+	private static final class Entry {
+		final Incident incident;
+		final long firstSeen;
+		final AtomicInteger count = new AtomicInteger(1);
+		volatile long lastSeen;
+		volatile boolean dirty = false;
+
+		Entry(Incident incident, long now) {
+			this.incident = incident;
+			this.firstSeen = now;
+			this.lastSeen = now;
+		}
+
+		void hit(long now) {
+			count.incrementAndGet();
+			lastSeen = now;
+			dirty = true;
+		}
+
+		/*
+		 * Copy the counters into the Incident if they changed.  An Incident that has not been written
+		 * yet has no id to update, so it is kept dirty for the next flush unless this is the last chance.
+		 */
+		void drainInto(ArrayList<Incident> dirtyList, boolean keepUnwritten) {
+			if (! dirty) {
+				return;
+			}
+			if (incident.getId() == null || incident.getId() == 0) {
+				if (! keepUnwritten) {
+					// The first report was never written, so there is nothing to update
+					dirty = false;
+				}
+				return;
+			}
+
+			dirty = false;
+			incident.setOccurrences(count.get());
+			incident.setLastSeen(new Timestamp(lastSeen));
+			dirtyList.add(incident);
+		}
+	}
+}
@@ -0,0 +1,174 @@
+package com.cloudfordev.itil;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+import com.cloudfordev.util.Notification;
+
+/**
+ * IncidentEscalator pages again for severity 1 and 2 Incidents that stay unresolved, at a fixed
+ * interval, until they are resolved or have paged a maximum number of times.<br>
+ * <br>
+ * Every watched Incident waits in one DelayQueue, taken from by a single thread, so watching
+ * thousands of Incidents costs one thread and no timers.  An Incident is dropped when the ICMDB
+ * resolves it, and before each page its record is read again, so that resolutions made by other
+ * processes stop the pages too.
+ *
+ * @author u1001
+ * @version 1.0
+ */
+public class IncidentEscalator {
+
+	private final ICMDB icmdb;
+	private final long interval;
+	private final int maxPages;
+
+	private final DelayQueue<Escalation> queue = new DelayQueue<Escalation>();
+	// The Incidents still watched, by record number
+	private final ConcurrentHashMap<Integer, Escalation> watched = new ConcurrentHashMap<Integer, Escalation>();
+	private Thread escalator = null;
+
+	/**
+	 * Create a new IncidentEscalator.
+	 *
+	 * @param icmdb The ICMDB to read Incidents from before paging again
+	 * @param interval The time in milliseconds between pages for an unresolved Incident
+	 * @param maxPages The maximum number of pages sent again for one Incident
+	 */
+	public IncidentEscalator(ICMDB icmdb, long interval, int maxPages) {
+		this.icmdb = icmdb;
+		this.interval = Math.max(1, interval);
+		this.maxPages = Math.max(1, maxPages);
+	}
+
+	/**
+	 * Watch a newly added Incident.  Resolved Incidents, those of severity 3 or lower, and those
+	 * without a record number are ignored.
+	 *
+	 * @param i The Incident
+	 */
+	public void watch(Incident i) {
+		if (i.isResolved() || i.getSeverity() > 2 || i.getId() == null) {
+			return;
+		}
+		Escalation e = new Escalation(i, System.currentTimeMillis() + interval);
+		if (watched.putIfAbsent(i.getId(), e) == null) {
+			queue.add(e);
+		}
+	}
+
+	/**
+	 * Stop watching a resolved Incident.
+	 *
+	 * @param i The Incident
+	 */
+	public void resolved(Incident i) {
+		if (i.getId() != null) {
+			// Its queued Escalation is skipped when due, rather than searched for now
+			watched.remove(i.getId());
+		}
+	}
+
+	/**
+	 * @return The number of Incidents watched
+	 */
+	public int getWatchedCount() {
+		return watched.size();
+	}
+
+	/**
+	 * Start paging on a background thread.
+	 */
+	public synchronized void start() {
+		if (escalator != null) {
+			return;
+		}
+
+		escalator = new Thread(new Runnable() {
+			public void run() {
+				while (! Thread.currentThread().isInterrupted()) {
+					try {
+						escalate(queue.take());
+					} catch (InterruptedException e) {
+						return;
+					} catch (Exception e) {
+						Notification n = new Notification(IncidentEscalator.this, e);
+						n.log();
+					}
+				}
+			}
+		}, "IncidentEscalator");
+		escalator.setDaemon(true);
+		escalator.start();
+	}
+
+	/**
+	 * Stop paging.  Incidents stay watched, and page again if started again.
+	 */
+	public synchronized void stop() {
+		if (escalator != null) {
+			escalator.interrupt();
+			escalator = null;
+		}
+	}
+
+	private void escalate(Escalation e) {
+		Incident i = e.incident;
+		if (watched.get(i.getId()) != e) {
+			return;
+		}
+
+		// Another process may have resolved it
+		try {
+			if (icmdb.getIncByID(i.getId()).isResolved()) {
+				watched.remove(i.getId(), e);
+				return;
+			}
+		} catch (ITILException ex) {
+			// Page anyway, an unreachable ICMDB is no reason to go quiet
+			Notification n = new Notification(this, ex);
+			n.log();
+		}
+
+		int page = e.pages + 1;
+		String msg = "Unresolved (" + page + "): " + i.getCi().getDescription() + ": " + i.getErrorMsg();
+		Notification n = new Notification(i.getSource(), msg);
+		n.setSeverity(i.getSeverity());
+		n.alert();
+
+		if (page >= maxPages) {
+			watched.remove(i.getId(), e);
+			return;
+		}
+		Escalation next = new Escalation(i, System.currentTimeMillis() + interval);
+		next.pages = page;
+		if (watched.replace(i.getId(), e, next)) {
+			queue.add(next);
+		}
+	}
+
+	/**
+	 * An Incident waiting for its next page.
+	 */
+	private static class Escalation implements Delayed {
+		final Incident incident;
+		final long due;
+		int pages = 0;
+
+		Escalation(Incident incident, long due) {
+			this.incident = incident;
+			this.due = due;
+		}
+
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(due - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+		}
+
+		public int compareTo(Delayed o) {
+			long other = ((Escalation) o).due;
+			return due < other ? -1 : (due > other ? 1 : 0);
+		}
+	}
+}
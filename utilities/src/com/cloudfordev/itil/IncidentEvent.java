@@ -0,0 +1,65 @@
+package com.cloudfordev.itil;
+
+/**
+ * IncidentEvent tells an IncidentListener that an Incident was created or resolved.
+ *
+ * @author u1001
+ * @version 1.0
+ */
+public class IncidentEvent {
+
+	/**
+	 * The kinds of IncidentEvent.
+	 */
+	public enum Type {
+		CREATED,
+		RESOLVED
+	}
+
+	private final Type type;
+	private final Incident incident;
+	private final long time;
+	private final boolean remote;
+
+	/**
+	 * Create a new IncidentEvent.
+	 *
+	 * @param type Whether the Incident was created or resolved
+	 * @param incident The Incident
+	 * @param remote True if the change was made by another process and found by polling
+	 */
+	public IncidentEvent(Type type, Incident incident, boolean remote) {
+		this.type = type;
+		this.incident = incident;
+		this.remote = remote;
+		this.time = System.currentTimeMillis();
+	}
+
+	/**
+	 * @return Whether the Incident was created or resolved
+	 */
+	public Type getType() {
+		return type;
+	}
+
+	/**
+	 * @return The Incident
+	 */
+	public Incident getIncident() {
+		return incident;
+	}
+
+	/**
+	 * @return The time the event was raised, in milliseconds since the epoch
+	 */
+	public long getTime() {
+		return time;
+	}
+
+	/**
+	 * @return True if the change was made by another process and found by an IncidentChangePoller
+	 */
+	public boolean isRemote() {
+		return remote;
+	}
+}
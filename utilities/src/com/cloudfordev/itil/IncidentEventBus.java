@@ -0,0 +1,236 @@
+package com.cloudfordev.itil;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.cloudfordev.util.Notification;
+
+/**
+ * IncidentEventBus delivers IncidentEvents to subscribed IncidentListeners asynchronously.<br>
+ * <br>
+ * Each subscription has its own bounded queue.  Publishing only offers the event to the queues of
+ * the matching subscriptions and never waits, so a slow listener cannot hold up the ICMDB.  When a
+ * queue is full, its oldest event is dropped to make room and counted against the subscription.
+ * A small shared pool of threads drains the queues, and each queue is drained by at most one thread
+ * at a time, so every listener sees its events in order.<br>
+ * <br>
+ * The bus also remembers the Incidents it published recently, so that an IncidentChangePoller does
+ * not deliver this process's own changes a second time.
+ *
+ * @author u1001
+ * @version 1.0
+ */
+public class IncidentEventBus {
+
+	private static final int RECENT_EVENTS = 10000;
+
+	private final CopyOnWriteArrayList<Subscription> subscriptions = new CopyOnWriteArrayList<Subscription>();
+	private final ExecutorService pool;
+	private final int batchSize = 64;
+
+	// Recently published events, keyed by type and record number, oldest first
+	private final LinkedHashMap<String, Boolean> recent = new LinkedHashMap<String, Boolean>() {
+		private static final long serialVersionUID = 1L;
+
+		protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+			return size() > RECENT_EVENTS;
+		}
+	};
+
+	/**
+	 * Create a new IncidentEventBus.
+	 *
+	 * @param threads The number of threads delivering events
+	 */
+	public IncidentEventBus(int threads) {
+		final AtomicInteger count = new AtomicInteger();
+		pool = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "IncidentEventBus-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Subscribe a listener to the events of the Incidents that match a filter.
+	 *
+	 * @param filter The IncidentFilter, or null for every Incident
+	 * @param listener The IncidentListener
+	 * @param capacity The maximum number of events waiting for the listener
+	 * @return The Subscription, used to unsubscribe
+	 */
+	public Subscription subscribe(IncidentFilter filter, IncidentListener listener, int capacity) {
+		Subscription s = new Subscription(filter == null ? new IncidentFilter() : filter, listener, capacity);
+		subscriptions.add(s);
+		return s;
+	}
+
+	/**
+	 * Publish an event raised by this process, unless an IncidentChangePoller already found it in
+	 * the ICMDB after it was committed and published it first.
+	 *
+	 * @param type Whether the Incident was created or resolved
+	 * @param i The Incident
+	 */
+	public void publish(IncidentEvent.Type type, Incident i) {
+		if (i.getId() != null) {
+			synchronized (recent) {
+				if (recent.put(type + ":" + i.getId(), Boolean.TRUE) != null) {
+					return;
+				}
+			}
+		}
+		deliver(new IncidentEvent(type, i, false));
+	}
+
+	/**
+	 * Publish an event found by polling, unless this process already published it.
+	 *
+	 * @param type Whether the Incident was created or resolved
+	 * @param i The Incident
+	 * @return True if the event was published
+	 */
+	boolean publishRemote(IncidentEvent.Type type, Incident i) {
+		synchronized (recent) {
+			if (recent.put(type + ":" + i.getId(), Boolean.TRUE) != null) {
+				return false;
+			}
+		}
+		deliver(new IncidentEvent(type, i, true));
+		return true;
+	}
+
+	/**
+	 * Stop delivering, giving the queued events a chance to be delivered first.
+	 *
+	 * @param timeout The maximum time to wait
+	 * @param unit The unit of the timeout
+	 * @return True if every queued event was delivered
+	 * @throws InterruptedException If interrupted while waiting
+	 */
+	public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+		pool.shutdown();
+		return pool.awaitTermination(timeout, unit);
+	}
+
+	/**
+	 * @return The number of active subscriptions
+	 */
+	public int getSubscriberCount() {
+		return subscriptions.size();
+	}
+
+	private void deliver(IncidentEvent event) {
+		for (Subscription s : subscriptions) {
+			if (s.filter.matches(event.getIncident())) {
+				s.enqueue(event);
+			}
+		}
+	}
+
+	/**
+	 * One listener's subscription and its queue of undelivered events.
+	 */
+	public class Subscription implements Runnable {
+		private final IncidentFilter filter;
+		private final IncidentListener listener;
+		private final ArrayBlockingQueue<IncidentEvent> queue;
+		private final AtomicBoolean scheduled = new AtomicBoolean(false);
+		private final AtomicLong delivered = new AtomicLong();
+		private final AtomicLong dropped = new AtomicLong();
+
+		Subscription(IncidentFilter filter, IncidentListener listener, int capacity) {
+			this.filter = filter;
+			this.listener = listener;
+			this.queue = new ArrayBlockingQueue<IncidentEvent>(Math.max(1, capacity));
+		}
+
+		void enqueue(IncidentEvent event) {
+			while (! queue.offer(event)) {
+				// Full, so the oldest event makes way
+				if (queue.poll() != null) {
+					dropped.incrementAndGet();
+				}
+			}
+			schedule();
+		}
+
+		private void schedule() {
+			if (scheduled.compareAndSet(false, true)) {
+				try {
+					pool.execute(this);
+				} catch (RejectedExecutionException e) {
+					// The bus is shut down
+					scheduled.set(false);
+				}
+			}
+		}
+
+		/*
+		 * Deliver a batch, then give the thread back so one busy listener cannot hold the pool
+		 */
+		public void run() {
+			try {
+				IncidentEvent event;
+				int n = 0;
+				while (n++ < batchSize && (event = queue.poll()) != null) {
+					try {
+						listener.incidentChanged(event);
+						delivered.incrementAndGet();
+					} catch (RuntimeException e) {
+						Notification note = new Notification(listener, e);
+						note.log();
+					}
+				}
+			} finally {
+				scheduled.set(false);
+			}
+
+			// Events that arrived after the last poll, or that did not fit in the batch
+			if (! queue.isEmpty() && subscriptions.contains(this)) {
+				schedule();
+			}
+		}
+
+		/**
+		 * Stop receiving events.  Events already queued are discarded.
+		 */
+		public void unsubscribe() {
+			subscriptions.remove(this);
+			queue.clear();
+		}
+
+		/**
+		 * @return The number of events waiting for the listener
+		 */
+		public int getQueueDepth() {
+			return queue.size();
+		}
+
+		/**
+		 * @return The number of events delivered to the listener
+		 */
+		public long getDelivered() {
+			return delivered.get();
+		}
+
+		/**
+		 * @return The number of events dropped because the listener fell behind
+		 */
+		public long getDropped() {
+			return dropped.get();
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package com.cloudfordev.itil;
+
+import java.util.HashSet;
+
+/**
+ * IncidentFilter selects the Incidents a subscription receives events for, by severity, by CI type
+ * and by ConfigurationItem.  Each criterion left empty matches everything, and an Incident must
+ * match every criterion that is set.  A filter should be complete before it is subscribed.
+ *
+ * @author u1001
+ * @version 1.0
+ */
+public class IncidentFilter {
+
+	private final HashSet<Integer> severities = new HashSet<Integer>();
+	private final HashSet<Integer> types = new HashSet<Integer>();
+	private final HashSet<Integer> cis = new HashSet<Integer>();
+
+	/**
+	 * Create a new IncidentFilter that matches every Incident.
+	 */
+	public IncidentFilter() {
+
+	}
+
+	/**
+	 * Match Incidents of a severity, in addition to any severities added before.
+	 *
+	 * @param severity The severity
+	 * @return This IncidentFilter
+	 */
+	public IncidentFilter addSeverity(int severity) {
+		severities.add(severity);
+		return this;
+	}
+
+	/**
+	 * Match Incidents of ConfigurationItems of a type, in addition to any types added before.
+	 *
+	 * @param type The CI type ID
+	 * @return This IncidentFilter
+	 */
+	public IncidentFilter addType(int type) {
+		types.add(type);
+		return this;
+	}
+
+	/**
+	 * Match Incidents of a ConfigurationItem, in addition to any ConfigurationItems added before.
+	 *
+	 * @param ciId The CMDB record ID of the ConfigurationItem
+	 * @return This IncidentFilter
+	 */
+	public IncidentFilter addCI(int ciId) {
+		cis.add(ciId);
+		return this;
+	}
+
+	/**
+	 * Check an Incident against the filter.
+	 *
+	 * @param i The Incident
+	 * @return True if the Incident matches
+	 */
+	public boolean matches(Incident i) {
+		if (! severities.isEmpty() && ! severities.contains(i.getSeverity())) {
+			return false;
+		}
+
+		if (! cis.isEmpty() && ! cis.contains(i.getCiId())) {
+			return false;
+		}
+
+		// Only a type filter needs the ConfigurationItem itself
+		if (! types.isEmpty()) {
+			ConfigurationItem ci = i.getCi();
+			if (ci == null || ! types.contains(ci.getType())) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,403 @@
+package com.cloudfordev.itil;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import com.cloudfordev.util.Notification;
+
+/**
+ * IncidentHistory reads the Incidents of one ConfigurationItem, newest first, a page at a time or
+ * as a stream, so that a ConfigurationItem with a long history never has to be loaded whole.<br>
+ * <br>
+ * Pages use keyset pagination: each page ends with a cursor holding the start date and record
+ * number of its last Incident, and the next page continues strictly after it.  A page therefore
+ * costs the same however deep into the history it is, and Incidents added meanwhile do not shift
+ * later pages.  Streams read the whole history through a server-side cursor, holding only one fetch
+ * of rows at a time.  Both are fast with an index matching the order:<br>
+ * CREATE INDEX incidents_ci_history ON incidents (ci, start_date DESC, id DESC);<br>
+ * <br>
+ * When the ICMDB has an IncidentArchive, the archived Incidents of the ConfigurationItem are merged
+ * in, in the same order and under the same filters and cursors, so a history reads the same before
+ * and after its Incidents are archived.  Only the segments whose index holds the ConfigurationItem
+ * and overlaps the range left to read are decompressed.
+ *
+ * @author u1001
+ * @version 1.0
+ */
+public class IncidentHistory {
+
+	private final ICMDB icmdb;
+	private final int ciId;
+	private Timestamp from = null;
+	private Timestamp to = null;
+	private Integer[] severities = null;
+	private int fetchSize = 500;
+
+	/**
+	 * Create a new IncidentHistory with no filters.
+	 *
+	 * @param icmdb The ICMDB to read
+	 * @param ciId The CMDB record ID of the ConfigurationItem
+	 */
+	public IncidentHistory(ICMDB icmdb, int ciId) {
+		this.icmdb = icmdb;
+		this.ciId = ciId;
+	}
+
+	/**
+	 * Read one page of the history.
+	 *
+	 * @param after The cursor of the previous page, or null for the first page
+	 * @param size The maximum number of Incidents in the page
+	 * @return The page
+	 * @throws ITILException If there is a failure while working with the back-end ICMDB
+	 */
+	public Page getPage(String after, int size) throws ITILException {
+		size = Math.max(1, size);
+		Page page = new Page();
+
+		Cursor cursor = Cursor.parse(after);
+		Connection conn = icmdb.openConnection();
+		PreparedStatement ps = null;
+		try {
+			// One row more than the page shows whether there is a next page
+			ps = prepare(conn, cursor, size + 1);
+			ResultSet rs = ps.executeQuery();
+			Merge merge = new Merge(rs, cursor);
+			CIBatch batch = new CIBatch(icmdb.getCIResolver());
+			Incident i;
+			while ((i = merge.next(batch)) != null) {
+				if (page.incidents.size() == size) {
+					page.more = true;
+					break;
+				}
+				page.incidents.add(i);
+			}
+			rs.close();
+		} catch (SQLException e) {
+			Notification n = new Notification(this, e);
+			n.alert();
+			throw new ITILException("Could not read the Incident history of CI " + ciId, e);
+		} finally {
+			close(ps, conn);
+		}
+
+		if (! page.incidents.isEmpty()) {
+			Incident last = page.incidents.get(page.incidents.size() - 1);
+			// The full timestamp, since the ICMDB keeps start dates to the microsecond
+			page.cursor = last.getStartDate().toString() + "|" + last.getId();
+		}
+		return page;
+	}
+
+	/**
+	 * Read the whole history, newest first, handing each Incident to a handler as it arrives.
+	 *
+	 * @param handler The Handler
+	 * @return The number of Incidents handled
+	 * @throws ITILException If there is a failure while working with the back-end ICMDB
+	 */
+	public long stream(Handler handler) throws ITILException {
+		long handled = 0;
+		Connection conn = icmdb.openConnection();
+		PreparedStatement ps = null;
+
+		try {
+			// PostgreSQL only streams with a fetch size when autocommit is off
+			conn.setAutoCommit(false);
+			ps = prepare(conn, null, 0);
+			ps.setFetchSize(fetchSize);
+			ResultSet rs = ps.executeQuery();
+			Merge merge = new Merge(rs, null);
+
+			// Each fetch shares a CIBatch, so reading the ConfigurationItem costs one query per fetch at most
+			CIBatch batch = new CIBatch(icmdb.getCIResolver());
+			Incident i;
+			while ((i = merge.next(batch)) != null) {
+				handled++;
+				if (! handler.incident(i)) {
+					break;
+				}
+				if (handled % fetchSize == 0) {
+					batch = new CIBatch(icmdb.getCIResolver());
+				}
+			}
+			rs.close();
+			conn.commit();
+		} catch (SQLException e) {
+			Notification n = new Notification(this, e);
+			n.alert();
+			throw new ITILException("Could not stream the Incident history of CI " + ciId, e);
+		} finally {
+			close(ps, conn);
+		}
+		return handled;
+	}
+
+	/**
+	 * Only read Incidents that started at or after a time.
+	 *
+	 * @param from The earliest start date, or null for no limit
+	 * @return This IncidentHistory
+	 */
+	public IncidentHistory setFrom(Timestamp from) {
+		this.from = from;
+		return this;
+	}
+
+	/**
+	 * Only read Incidents that started before a time.
+	 *
+	 * @param to The start date before which Incidents are read, or null for no limit
+	 * @return This IncidentHistory
+	 */
+	public IncidentHistory setTo(Timestamp to) {
+		this.to = to;
+		return this;
+	}
+
+	/**
+	 * Only read Incidents of some severities.
+	 *
+	 * @param severities The severities, or none for every severity
+	 * @return This IncidentHistory
+	 */
+	public IncidentHistory setSeverities(int... severities) {
+		if (severities == null || severities.length == 0) {
+			this.severities = null;
+			return this;
+		}
+		this.severities = new Integer[severities.length];
+		for (int s = 0; s < severities.length; s++) {
+			this.severities[s] = severities[s];
+		}
+		return this;
+	}
+
+	/**
+	 * Set the number of rows fetched from the server-side cursor at a time while streaming.
+	 *
+	 * @param fetchSize The fetch size
+	 * @return This IncidentHistory
+	 */
+	public IncidentHistory setFetchSize(int fetchSize) {
+		this.fetchSize = Math.max(1, fetchSize);
+		return this;
+	}
+
+	private PreparedStatement prepare(Connection conn, Cursor cursor, int limit) throws SQLException {
+		StringBuilder sql = new StringBuilder("SELECT * FROM incidents WHERE ci = ?");
+		if (from != null) {
+			sql.append(" AND start_date >= ?");
+		}
+		if (to != null) {
+			sql.append(" AND start_date < ?");
+		}
+		if (severities != null) {
+			sql.append(" AND severity = ANY(?)");
+		}
+		if (cursor != null) {
+			sql.append(" AND (start_date, id) < (?, ?)");
+		}
+		sql.append(" ORDER BY start_date DESC, id DESC");
+		if (limit > 0) {
+			sql.append(" LIMIT ?");
+		}
+
+		PreparedStatement ps = conn.prepareStatement(sql.toString(), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+		int arg = 1;
+		ps.setInt(arg++, ciId);
+		if (from != null) {
+			ps.setTimestamp(arg++, from);
+		}
+		if (to != null) {
+			ps.setTimestamp(arg++, to);
+		}
+		if (severities != null) {
+			ps.setArray(arg++, conn.createArrayOf("int", severities));
+		}
+		if (cursor != null) {
+			ps.setTimestamp(arg++, cursor.start);
+			ps.setInt(arg++, cursor.id);
+		}
+		if (limit > 0) {
+			ps.setInt(arg++, limit);
+		}
+		return ps;
+	}
+
+	private Incident toIncident(ResultSet rs, CIBatch batch) throws SQLException {
+		// The same mapping as every other ICMDB listing, occurrence columns included
+		ITILRow row = new ITILRow();
+		int numCols = rs.getMetaData().getColumnCount();
+		for (int colNum = 1; colNum <= numCols; colNum++) {
+			row.add(rs.getObject(colNum));
+		}
+		return icmdb.toIncident(row, batch);
+	}
+
+	private void close(PreparedStatement ps, Connection conn) {
+		try {
+			if (ps != null) {
+				ps.close();
+			}
+		} catch (SQLException e) {
+			Notification n = new Notification(this, e);
+			n.log();
+		}
+		try {
+			conn.close();
+		} catch (SQLException e) {
+			Notification n = new Notification(this, e);
+			n.log();
+		}
+	}
+
+	/*
+	 * Merges the Incidents still in the ICMDB with the archived ones, newest first
+	 */
+	private class Merge {
+		private final ResultSet hot;
+		private final IncidentArchive.History cold;
+		private Incident nextHot = null;
+		private Incident nextCold = null;
+		private boolean hotDone = false;
+		private boolean coldDone;
+		private long millis = Long.MIN_VALUE;
+		private final HashSet<Integer> sameMillis = new HashSet<Integer>();
+
+		Merge(ResultSet hot, Cursor cursor) {
+			this.hot = hot;
+			IncidentArchive archive = icmdb.getArchive();
+			if (archive == null) {
+				cold = null;
+			} else if (cursor == null) {
+				cold = archive.history(ciId, from, to, severities, null, 0);
+			} else {
+				cold = archive.history(ciId, from, to, severities, cursor.start, cursor.id);
+			}
+			coldDone = cold == null;
+		}
+
+		Incident next(CIBatch batch) throws SQLException, ITILException {
+			while (true) {
+				if (nextHot == null && ! hotDone) {
+					if (hot.next()) {
+						nextHot = toIncident(hot, batch);
+					} else {
+						hotDone = true;
+					}
+				}
+				if (nextCold == null && ! coldDone) {
+					nextCold = cold.next();
+					if (nextCold == null) {
+						coldDone = true;
+					} else {
+						batch.add(ciId);
+						nextCold.setCiReference(ciId, batch);
+					}
+				}
+
+				Incident i;
+				if (nextHot == null && nextCold == null) {
+					return null;
+				} else if (nextCold == null || (nextHot != null && compare(nextHot, nextCold) >= 0)) {
+					i = nextHot;
+					nextHot = null;
+				} else {
+					i = nextCold;
+					nextCold = null;
+				}
+
+				// An Incident not yet deleted after archiving is read twice.  The archive keeps start dates to
+				// the millisecond, so both copies fall in the same millisecond, and the ICMDB's comes first.
+				long m = i.getStartDate().getTime();
+				if (m != millis) {
+					millis = m;
+					sameMillis.clear();
+				}
+				if (sameMillis.add(i.getId())) {
+					return i;
+				}
+			}
+		}
+
+		private int compare(Incident a, Incident b) {
+			int c = a.getStartDate().compareTo(b.getStartDate());
+			return c != 0 ? c : a.getId().compareTo(b.getId());
+		}
+	}
+
+	/*
+	 * The start date and record number of the last Incident of a page
+	 */
+	private static class Cursor {
+		Timestamp start;
+		int id;
+
+		static Cursor parse(String after) throws ITILException {
+			if (after == null) {
+				return null;
+			}
+			Cursor cursor = new Cursor();
+			int bar = after.indexOf('|');
+			try {
+				cursor.start = Timestamp.valueOf(after.substring(0, bar));
+				cursor.id = Integer.parseInt(after.substring(bar + 1));
+			} catch (RuntimeException e) {
+				throw new ITILException("Invalid Incident history cursor: " + after, e);
+			}
+			return cursor;
+		}
+	}
+
+	/**
+	 * Receives the Incidents of a stream.
+	 */
+	public interface Handler {
+
+		/**
+		 * Handle one Incident.
+		 *
+		 * @param i The Incident
+		 * @return True to continue, false to stop the stream
+		 */
+		boolean incident(Incident i);
+	}
+
+	/**
+	 * One page of an IncidentHistory.
+	 */
+	public static class Page {
+		private final ArrayList<Incident> incidents = new ArrayList<Incident>();
+		private String cursor = null;
+		private boolean more = false;
+
+		/**
+		 * @return The Incidents of the page, newest first
+		 */
+		public List<Incident> getIncidents() {
+			return incidents;
+		}
+
+		/**
+		 * @return The cursor to pass to getPage for the next page, or null if the page is empty
+		 */
+		public String getCursor() {
+			return cursor;
+		}
+
+		/**
+		 * @return True if there is another page after this one
+		 */
+		public boolean hasMore() {
+			return more;
+		}
+	}
+}
@@ -0,0 +1,372 @@
+package com.cloudfordev.itil;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.cloudfordev.util.Notification;
+
+/**
+ * IncidentIngestor is a high throughput front end to ICMDB.addIncident for monitors that report
+ * Incidents faster than they can be written one at a time.<br>
+ * <br>
+ * Producers offer Incidents to a bounded queue.  A single writer thread drains the queue and
+ * writes each batch in one transaction with a few multi-row INSERT ... RETURNING statements, one
+ * per power of two in the batch size so that the statements are few and reused, sets the new
+ * ICMDB record number on every Incident, and only then notifies for them.  When the queue is
+ * full, offer returns false, and isSaturated tells producers to slow down before that happens.<br>
+ * <br>
+ * If a batch fails, its Incidents are retried one at a time through ICMDB.addIncident so
+ * that one bad Incident does not lose the batch.
+ *
+ * @author u1001
+ * @version 1.0
+ */
+public class IncidentIngestor {
+
+	private static final String INSERT_SQL = "INSERT INTO incidents (ci,start_date,resolve_date,source,severity,error_no,error_msg,contact_email,generation_hash,resolution) values ";
+	private static final String ROW_SQL = "(?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+	// PostgreSQL allows 32767 bind parameters per statement, and each row binds 10
+	private static final int MAX_ROWS = 3000;
+
+	private final ICMDB icmdb;
+	private final BlockingQueue<Incident> queue;
+	private final int maxBatch;
+	private final int highWatermark;
+
+	private final AtomicLong committed = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong batches = new AtomicLong();
+
+	private final SecureRandom random = new SecureRandom();
+	private final HashMap<Integer, String> sqlBySize = new HashMap<Integer, String>();
+	private Connection conn = null;
+	private Thread writer = null;
+	private volatile boolean running = false;
+
+	/**
+	 * Create a new IncidentIngestor.  It does not accept Incidents until started.
+	 *
+	 * @param icmdb The ICMDB to write Incidents to
+	 * @param capacity The number of Incidents that may wait in the queue
+	 * @param maxBatch The maximum number of Incidents written in one transaction, at most 3000
+	 */
+	public IncidentIngestor(ICMDB icmdb, int capacity, int maxBatch) {
+		this.icmdb = icmdb;
+		this.queue = new ArrayBlockingQueue<Incident>(capacity);
+		this.maxBatch = Math.min(MAX_ROWS, Math.max(1, maxBatch));
+		// Producers are asked to back off when the queue is three quarters full
+		this.highWatermark = Math.max(1, capacity - capacity / 4);
+	}
+
+	/**
+	 * Start the writer thread.
+	 */
+	public synchronized void start() {
+		if (running) {
+			return;
+		}
+
+		running = true;
+		writer = new Thread(new Runnable() {
+			public void run() {
+				writeLoop();
+			}
+		}, "IncidentIngestor");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Stop accepting Incidents, write everything already queued, and stop the writer thread.
+	 *
+	 * @param timeout The longest time to wait for the queue to drain
+	 * @param unit The unit of the timeout
+	 * @return True if the queue drained before the timeout
+	 * @throws InterruptedException If interrupted while waiting
+	 */
+	public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+		Thread t;
+		synchronized (this) {
+			running = false;
+			t = writer;
+		}
+
+		if (t != null) {
+			t.join(unit.toMillis(timeout));
+		}
+		return queue.isEmpty();
+	}
+
+	/**
+	 * Queue an Incident for writing without waiting.
+	 *
+	 * @param i The Incident to write
+	 * @return False if the queue is full or the IncidentIngestor is not running, in which case the Incident was not accepted
+	 */
+	public boolean offer(Incident i) {
+		if (! running) {
+			return false;
+		}
+		// A repeat collapsed by the ICMDB's IncidentDeduplicator never needs queueing
+		if (icmdb.collapseDuplicate(i) != null) {
+			return true;
+		}
+		if (queue.offer(i)) {
+			return true;
+		}
+		icmdb.forgetDuplicate(i);
+		return false;
+	}
+
+	/**
+	 * Queue an Incident for writing, waiting up to the timeout for room in the queue.
+	 *
+	 * @param i The Incident to write
+	 * @param timeout The longest time to wait for room
+	 * @param unit The unit of the timeout
+	 * @return False if there was no room before the timeout or the IncidentIngestor is not running
+	 * @throws InterruptedException If interrupted while waiting
+	 */
+	public boolean offer(Incident i, long timeout, TimeUnit unit) throws InterruptedException {
+		if (! running) {
+			return false;
+		}
+		if (icmdb.collapseDuplicate(i) != null) {
+			return true;
+		}
+		boolean queued = false;
+		try {
+			queued = queue.offer(i, timeout, unit);
+		} finally {
+			if (! queued) {
+				icmdb.forgetDuplicate(i);
+			}
+		}
+		return queued;
+	}
+
+	/**
+	 * @return True when the queue is filling faster than it drains and producers should back off
+	 */
+	public boolean isSaturated() {
+		return queue.size() >= highWatermark;
+	}
+
+	/**
+	 * @return The number of Incidents waiting to be written
+	 */
+	public int getQueueDepth() {
+		return queue.size();
+	}
+
+	/**
+	 * @return The number of Incidents that can be queued before offer is refused
+	 */
+	public int getRemainingCapacity() {
+		return queue.remainingCapacity();
+	}
+
+	/**
+	 * @return The number of Incidents written to the ICMDB
+	 */
+	public long getCommitted() {
+		return committed.get();
+	}
+
+	/**
+	 * @return The number of Incidents that could not be written to the ICMDB
+	 */
+	public long getFailed() {
+		return failed.get();
+	}
+
+	/**
+	 * @return The number of batch transactions committed
+	 */
+	public long getBatches() {
+		return batches.get();
+	}
+
+	private void writeLoop() {
+		ArrayList<Incident> batch = new ArrayList<Incident>(maxBatch);
+
+		try {
+			while (running || ! queue.isEmpty()) {
+				Incident first;
+				try {
+					first = queue.poll(100, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					// Finish what is queued, then stop
+					running = false;
+					continue;
+				}
+				// The occurrence counters of collapsed repeats are written here, off the producers' threads
+				icmdb.writeDueOccurrences();
+				if (first == null) {
+					continue;
+				}
+
+				// Everything that queued up behind the first Incident goes in the same transaction
+				batch.add(first);
+				queue.drainTo(batch, maxBatch - 1);
+
+				writeBatch(batch);
+				batch.clear();
+			}
+		} finally {
+			closeConnection();
+		}
+	}
+
+	private void writeBatch(ArrayList<Incident> batch) {
+		String[] hashes = new String[batch.size()];
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+
+		try {
+			if (conn == null) {
+				conn = icmdb.openConnection();
+				conn.setAutoCommit(false);
+			}
+
+			// The generation hash ties each returned id to its Incident, whatever order the rows come back in
+			HashMap<String, Integer> ids = new HashMap<String, Integer>();
+			int from = 0;
+			while (from < batch.size()) {
+				// Statements come in power of two sizes, so only a dozen are ever built and prepared
+				int size = Integer.highestOneBit(batch.size() - from);
+				ps = conn.prepareStatement(sqlFor(size));
+				int p = 1;
+				for (int b = from; b < from + size; b++) {
+					Incident i = batch.get(b);
+					hashes[b] = new BigInteger(130, random).toString(32);
+
+					ps.setInt(p++, i.getCiId());
+					ps.setTimestamp(p++, i.getStartDate());
+					if (i.getResolveDate() == null) {
+						ps.setNull(p++, Types.TIMESTAMP);
+					} else {
+						ps.setTimestamp(p++, i.getResolveDate());
+					}
+					ps.setString(p++, i.getSource());
+					ps.setInt(p++, i.getSeverity());
+					ps.setInt(p++, i.getErrorNo());
+					ps.setString(p++, i.getErrorMsg());
+					ps.setString(p++, i.getContactEmail());
+					ps.setString(p++, hashes[b]);
+					ps.setString(p++, i.getResolution());
+				}
+
+				rs = ps.executeQuery();
+				while (rs.next()) {
+					ids.put(rs.getString(2), rs.getInt(1));
+				}
+				rs.close();
+				rs = null;
+				ps.close();
+				ps = null;
+				from += size;
+			}
+			conn.commit();
+
+			for (int b = 0; b < batch.size(); b++) {
+				Integer id = ids.get(hashes[b]);
+				if (id != null) {
+					batch.get(b).setId(id);
+				}
+			}
+			batches.incrementAndGet();
+			committed.addAndGet(batch.size());
+		} catch (Exception e) {
+			Notification n = new Notification(this, e);
+			n.log();
+
+			rollback();
+			closeConnection();
+
+			// Fall back to one at a time so that one bad Incident does not cost the whole batch
+			for (Incident i : batch) {
+				try {
+					icmdb.addIncident(i);
+					committed.incrementAndGet();
+				} catch (ITILException ie) {
+					failed.incrementAndGet();
+				}
+			}
+			return;
+		} finally {
+			try {
+				if (rs != null) {
+					rs.close();
+				}
+				if (ps != null) {
+					ps.close();
+				}
+			} catch (SQLException e) {
+				Notification n = new Notification(this, e);
+				n.log();
+			}
+		}
+
+		// Notifications only go out once the batch is committed
+		for (Incident i : batch) {
+			icmdb.incidentAdded(i);
+		}
+	}
+
+	/*
+	 * The INSERT for the given number of rows, a power of two, built once per size
+	 */
+	private String sqlFor(int size) {
+		String sql = sqlBySize.get(size);
+		if (sql == null) {
+			StringBuilder sb = new StringBuilder(INSERT_SQL.length() + size * (ROW_SQL.length() + 1) + 32);
+			sb.append(INSERT_SQL);
+			for (int i = 0; i < size; i++) {
+				if (i > 0) {
+					sb.append(',');
+				}
+				sb.append(ROW_SQL);
+			}
+			sb.append(" RETURNING id, generation_hash");
+			sql = sb.toString();
+			sqlBySize.put(size, sql);
+		}
+		return sql;
+	}
+
+	private void rollback() {
+		try {
+			if (conn != null) {
+				conn.rollback();
+			}
+		} catch (SQLException e) {
+			Notification n = new Notification(this, e);
+			n.log();
+		}
+	}
+
+	private void closeConnection() {
+		try {
+			if (conn != null) {
+				conn.close();
+			}
+		} catch (SQLException e) {
+			Notification n = new Notification(this, e);
+			n.log();
+		} finally {
+			conn = null;
+		}
+	}
+}
@@ -0,0 +1,20 @@
+package com.cloudfordev.itil;
+
+/**
+ * IncidentListener receives the IncidentEvents of a subscription to an IncidentEventBus.<br>
+ * <br>
+ * Events are delivered on a bus thread, one at a time and in order for each subscription, so a
+ * listener does not need to be thread safe unless it is subscribed more than once.
+ *
+ * @author u1001
+ * @version 1.0
+ */
+public interface IncidentListener {
+
+	/**
+	 * Handle an IncidentEvent.
+	 *
+	 * @param event The event
+	 */
+	void incidentChanged(IncidentEvent event);
+}
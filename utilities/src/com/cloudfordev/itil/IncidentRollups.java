@@ -0,0 +1,521 @@
+package com.cloudfordev.itil;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.cloudfordev.util.Notification;
+
+/**
+ * IncidentRollups maintains hourly totals of Incidents by CI type, severity and source, so that
+ * reports over long periods read a few buckets instead of every Incident.<br>
+ * <br>
+ * Each bucket counts the Incidents created in the hour, the Incidents resolved in the hour, and
+ * the total open time of the Incidents resolved in the hour.  The ICMDB it is set on reports each
+ * Incident as it is added and resolved.  Those changes are summed in memory and added to the
+ * buckets by flush, periodically or on demand, so the cost per Incident is one map update.
+ * History is filled in by backfill, which recomputes whole hours from the incidents table.  Run
+ * backfill before older Incidents are moved to an IncidentArchive.<br>
+ * <br>
+ * The buckets are kept in the ICMDB, in a table that must exist:<br>
+ * CREATE TABLE incident_rollups (hour timestamp NOT NULL, ci_type int NOT NULL, severity int NOT NULL,
+ * source text NOT NULL, created int NOT NULL DEFAULT 0, resolved int NOT NULL DEFAULT 0,
+ * downtime_ms bigint NOT NULL DEFAULT 0, PRIMARY KEY (hour, ci_type, severity, source));
+ *
+ * @author u1001
+ * @version 1.0
+ */
+public class IncidentRollups {
+
+	private static final long HOUR = 3600000L;
+	private static final long BACKFILL_CHUNK = 24 * HOUR;
+
+	private static final String UPSERT_SQL = "INSERT INTO incident_rollups (hour, ci_type, severity, source, created, resolved, downtime_ms) "
+			+ "VALUES (?, ?, ?, ?, ?, ?, ?) ON CONFLICT (hour, ci_type, severity, source) DO UPDATE SET "
+			+ "created = incident_rollups.created + EXCLUDED.created, resolved = incident_rollups.resolved + EXCLUDED.resolved, "
+			+ "downtime_ms = incident_rollups.downtime_ms + EXCLUDED.downtime_ms";
+	private static final String CREATED_SQL = "SELECT date_trunc('hour', start_date), ci, severity, source, count(*) FROM incidents "
+			+ "WHERE start_date >= ? AND start_date < ? GROUP BY 1, 2, 3, 4";
+	private static final String RESOLVED_SQL = "SELECT date_trunc('hour', resolve_date), ci, severity, source, count(*), "
+			+ "sum(extract(epoch from resolve_date - start_date) * 1000)::bigint FROM incidents "
+			+ "WHERE resolve_date >= ? AND resolve_date < ? GROUP BY 1, 2, 3, 4";
+
+	private final ICMDB icmdb;
+	private final CMDB cmdb;
+
+	// Changes not yet added to the buckets
+	private HashMap<Key, Bucket> deltas = new HashMap<Key, Bucket>();
+	private ScheduledExecutorService flusher = null;
+
+	/**
+	 * Create a new IncidentRollups.
+	 *
+	 * @param icmdb The ICMDB holding the Incidents and the buckets
+	 * @param cmdb The CMDB to read CI types from when backfilling
+	 */
+	public IncidentRollups(ICMDB icmdb, CMDB cmdb) {
+		this.icmdb = icmdb;
+		this.cmdb = cmdb;
+	}
+
+	/**
+	 * Count a newly added Incident in the hour it started.
+	 *
+	 * @param i The Incident
+	 */
+	public void added(Incident i) {
+		if (i.getStartDate() == null) {
+			return;
+		}
+		synchronized (this) {
+			delta(i.getStartDate().getTime(), typeOf(i), i.getSeverity(), i.getSource()).created++;
+		}
+	}
+
+	/**
+	 * Count a resolved Incident, and its open time, in the hour it was resolved.
+	 *
+	 * @param i The Incident
+	 */
+	public void resolved(Incident i) {
+		if (i.getResolveDate() == null) {
+			return;
+		}
+		long resolved = i.getResolveDate().getTime();
+		long open = i.getStartDate() == null ? 0 : Math.max(0, resolved - i.getStartDate().getTime());
+		synchronized (this) {
+			Bucket b = delta(resolved, typeOf(i), i.getSeverity(), i.getSource());
+			b.resolved++;
+			b.downtime += open;
+		}
+	}
+
+	/**
+	 * Add the changes counted since the last flush to the buckets, in one transaction.  If the
+	 * transaction fails, the changes are kept for the next flush.
+	 *
+	 * @throws ITILException If there is a failure while working with the back-end ICMDB
+	 */
+	public void flush() throws ITILException {
+		HashMap<Key, Bucket> taken;
+		synchronized (this) {
+			if (deltas.isEmpty()) {
+				return;
+			}
+			taken = deltas;
+			deltas = new HashMap<Key, Bucket>();
+		}
+
+		try {
+			write(taken, null, null);
+		} catch (ITILException e) {
+			// Put the changes back so they are not lost
+			synchronized (this) {
+				for (Map.Entry<Key, Bucket> e2 : taken.entrySet()) {
+					Bucket b = deltas.get(e2.getKey());
+					if (b == null) {
+						deltas.put(e2.getKey(), e2.getValue());
+					} else {
+						b.add(e2.getValue());
+					}
+				}
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Recompute the buckets of every hour in a period from the incidents table, a day at a time.
+	 * The period is widened to whole hours, and the buckets of those hours are replaced.
+	 *
+	 * @param from The start of the period
+	 * @param to The end of the period
+	 * @throws ITILException If there is a failure while working with the back-end ICMDB or CMDB
+	 */
+	public void backfill(Timestamp from, Timestamp to) throws ITILException {
+		// Changes already counted for these hours would be counted twice once the hours are rebuilt
+		flush();
+
+		HashMap<Integer, Integer> typeOf = cmdb.getTypeMap(true);
+		long start = floorHour(from.getTime());
+		long end = floorHour(to.getTime() + HOUR - 1);
+
+		for (long chunk = start; chunk < end; chunk += BACKFILL_CHUNK) {
+			Timestamp chunkFrom = new Timestamp(chunk);
+			Timestamp chunkTo = new Timestamp(Math.min(end, chunk + BACKFILL_CHUNK));
+			HashMap<Key, Bucket> buckets = new HashMap<Key, Bucket>();
+
+			Connection conn = icmdb.openConnection();
+			PreparedStatement ps = null;
+			try {
+				ps = conn.prepareStatement(CREATED_SQL);
+				ps.setTimestamp(1, chunkFrom);
+				ps.setTimestamp(2, chunkTo);
+				ResultSet rs = ps.executeQuery();
+				while (rs.next()) {
+					Bucket b = bucket(buckets, rs, typeOf);
+					b.created += rs.getInt(5);
+				}
+				rs.close();
+				ps.close();
+
+				ps = conn.prepareStatement(RESOLVED_SQL);
+				ps.setTimestamp(1, chunkFrom);
+				ps.setTimestamp(2, chunkTo);
+				rs = ps.executeQuery();
+				while (rs.next()) {
+					Bucket b = bucket(buckets, rs, typeOf);
+					b.resolved += rs.getInt(5);
+					b.downtime += rs.getLong(6);
+				}
+				rs.close();
+			} catch (SQLException e) {
+				Notification n = new Notification(this, e);
+				n.alert();
+				throw new ITILException("Could not aggregate ICMDB Incidents for rollups", e);
+			} finally {
+				try {
+					if (ps != null) {
+						ps.close();
+					}
+					conn.close();
+				} catch (SQLException e) {
+					Notification n = new Notification(this, e);
+					n.log();
+				}
+			}
+
+			write(buckets, chunkFrom, chunkTo);
+		}
+	}
+
+	/**
+	 * Read the buckets of a period.  Each filter left null matches everything.
+	 *
+	 * @param from The start of the period
+	 * @param to The end of the period
+	 * @param ciType A CI type ID, or null
+	 * @param severity A severity, or null
+	 * @param source A source, or null
+	 * @return The matching buckets, ordered by hour
+	 * @throws ITILException If there is a failure while working with the back-end ICMDB
+	 */
+	public ArrayList<Bucket> query(Timestamp from, Timestamp to, Integer ciType, Integer severity, String source) throws ITILException {
+		StringBuilder sql = new StringBuilder("SELECT hour, ci_type, severity, source, created, resolved, downtime_ms "
+				+ "FROM incident_rollups WHERE hour >= date_trunc('hour', ?::timestamp) AND hour < ?");
+		if (ciType != null) {
+			sql.append(" AND ci_type = ?");
+		}
+		if (severity != null) {
+			sql.append(" AND severity = ?");
+		}
+		if (source != null) {
+			sql.append(" AND source = ?");
+		}
+		sql.append(" ORDER BY hour, ci_type, severity, source");
+
+		ArrayList<Bucket> buckets = new ArrayList<Bucket>();
+		Connection conn = icmdb.openConnection();
+		PreparedStatement ps = null;
+		try {
+			ps = conn.prepareStatement(sql.toString());
+			int arg = 1;
+			ps.setTimestamp(arg++, from);
+			ps.setTimestamp(arg++, to);
+			if (ciType != null) {
+				ps.setInt(arg++, ciType);
+			}
+			if (severity != null) {
+				ps.setInt(arg++, severity);
+			}
+			if (source != null) {
+				ps.setString(arg++, source);
+			}
+
+			ResultSet rs = ps.executeQuery();
+			while (rs.next()) {
+				Bucket b = new Bucket(new Key(rs.getTimestamp(1).getTime(), rs.getInt(2), rs.getInt(3), rs.getString(4)));
+				b.created = rs.getInt(5);
+				b.resolved = rs.getInt(6);
+				b.downtime = rs.getLong(7);
+				buckets.add(b);
+			}
+			rs.close();
+		} catch (SQLException e) {
+			Notification n = new Notification(this, e);
+			n.alert();
+			throw new ITILException("Could not read Incident rollups", e);
+		} finally {
+			try {
+				if (ps != null) {
+					ps.close();
+				}
+				conn.close();
+			} catch (SQLException e) {
+				Notification n = new Notification(this, e);
+				n.log();
+			}
+		}
+		return buckets;
+	}
+
+	/**
+	 * Sum the buckets of a period into one total.  Each filter left null matches everything.
+	 *
+	 * @param from The start of the period
+	 * @param to The end of the period
+	 * @param ciType A CI type ID, or null
+	 * @param severity A severity, or null
+	 * @param source A source, or null
+	 * @return The total, labelled with the start of the period and the filters, 0 or empty where a filter is null
+	 * @throws ITILException If there is a failure while working with the back-end ICMDB
+	 */
+	public Bucket total(Timestamp from, Timestamp to, Integer ciType, Integer severity, String source) throws ITILException {
+		Bucket total = new Bucket(new Key(floorHour(from.getTime()), ciType == null ? 0 : ciType, severity == null ? 0 : severity, source));
+		for (Bucket b : query(from, to, ciType, severity, source)) {
+			total.add(b);
+		}
+		return total;
+	}
+
+	/**
+	 * Flush periodically on a background thread.
+	 *
+	 * @param period The time between flushes
+	 * @param unit The unit of the period
+	 */
+	public synchronized void startFlushing(long period, TimeUnit unit) {
+		if (flusher != null) {
+			return;
+		}
+
+		flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "IncidentRollups");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		flusher.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					flush();
+				} catch (Exception e) {
+					Notification n = new Notification(IncidentRollups.this, e);
+					n.log();
+				}
+			}
+		}, period, period, unit);
+	}
+
+	/**
+	 * Stop the periodic flush, and flush what is left.
+	 *
+	 * @throws ITILException If the final flush fails
+	 */
+	public void stopFlushing() throws ITILException {
+		synchronized (this) {
+			if (flusher != null) {
+				flusher.shutdownNow();
+				flusher = null;
+			}
+		}
+		flush();
+	}
+
+	/*
+	 * Write buckets in one transaction.  With a period, the buckets of the period are replaced;
+	 * without one, the buckets are added to those already there.
+	 */
+	private void write(HashMap<Key, Bucket> buckets, Timestamp from, Timestamp to) throws ITILException {
+		Connection conn = icmdb.openConnection();
+		PreparedStatement ps = null;
+
+		try {
+			conn.setAutoCommit(false);
+
+			if (from != null) {
+				ps = conn.prepareStatement("DELETE FROM incident_rollups WHERE hour >= ? AND hour < ?");
+				ps.setTimestamp(1, from);
+				ps.setTimestamp(2, to);
+				ps.executeUpdate();
+				ps.close();
+			}
+
+			ps = conn.prepareStatement(UPSERT_SQL);
+			for (Bucket b : buckets.values()) {
+				ps.setTimestamp(1, new Timestamp(b.key.hour));
+				ps.setInt(2, b.key.ciType);
+				ps.setInt(3, b.key.severity);
+				ps.setString(4, b.key.source);
+				ps.setInt(5, b.created);
+				ps.setInt(6, b.resolved);
+				ps.setLong(7, b.downtime);
+				ps.addBatch();
+			}
+			ps.executeBatch();
+			conn.commit();
+		} catch (SQLException e) {
+			try {
+				conn.rollback();
+			} catch (SQLException re) {
+				Notification n = new Notification(this, re);
+				n.log();
+			}
+			Notification n = new Notification(this, e);
+			n.alert();
+			throw new ITILException("Could not write Incident rollups", e);
+		} finally {
+			try {
+				if (ps != null) {
+					ps.close();
+				}
+				conn.close();
+			} catch (SQLException e) {
+				Notification n = new Notification(this, e);
+				n.log();
+			}
+		}
+	}
+
+	private Bucket delta(long time, int ciType, int severity, String source) {
+		Key key = new Key(floorHour(time), ciType, severity, source);
+		Bucket b = deltas.get(key);
+		if (b == null) {
+			b = new Bucket(key);
+			deltas.put(key, b);
+		}
+		return b;
+	}
+
+	private static Bucket bucket(HashMap<Key, Bucket> buckets, ResultSet rs, HashMap<Integer, Integer> typeOf) throws SQLException {
+		// Several CIs share a type, so their rows land in the same bucket
+		Integer type = typeOf.get(rs.getInt(2));
+		Key key = new Key(rs.getTimestamp(1).getTime(), type == null ? 0 : type, rs.getInt(3), rs.getString(4));
+		Bucket b = buckets.get(key);
+		if (b == null) {
+			b = new Bucket(key);
+			buckets.put(key, b);
+		}
+		return b;
+	}
+
+	private static int typeOf(Incident i) {
+		ConfigurationItem ci = i.getCi();
+		return ci == null || ci.getType() == null ? 0 : ci.getType();
+	}
+
+	private static long floorHour(long time) {
+		// Timestamps are local time in the ICMDB, as date_trunc sees them
+		long offset = TimeZone.getDefault().getOffset(time);
+		return (time + offset) / HOUR * HOUR - offset;
+	}
+
+	/**
+	 * The hour, CI type, severity and source of a bucket.
+	 */
+	private static final class Key {
+		final long hour;
+		final int ciType;
+		final int severity;
+		final String source;
+
+		Key(long hour, int ciType, int severity, String source) {
+			this.hour = hour;
+			this.ciType = ciType;
+			this.severity = severity;
+			this.source = source == null ? "" : source;
+		}
+
+		public int hashCode() {
+			return ((int) (hour ^ (hour >>> 32)) * 31 + ciType * 17 + severity) * 31 + source.hashCode();
+		}
+
+		public boolean equals(Object o) {
+			if (! (o instanceof Key)) {
+				return false;
+			}
+			Key k = (Key) o;
+			return hour == k.hour && ciType == k.ciType && severity == k.severity && source.equals(k.source);
+		}
+	}
+
+	/**
+	 * The Incident totals of one hour, CI type, severity and source.
+	 */
+	public static class Bucket {
+		private final Key key;
+		private int created = 0;
+		private int resolved = 0;
+		private long downtime = 0;
+
+		Bucket(Key key) {
+			this.key = key;
+		}
+
+		void add(Bucket other) {
+			created += other.created;
+			resolved += other.resolved;
+			downtime += other.downtime;
+		}
+
+		/**
+		 * @return The start of the hour
+		 */
+		public Timestamp getHour() {
+			return new Timestamp(key.hour);
+		}
+
+		/**
+		 * @return The CI type ID, or 0 if the ConfigurationItem was not found in the CMDB
+		 */
+		public int getCIType() {
+			return key.ciType;
+		}
+
+		/**
+		 * @return The severity
+		 */
+		public int getSeverity() {
+			return key.severity;
+		}
+
+		/**
+		 * @return The source
+		 */
+		public String getSource() {
+			return key.source;
+		}
+
+		/**
+		 * @return The number of Incidents created in the hour
+		 */
+		public int getCreated() {
+			return created;
+		}
+
+		/**
+		 * @return The number of Incidents resolved in the hour
+		 */
+		public int getResolved() {
+			return resolved;
+		}
+
+		/**
+		 * @return The total open time of the Incidents resolved in the hour, in milliseconds
+		 */
+		public long getDowntime() {
+			return downtime;
+		}
+	}
+}
@@ -0,0 +1,795 @@
+package com.cloudfordev.itil;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import com.cloudfordev.util.Notification;
+
+/**
+ * IncidentSpool keeps Incidents and resolutions on local disk while the ICMDB cannot be reached,
+ * and writes them to the ICMDB in order once it recovers.<br>
+ * <br>
+ * The spool is an append-only log.  Each record carries its length and a CRC32, so a record torn
+ * by a crash is detected and cut off when the spool is opened.  Appending only writes to the file;
+ * a flusher thread syncs it to disk every few milliseconds, so many records share one sync and
+ * spooling costs no more than a write call.  Callers that must know a record is on disk call sync.<br>
+ * <br>
+ * A replayer thread drains the log to the ICMDB in batches, one transaction per batch, and records
+ * how far it got in a checkpoint file after each commit.  Replay is idempotent: a spooled Incident
+ * is found by its generation hash before it is inserted, and a resolution simply sets the same
+ * values again, so a crash between a commit and its checkpoint only replays records that are
+ * already there.  Once every record is replayed the log is truncated.  While the ICMDB stays down,
+ * the replayer backs off up to a maximum interval between attempts.<br>
+ * <br>
+ * A record the ICMDB refuses, rather than fails to receive, would block the spool forever, so it
+ * is rolled back to a savepoint, appended to a reject file in the same format as the spool, and
+ * passed over.
+ *
+ * @author u1001
+ * @version 1.0
+ */
+public class IncidentSpool {
+
+	private static final byte ADD = 1;
+	private static final byte RESOLVE = 2;
+	private static final int HEADER = 8;
+	private static final String INSERT_SQL = "INSERT INTO incidents (ci,start_date,resolve_date,source,severity,error_no,error_msg,contact_email,generation_hash,resolution) "
+			+ "values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?) RETURNING id";
+
+	private final ICMDB icmdb;
+	private final File checkpointFile;
+	private final File rejectFile;
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+
+	private long writeOffset;
+	private volatile long syncedOffset;
+	// Bumped by each compact, so a sync that started before it cannot mark the new file as synced
+	private long generation = 0;
+	private volatile long replayOffset;
+	private volatile long pending = 0;
+	private volatile long oldestPending = 0;
+
+	// The Incidents spooled by this process, by the offset of their record, so replay can update them
+	private final ConcurrentHashMap<Long, Incident> spooled = new ConcurrentHashMap<Long, Incident>();
+	private final Object replayLock = new Object();
+
+	private long syncInterval = 10;
+	private long retryInterval = 1000;
+	private long maxRetryInterval = 60000;
+	private int batchSize = 500;
+
+	private volatile boolean running = false;
+	private Thread flusher = null;
+	private Thread replayer = null;
+
+	/**
+	 * Open the spool in a directory, creating it if needed, and recover any records left by an earlier run.
+	 *
+	 * @param directory The directory holding the spool and its checkpoint
+	 * @param icmdb The ICMDB the spool is replayed to
+	 * @throws ITILException If the spool cannot be opened
+	 */
+	public IncidentSpool(File directory, ICMDB icmdb) throws ITILException {
+		this.icmdb = icmdb;
+
+		if (! directory.isDirectory() && ! directory.mkdirs()) {
+			throw new ITILException("Cannot create the incident spool directory " + directory);
+		}
+		this.checkpointFile = new File(directory, "incidents.ckpt");
+		this.rejectFile = new File(directory, "incidents.rejected");
+
+		try {
+			raf = new RandomAccessFile(new File(directory, "incidents.spool"), "rw");
+			channel = raf.getChannel();
+			replayOffset = Math.min(readCheckpoint(), channel.size());
+			recover();
+		} catch (IOException e) {
+			throw new ITILException("Cannot open the incident spool in " + directory, e);
+		}
+	}
+
+	/**
+	 * Start the flusher and replayer threads.
+	 */
+	public synchronized void start() {
+		if (running) {
+			return;
+		}
+
+		running = true;
+		flusher = new Thread(new Runnable() {
+			public void run() {
+				flushLoop();
+			}
+		}, "IncidentSpool-flusher");
+		flusher.setDaemon(true);
+		flusher.start();
+
+		replayer = new Thread(new Runnable() {
+			public void run() {
+				replayLoop();
+			}
+		}, "IncidentSpool-replayer");
+		replayer.setDaemon(true);
+		replayer.start();
+	}
+
+	/**
+	 * Stop the threads, sync the spool and close it.  Unreplayed records stay in the spool for the next run.
+	 *
+	 * @param timeout The longest time to wait for each thread
+	 * @param unit The unit of the timeout
+	 * @throws InterruptedException If interrupted while waiting
+	 */
+	public void shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+		Thread f;
+		Thread r;
+		synchronized (this) {
+			running = false;
+			f = flusher;
+			r = replayer;
+		}
+		if (f != null) {
+			f.interrupt();
+			f.join(unit.toMillis(timeout));
+		}
+		if (r != null) {
+			r.interrupt();
+			r.join(unit.toMillis(timeout));
+		}
+
+		try {
+			sync();
+			channel.close();
+			raf.close();
+		} catch (IOException e) {
+			Notification n = new Notification(this, e);
+			n.log();
+		}
+	}
+
+	/**
+	 * Spool a new Incident.
+	 *
+	 * @param i The Incident
+	 * @param generationHash The unique String the Incident is written with, used to replay it only once
+	 * @throws ITILException If the spool cannot be written
+	 */
+	void add(Incident i, String generationHash) throws ITILException {
+		i.setGenerationHash(generationHash);
+		Record r = new Record();
+		r.type = ADD;
+		r.hash = generationHash;
+		r.ci = i.getCiId() == null ? 0 : i.getCiId();
+		r.startDate = time(i.getStartDate());
+		r.resolveDate = time(i.getResolveDate());
+		r.source = i.getSource();
+		r.severity = i.getSeverity();
+		r.errorNo = i.getErrorNo();
+		r.errorMsg = i.getErrorMsg();
+		r.contactEmail = i.getContactEmail();
+		r.resolution = i.getResolution();
+		append(r, i);
+	}
+
+	/**
+	 * Spool the resolution of an Incident.
+	 *
+	 * @param i The resolved Incident, with either its ICMDB record number or the generation hash it was spooled with
+	 * @throws ITILException If the Incident cannot be identified or the spool cannot be written
+	 */
+	void resolve(Incident i) throws ITILException {
+		int id = i.getId() == null ? 0 : i.getId();
+		if (id == 0 && i.getGenerationHash() == null) {
+			throw new ITILException("Cannot spool the resolution of an Incident that was never written or spooled");
+		}
+
+		Record r = new Record();
+		r.type = RESOLVE;
+		r.id = id;
+		r.hash = i.getGenerationHash();
+		r.resolveDate = time(i.getResolveDate());
+		r.resolution = i.getResolution();
+		append(r, i);
+	}
+
+	/**
+	 * Sync everything appended so far to disk.
+	 *
+	 * @throws IOException If the sync fails
+	 */
+	public void sync() throws IOException {
+		long target;
+		long synced;
+		long gen;
+		synchronized (this) {
+			target = writeOffset;
+			synced = syncedOffset;
+			gen = generation;
+		}
+		if (target > synced) {
+			channel.force(false);
+			synchronized (this) {
+				if (generation == gen && target > syncedOffset) {
+					syncedOffset = target;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Write spooled records to the ICMDB, up to the end of the spool as it is now.
+	 *
+	 * @return The number of records replayed
+	 * @throws ITILException If the ICMDB cannot be reached or a record cannot be written
+	 */
+	public long replay() throws ITILException {
+		synchronized (replayLock) {
+			long end;
+			synchronized (this) {
+				end = writeOffset;
+			}
+			if (replayOffset >= end) {
+				compact();
+				return 0;
+			}
+
+			long replayed = 0;
+			Connection conn = icmdb.openConnection();
+			try {
+				conn.setAutoCommit(false);
+				while (replayOffset < end) {
+					replayed += replayBatch(conn, end);
+				}
+			} catch (SQLException e) {
+				try {
+					conn.rollback();
+				} catch (SQLException re) {
+					Notification n = new Notification(this, re);
+					n.log();
+				}
+				throw new ITILException("Could not replay the incident spool", e);
+			} catch (IOException e) {
+				throw new ITILException("Could not read the incident spool", e);
+			} finally {
+				try {
+					conn.close();
+				} catch (SQLException e) {
+					Notification n = new Notification(this, e);
+					n.log();
+				}
+			}
+
+			compact();
+			Notification n = new Notification(this, "Replayed " + replayed + " spooled Incident records to the ICMDB");
+			n.log();
+			return replayed;
+		}
+	}
+
+	/**
+	 * @return True if any record is waiting to be replayed
+	 */
+	public boolean isPending() {
+		return pending > 0;
+	}
+
+	/**
+	 * @return The number of records waiting to be replayed
+	 */
+	public long getDepth() {
+		return pending;
+	}
+
+	/**
+	 * @return How long the oldest unreplayed record has waited, in milliseconds, or 0 if none is waiting
+	 */
+	public long getReplayLag() {
+		long oldest = oldestPending;
+		return oldest == 0 ? 0 : System.currentTimeMillis() - oldest;
+	}
+
+	/**
+	 * @return The size of the spool file in bytes
+	 */
+	public synchronized long getSize() {
+		return writeOffset;
+	}
+
+	/**
+	 * Set the time between syncs of the spool to disk.
+	 *
+	 * @param syncInterval The sync interval in milliseconds
+	 */
+	public void setSyncInterval(long syncInterval) {
+		this.syncInterval = Math.max(1, syncInterval);
+	}
+
+	/**
+	 * Set the time between replay attempts while the ICMDB is down.  The time doubles after each
+	 * failed attempt, up to the maximum.
+	 *
+	 * @param retryInterval The first retry interval in milliseconds
+	 * @param maxRetryInterval The maximum retry interval in milliseconds
+	 */
+	public void setRetryInterval(long retryInterval, long maxRetryInterval) {
+		this.retryInterval = Math.max(1, retryInterval);
+		this.maxRetryInterval = Math.max(this.retryInterval, maxRetryInterval);
+	}
+
+	/**
+	 * Set the number of records written per replay transaction.
+	 *
+	 * @param batchSize The batch size
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = Math.max(1, batchSize);
+	}
+
+	/*
+	 * Encode a record and append it, remembering the Incident before the replayer can see the record
+	 */
+	private void append(Record r, Incident i) throws ITILException {
+		long now = System.currentTimeMillis();
+		r.spooledAt = now;
+
+		ByteBuffer buf;
+		try {
+			buf = r.encode();
+		} catch (IOException e) {
+			throw new ITILException("Could not encode a spool record", e);
+		}
+
+		boolean first;
+		long offset;
+		synchronized (this) {
+			offset = writeOffset;
+			try {
+				long pos = offset;
+				while (buf.hasRemaining()) {
+					pos += channel.write(buf, pos);
+				}
+			} catch (IOException e) {
+				Notification n = new Notification(this, e);
+				n.alert();
+				throw new ITILException("Could not write to the incident spool", e);
+			}
+			spooled.put(offset, i);
+			writeOffset = offset + buf.limit();
+			first = pending == 0;
+			if (first) {
+				oldestPending = now;
+			}
+			pending++;
+		}
+
+		if (first) {
+			// Page once per outage, not once per spooled Incident
+			Notification n = new Notification(this, "ICMDB unavailable, spooling Incidents until it recovers");
+			n.alert();
+		}
+	}
+
+	/*
+	 * Replay one batch in one transaction, then move the checkpoint and run the post-commit hooks
+	 */
+	private long replayBatch(Connection conn, long end) throws SQLException, IOException {
+		ArrayList<Record> done = new ArrayList<Record>(batchSize);
+		long pos = replayOffset;
+
+		while (pos < end && done.size() < batchSize) {
+			Record r = readRecord(pos);
+			if (r == null) {
+				throw new IOException("Corrupt incident spool record at offset " + pos);
+			}
+			Savepoint sp = conn.setSavepoint();
+			try {
+				if (r.type == ADD) {
+					replayAdd(conn, r);
+				} else {
+					replayResolve(conn, r);
+				}
+				conn.releaseSavepoint(sp);
+			} catch (SQLException e) {
+				if (ICMDB.isUnavailable(e)) {
+					throw e;
+				}
+				// Refused, so it would fail on every replay
+				conn.rollback(sp);
+				reject(r, e);
+			}
+			done.add(r);
+			pos += r.length;
+		}
+
+		conn.commit();
+		replayOffset = pos;
+		writeCheckpoint(pos);
+
+		synchronized (this) {
+			pending -= done.size();
+			if (pending <= 0) {
+				oldestPending = 0;
+			} else if (pos < writeOffset) {
+				Record next = readRecord(pos);
+				oldestPending = next == null ? 0 : next.spooledAt;
+			}
+		}
+
+		for (Record r : done) {
+			afterCommit(r);
+		}
+		return done.size();
+	}
+
+	/*
+	 * Append a refused record to the reject file, synced before the checkpoint can pass it
+	 */
+	private void reject(Record r, SQLException e) throws IOException {
+		r.rejected = e.toString();
+		FileOutputStream out = new FileOutputStream(rejectFile, true);
+		try {
+			ByteBuffer buf = r.encode();
+			out.write(buf.array(), 0, buf.limit());
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+	}
+
+	private void replayAdd(Connection conn, Record r) throws SQLException {
+		// A record replayed before a crash is already in the ICMDB
+		PreparedStatement ps = conn.prepareStatement("SELECT id FROM incidents WHERE generation_hash = ?");
+		try {
+			ps.setString(1, r.hash);
+			ResultSet rs = ps.executeQuery();
+			if (rs.next()) {
+				r.id = rs.getInt(1);
+				r.written = false;
+				rs.close();
+				return;
+			}
+			rs.close();
+		} finally {
+			ps.close();
+		}
+
+		ps = conn.prepareStatement(INSERT_SQL);
+		try {
+			ps.setInt(1, r.ci);
+			ps.setTimestamp(2, timestamp(r.startDate));
+			setTimestamp(ps, 3, r.resolveDate);
+			ps.setString(4, r.source);
+			ps.setInt(5, r.severity);
+			ps.setInt(6, r.errorNo);
+			ps.setString(7, r.errorMsg);
+			ps.setString(8, r.contactEmail);
+			ps.setString(9, r.hash);
+			ps.setString(10, r.resolution);
+			ResultSet rs = ps.executeQuery();
+			rs.next();
+			r.id = rs.getInt(1);
+			r.written = true;
+			rs.close();
+		} finally {
+			ps.close();
+		}
+	}
+
+	private void replayResolve(Connection conn, Record r) throws SQLException {
+		String sql = r.id != 0 ? "UPDATE incidents SET resolve_date = ?, resolution = ? WHERE id = ? RETURNING id"
+				: "UPDATE incidents SET resolve_date = ?, resolution = ? WHERE generation_hash = ? RETURNING id";
+		PreparedStatement ps = conn.prepareStatement(sql);
+		try {
+			setTimestamp(ps, 1, r.resolveDate);
+			ps.setString(2, r.resolution);
+			if (r.id != 0) {
+				ps.setInt(3, r.id);
+			} else {
+				ps.setString(3, r.hash);
+			}
+			ResultSet rs = ps.executeQuery();
+			r.written = rs.next();
+			if (r.written) {
+				r.id = rs.getInt(1);
+			}
+			rs.close();
+		} finally {
+			ps.close();
+		}
+	}
+
+	/*
+	 * Tell the ICMDB about the replayed records, as if they had just been added and resolved
+	 */
+	private void afterCommit(Record r) {
+		Incident i = spooled.remove(r.offset);
+		if (r.rejected != null) {
+			Notification n = new Notification(this, "ICMDB refused a spooled " + (r.type == ADD ? "Incident" : "resolution")
+					+ " (" + (r.id != 0 ? r.id : r.hash) + "), moved to " + rejectFile + ": " + r.rejected);
+			n.alert();
+			return;
+		}
+		if (! r.written) {
+			if (r.type == RESOLVE) {
+				Notification n = new Notification(this, "Spooled resolution matched no Incident: " + (r.id != 0 ? r.id : r.hash));
+				n.log();
+			}
+			return;
+		}
+
+		try {
+			if (i == null) {
+				// Spooled by an earlier run, so rebuild the Incident from the ICMDB
+				i = icmdb.getIncByID(r.id);
+			}
+			i.setId(r.id);
+			if (r.type == ADD) {
+				icmdb.incidentAdded(i);
+			} else {
+				icmdb.incidentResolved(i);
+			}
+		} catch (ITILException e) {
+			Notification n = new Notification(this, e);
+			n.log();
+		}
+	}
+
+	/*
+	 * Find the end of the valid records after the checkpoint, cutting off a torn tail
+	 */
+	private void recover() throws IOException {
+		long pos = replayOffset;
+		long size = channel.size();
+		Record r;
+		while (pos < size && (r = readRecord(pos)) != null) {
+			if (pending == 0) {
+				oldestPending = r.spooledAt;
+			}
+			pending++;
+			pos += r.length;
+		}
+
+		if (pos < size) {
+			Notification n = new Notification(this, "Discarding " + (size - pos) + " bytes of torn records at the end of the incident spool");
+			n.log();
+			channel.truncate(pos);
+		}
+		writeOffset = pos;
+		syncedOffset = pos;
+	}
+
+	/*
+	 * Read the record at an offset, or return null if it is incomplete or corrupt
+	 */
+	private Record readRecord(long offset) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER);
+		if (! readFully(header, offset)) {
+			return null;
+		}
+		header.flip();
+		int length = header.getInt();
+		int crc = header.getInt();
+		if (length <= 0 || length > 64 * 1024 * 1024) {
+			return null;
+		}
+
+		ByteBuffer payload = ByteBuffer.allocate(length);
+		if (! readFully(payload, offset + HEADER)) {
+			return null;
+		}
+		CRC32 check = new CRC32();
+		check.update(payload.array(), 0, length);
+		if ((int) check.getValue() != crc) {
+			return null;
+		}
+
+		Record r = Record.decode(payload.array());
+		r.offset = offset;
+		r.length = HEADER + length;
+		return r;
+	}
+
+	private boolean readFully(ByteBuffer buf, long offset) throws IOException {
+		long pos = offset;
+		while (buf.hasRemaining()) {
+			int n = channel.read(buf, pos);
+			if (n < 0) {
+				return false;
+			}
+			pos += n;
+		}
+		return true;
+	}
+
+	/*
+	 * Truncate the spool once everything in it is replayed
+	 */
+	private synchronized void compact() throws ITILException {
+		if (writeOffset == 0 || replayOffset < writeOffset) {
+			return;
+		}
+		try {
+			channel.truncate(0);
+			channel.force(true);
+			writeOffset = 0;
+			syncedOffset = 0;
+			generation++;
+			replayOffset = 0;
+			pending = 0;
+			oldestPending = 0;
+			writeCheckpoint(0);
+		} catch (IOException e) {
+			throw new ITILException("Could not truncate the incident spool", e);
+		}
+	}
+
+	private long readCheckpoint() throws IOException {
+		if (! checkpointFile.exists()) {
+			return 0;
+		}
+		RandomAccessFile ckpt = new RandomAccessFile(checkpointFile, "r");
+		try {
+			return ckpt.length() < 8 ? 0 : ckpt.readLong();
+		} finally {
+			ckpt.close();
+		}
+	}
+
+	private void writeCheckpoint(long offset) throws IOException {
+		RandomAccessFile ckpt = new RandomAccessFile(checkpointFile, "rw");
+		try {
+			ckpt.seek(0);
+			ckpt.writeLong(offset);
+			ckpt.getFD().sync();
+		} finally {
+			ckpt.close();
+		}
+	}
+
+	private void flushLoop() {
+		while (running) {
+			try {
+				Thread.sleep(syncInterval);
+				sync();
+			} catch (InterruptedException e) {
+				return;
+			} catch (IOException e) {
+				Notification n = new Notification(this, e);
+				n.alert();
+			}
+		}
+	}
+
+	private void replayLoop() {
+		long delay = retryInterval;
+		while (running) {
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (! isPending()) {
+				continue;
+			}
+
+			try {
+				replay();
+				delay = retryInterval;
+			} catch (ITILException e) {
+				// Still down, so wait longer before the next attempt
+				delay = Math.min(delay * 2, maxRetryInterval);
+			}
+		}
+	}
+
+	private static long time(Timestamp t) {
+		return t == null ? -1 : t.getTime();
+	}
+
+	private static Timestamp timestamp(long t) {
+		return t < 0 ? null : new Timestamp(t);
+	}
+
+	private static void setTimestamp(PreparedStatement ps, int index, long t) throws SQLException {
+		if (t < 0) {
+			ps.setNull(index, Types.TIMESTAMP);
+		} else {
+			ps.setTimestamp(index, new Timestamp(t));
+		}
+	}
+
+	/**
+	 * One spooled Incident or resolution.
+	 */
+	private static class Record {
+		byte type;
+		long spooledAt;
+		String hash;
+		int id;
+		int ci;
+		long startDate = -1;
+		long resolveDate = -1;
+		String source;
+		int severity;
+		int errorNo;
+		String errorMsg;
+		String contactEmail;
+		String resolution;
+
+		// Set while reading and replaying
+		long offset;
+		int length;
+		boolean written;
+		String rejected;
+
+		ByteBuffer encode() throws IOException {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(0);
+			out.writeInt(0);
+			out.writeByte(type);
+			out.writeLong(spooledAt);
+			RecordFormat.writeString(out, hash);
+			out.writeInt(id);
+			out.writeInt(ci);
+			out.writeLong(startDate);
+			out.writeLong(resolveDate);
+			RecordFormat.writeString(out, source);
+			out.writeInt(severity);
+			out.writeInt(errorNo);
+			RecordFormat.writeString(out, errorMsg);
+			RecordFormat.writeString(out, contactEmail);
+			RecordFormat.writeString(out, resolution);
+			out.flush();
+
+			// Fill in the header now the payload is known
+			ByteBuffer buf = ByteBuffer.wrap(bytes.toByteArray());
+			int length = buf.limit() - HEADER;
+			CRC32 crc = new CRC32();
+			crc.update(buf.array(), HEADER, length);
+			buf.putInt(0, length);
+			buf.putInt(4, (int) crc.getValue());
+			return buf;
+		}
+
+		static Record decode(byte[] payload) throws IOException {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+			Record r = new Record();
+			r.type = in.readByte();
+			r.spooledAt = in.readLong();
+			r.hash = RecordFormat.readString(in);
+			r.id = in.readInt();
+			r.ci = in.readInt();
+			r.startDate = in.readLong();
+			r.resolveDate = in.readLong();
+			r.source = RecordFormat.readString(in);
+			r.severity = in.readInt();
+			r.errorNo = in.readInt();
+			r.errorMsg = RecordFormat.readString(in);
+			r.contactEmail = RecordFormat.readString(in);
+			r.resolution = RecordFormat.readString(in);
+			return r;
+		}
+	}
+}
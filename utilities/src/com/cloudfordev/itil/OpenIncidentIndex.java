@@ -0,0 +1,312 @@
+package com.cloudfordev.itil;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.cloudfordev.util.Notification;
+
+/**
+ * OpenIncidentIndex is a live, in-memory view of the unresolved Incidents in the ICMDB, indexed by
+ * ConfigurationItem and by severity.<br>
+ * <br>
+ * The index is seeded once from the ICMDB, and kept current by the ICMDB it is set on as Incidents
+ * are added and resolved.  Changes made by other processes are picked up by reconcile, which
+ * compares only the record numbers of open Incidents with the database and fetches what is missing.
+ * Once set on an ICMDB and seeded, ICMDB.getOpenIncidents is answered from the index.  The index
+ * keeps its own copy of each Incident, and returns copies, so a caller that changes one, for
+ * example to resolve it, does not change the index.  The ConfigurationItems of the copies are
+ * loaded afresh from the CMDB, through one CIBatch per call, when they are first read.
+ *
+ * @author u1001
+ * @version 1.0
+ */
+public class OpenIncidentIndex {
+
+	private final ICMDB icmdb;
+	private final ConcurrentHashMap<Integer, Entry> byId = new ConcurrentHashMap<Integer, Entry>();
+	private final ConcurrentHashMap<Integer, Set<Incident>> byCI = new ConcurrentHashMap<Integer, Set<Incident>>();
+	private final ConcurrentHashMap<Integer, Set<Incident>> bySeverity = new ConcurrentHashMap<Integer, Set<Incident>>();
+
+	// Record numbers resolved locally while a reconcile runs, so the reconcile does not re-add them
+	private final ConcurrentHashMap<Integer, Long> resolvedAt = new ConcurrentHashMap<Integer, Long>();
+	private volatile boolean reconciling = false;
+
+	private volatile boolean seeded = false;
+	private ScheduledExecutorService reconciler = null;
+
+	/**
+	 * Create a new, empty OpenIncidentIndex.
+	 *
+	 * @param icmdb The ICMDB to seed and reconcile from
+	 */
+	public OpenIncidentIndex(ICMDB icmdb) {
+		this.icmdb = icmdb;
+	}
+
+	/**
+	 * Load every unresolved Incident from the ICMDB, replacing the contents of the index.
+	 *
+	 * @throws ITILException If there is a failure while working with the back-end ICMDB
+	 */
+	public synchronized void seed() throws ITILException {
+		ArrayList<Incident> open = icmdb.loadOpenIncidents();
+
+		byId.clear();
+		byCI.clear();
+		bySeverity.clear();
+		resolvedAt.clear();
+
+		for (Incident i : open) {
+			opened(i);
+		}
+		seeded = true;
+	}
+
+	/**
+	 * Bring the index in line with the ICMDB, picking up Incidents added or resolved by other processes.
+	 *
+	 * @throws ITILException If there is a failure while working with the back-end ICMDB
+	 */
+	public synchronized void reconcile() throws ITILException {
+		reconciling = true;
+		try {
+			reconcile(System.currentTimeMillis());
+		} finally {
+			reconciling = false;
+			// The next reconcile reads the database after these resolutions were written
+			resolvedAt.clear();
+		}
+	}
+
+	private void reconcile(long started) throws ITILException {
+		HashSet<Integer> open = new HashSet<Integer>(icmdb.getOpenIncidentIds());
+
+		// Drop what the database no longer has open, unless it was indexed after the database was read
+		for (Map.Entry<Integer, Entry> e : byId.entrySet()) {
+			if (! open.contains(e.getKey()) && e.getValue().indexedAt < started) {
+				remove(e.getValue().incident);
+			}
+		}
+
+		// Add what the database has open, unless it was resolved here after the database was read
+		for (Integer id : open) {
+			if (! byId.containsKey(id) && ! resolvedAt.containsKey(id)) {
+				Incident i = icmdb.getIncByID(id);
+				if (! i.isResolved()) {
+					opened(i);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reconcile with the ICMDB periodically on a background thread.
+	 *
+	 * @param period The time between reconciles
+	 * @param unit The unit of the period
+	 */
+	public synchronized void startReconciling(long period, TimeUnit unit) {
+		if (reconciler != null) {
+			return;
+		}
+
+		reconciler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "OpenIncidentIndex");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		reconciler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					reconcile();
+				} catch (Exception e) {
+					Notification n = new Notification(OpenIncidentIndex.this, e);
+					n.log();
+				}
+			}
+		}, period, period, unit);
+	}
+
+	/**
+	 * Stop the periodic reconcile.
+	 */
+	public synchronized void stopReconciling() {
+		if (reconciler != null) {
+			reconciler.shutdownNow();
+			reconciler = null;
+		}
+	}
+
+	/**
+	 * Record a newly opened Incident.  Resolved Incidents and Incidents without a record number are ignored.
+	 *
+	 * @param i The Incident, which the index copies
+	 */
+	public void opened(Incident i) {
+		if (i.isResolved() || i.getId() == null || i.getId() == 0) {
+			return;
+		}
+		i = i.copy();
+		if (byId.putIfAbsent(i.getId(), new Entry(i)) != null) {
+			return;
+		}
+
+		setFor(byCI, i.getCiId()).add(i);
+		setFor(bySeverity, i.getSeverity()).add(i);
+	}
+
+	/**
+	 * Record that an Incident was resolved.
+	 *
+	 * @param i The Incident
+	 */
+	public void resolved(Incident i) {
+		if (i.getId() == null || i.getId() == 0) {
+			return;
+		}
+		if (reconciling) {
+			// Only a reconcile already running can have read the Incident as open
+			resolvedAt.put(i.getId(), System.currentTimeMillis());
+		}
+
+		Entry e = byId.get(i.getId());
+		if (e != null) {
+			remove(e.incident);
+		}
+	}
+
+	/**
+	 * Check whether a ConfigurationItem has any unresolved Incident.
+	 *
+	 * @param ciId The CMDB record ID of the ConfigurationItem
+	 * @return True if the ConfigurationItem is currently impacted
+	 */
+	public boolean isImpacted(int ciId) {
+		Set<Incident> incs = byCI.get(ciId);
+		return incs != null && ! incs.isEmpty();
+	}
+
+	/**
+	 * @param ciId The CMDB record ID of a ConfigurationItem
+	 * @return Copies of the unresolved Incidents of the ConfigurationItem
+	 */
+	public ArrayList<Incident> getByCI(int ciId) {
+		Set<Incident> incs = byCI.get(ciId);
+		return incs == null ? new ArrayList<Incident>() : sorted(incs, new CIBatch(icmdb.getCIResolver()));
+	}
+
+	/**
+	 * @param severity A severity
+	 * @return Copies of the unresolved Incidents of the severity
+	 */
+	public ArrayList<Incident> getBySeverity(int severity) {
+		Set<Incident> incs = bySeverity.get(severity);
+		return incs == null ? new ArrayList<Incident>() : sorted(incs, new CIBatch(icmdb.getCIResolver()));
+	}
+
+	/**
+	 * @return Copies of every unresolved Incident, ordered by start date as ICMDB.getOpenIncidents returns them
+	 */
+	public ArrayList<Incident> getAll() {
+		CIBatch batch = new CIBatch(icmdb.getCIResolver());
+		ArrayList<Incident> all = new ArrayList<Incident>(byId.size());
+		for (Entry e : byId.values()) {
+			all.add(copy(e.incident, batch));
+		}
+		Collections.sort(all, BY_START);
+		return all;
+	}
+
+	/**
+	 * @return The number of unresolved Incidents
+	 */
+	public int size() {
+		return byId.size();
+	}
+
+	/**
+	 * @return True once the index has been seeded
+	 */
+	public boolean isSeeded() {
+		return seeded;
+	}
+
+	private void remove(Incident i) {
+		if (byId.remove(i.getId()) == null) {
+			return;
+		}
+
+		Set<Incident> incs = byCI.get(i.getCiId());
+		if (incs != null) {
+			incs.remove(i);
+		}
+		incs = bySeverity.get(i.getSeverity());
+		if (incs != null) {
+			incs.remove(i);
+		}
+	}
+
+	private static Set<Incident> setFor(ConcurrentHashMap<Integer, Set<Incident>> index, Integer key) {
+		Set<Incident> incs = index.get(key);
+		if (incs == null) {
+			Set<Incident> fresh = Collections.newSetFromMap(new ConcurrentHashMap<Incident, Boolean>());
+			incs = index.putIfAbsent(key, fresh);
+			if (incs == null) {
+				incs = fresh;
+			}
+		}
+		return incs;
+	}
+
+	private static ArrayList<Incident> sorted(Set<Incident> incs, CIBatch batch) {
+		ArrayList<Incident> list = new ArrayList<Incident>(incs.size());
+		for (Incident i : incs) {
+			list.add(copy(i, batch));
+		}
+		Collections.sort(list, BY_START);
+		return list;
+	}
+
+	/*
+	 * Copy an indexed Incident for a caller, with its ConfigurationItem to be loaded through the caller's batch
+	 */
+	private static Incident copy(Incident i, CIBatch batch) {
+		Incident c = i.copy();
+		Integer ciId = c.getCiId();
+		if (ciId != null) {
+			batch.add(ciId);
+			c.setCiReference(ciId, batch);
+		}
+		return c;
+	}
+
+	private static final Comparator<Incident> BY_START = new Comparator<Incident>() {
+		public int compare(Incident a, Incident b) {
+			int c = a.getStartDate().compareTo(b.getStartDate());
+			return c != 0 ? c : a.getId().compareTo(b.getId());
+		}
+	};
+
+	/**
+	 * An indexed Incident and when it was indexed.
+	 */
+	private static class Entry {
+		final Incident incident;
+		final long indexedAt = System.currentTimeMillis();
+
+		Entry(Incident incident) {
+			this.incident = incident;
+		}
+	}
+}
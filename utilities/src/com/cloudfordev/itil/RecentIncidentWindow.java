@@ -0,0 +1,141 @@
+package com.cloudfordev.itil;
+
+import java.sql.Timestamp;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+
+/**
+ * RecentIncidentWindow is the incremental form of ICMDB.getRecentIncidents(int) for callers that
+ * poll, such as dashboards.  The first refresh loads the whole window.  Each later refresh
+ * only fetches the Incidents that started after the last one already held, less a grace period,
+ * and evicts the ones that have aged out of the window, so a poll costs a small delta query.<br>
+ * <br>
+ * The grace period catches Incidents committed after a refresh with a start date or record
+ * number behind the last one held, as when a writer's transaction was still open or its clock
+ * ran behind.  Incidents fetched again are recognised by record number and skipped, and late
+ * ones are put in start date order.<br>
+ * <br>
+ * Incidents already in the window are not re-read, so a resolution recorded after an
+ * Incident was fetched is not reflected until the window is reset.  The window edge is
+ * computed from the local clock, truncated to the hour as the database query is.
+ *
+ * @author u1001
+ * @version 1.0
+ */
+public class RecentIncidentWindow {
+
+	private static final long HOUR = 60L * 60L * 1000L;
+	private static final Comparator<Incident> ORDER = new Comparator<Incident>() {
+		public int compare(Incident a, Incident b) {
+			int c = a.getStartDate().compareTo(b.getStartDate());
+			return c != 0 ? c : a.getId().compareTo(b.getId());
+		}
+	};
+
+	private ICMDB icmdb;
+	private int hours;
+	private ArrayDeque<Incident> window = new ArrayDeque<Incident>();
+	// The record numbers of the Incidents in the window
+	private HashSet<Integer> ids = new HashSet<Integer>();
+	private long gracePeriod = 60000;
+	private boolean loaded = false;
+
+	/**
+	 * Create a new RecentIncidentWindow.
+	 *
+	 * @param icmdb The ICMDB to read Incidents from
+	 * @param hours The number of hours the window covers
+	 */
+	public RecentIncidentWindow(ICMDB icmdb, int hours) {
+		this.icmdb = icmdb;
+		this.hours = hours;
+	}
+
+	/**
+	 * Bring the window up to date and return its contents.
+	 *
+	 * @return All Incidents within the window, ordered by start date
+	 * @throws ITILException If there is a failure while working with the back-end ICMDB
+	 */
+	public synchronized ArrayList<Incident> refresh() throws ITILException {
+		if (! loaded) {
+			add(icmdb.getRecentIncidents(hours));
+			loaded = true;
+		} else {
+			Incident last = window.peekLast();
+			if (last == null) {
+				// An empty window has nothing to continue from, so start from the window edge
+				add(icmdb.getIncidentsAfter(new Timestamp(windowStart()), 0));
+			} else {
+				add(icmdb.getIncidentsAfter(new Timestamp(last.getStartDate().getTime() - gracePeriod), 0));
+			}
+		}
+
+		// Evict the Incidents that have aged out of the window
+		long windowStart = windowStart();
+		while (! window.isEmpty() && window.peekFirst().getStartDate().getTime() < windowStart) {
+			ids.remove(window.pollFirst().getId());
+		}
+
+		return new ArrayList<Incident>(window);
+	}
+
+	/**
+	 * Discard the window, so that the next refresh reloads it in full.
+	 */
+	public synchronized void reset() {
+		window.clear();
+		ids.clear();
+		loaded = false;
+	}
+
+	/**
+	 * Set how far behind the last Incident held each refresh looks again.
+	 *
+	 * @param gracePeriod The grace period in milliseconds
+	 */
+	public synchronized void setGracePeriod(long gracePeriod) {
+		this.gracePeriod = Math.max(0, gracePeriod);
+	}
+
+	/**
+	 * @return The number of hours the window covers
+	 */
+	public int getHours() {
+		return hours;
+	}
+
+	/*
+	 * Add the Incidents not already held, keeping the window in start date and record number order
+	 */
+	private void add(ArrayList<Incident> incs) {
+		boolean late = false;
+		for (Incident i : incs) {
+			if (! ids.add(i.getId())) {
+				continue;
+			}
+			Incident last = window.peekLast();
+			if (last != null && ORDER.compare(i, last) < 0) {
+				late = true;
+			}
+			window.addLast(i);
+		}
+
+		if (late) {
+			ArrayList<Incident> sorted = new ArrayList<Incident>(window);
+			Collections.sort(sorted, ORDER);
+			window = new ArrayDeque<Incident>(sorted);
+		}
+	}
+
+	/*
+	 * The start of the window, matching date_trunc('hour', now()) - hours
+	 */
+	private long windowStart() {
+		long now = System.currentTimeMillis();
+		return now - (now % HOUR) - (hours * HOUR);
+	}
+}
@@ -0,0 +1,423 @@
+package com.cloudfordev.itil;
+
+import java.io.BufferedReader;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+/**
+ * Minimal CSV and JSON lines support for moving ITIL records in and out of the
+ * CMDB and ICMDB without pulling in a parsing library.  Only flat records are
+ * supported: CSV rows in RFC 4180 form, and JSON objects with one object per line
+ * whose values are strings, numbers, booleans, null or arrays of those.  Binary
+ * records, as in archive segments and the spool, share one string encoding.
+ *
+ * @author u1001
+ * @version 1.0
+ */
+final class RecordFormat {
+
+	private RecordFormat() {
+
+	}
+
+	/**
+	 * Read the next CSV record from the reader.  Quoted fields may contain commas,
+	 * doubled quotes and line breaks, in which case more than one line is consumed,
+	 * up to a limit.  A quoted field still open at the limit or at the end of the input
+	 * is most likely a stray quote, so the reader is put back at the line after the
+	 * first line of the record, and only that first line is rejected.
+	 *
+	 * @param in The reader positioned at the start of a record
+	 * @param raw A StringBuilder that receives the raw text of the record, for reject files
+	 * @param maxSpan The most characters a record may span past the end of its first line
+	 * @return The fields of the record, or null at the end of the input
+	 * @throws UnterminatedFieldException If a quoted field is not closed within the limit
+	 * @throws IOException If the reader fails
+	 */
+	static ArrayList<String> readCSVRecord(BufferedReader in, StringBuilder raw, int maxSpan) throws IOException {
+		raw.setLength(0);
+		String line = in.readLine();
+
+		if (line == null) {
+			return null;
+		}
+		String first = line;
+
+		ArrayList<String> fields = new ArrayList<String>();
+		StringBuilder field = new StringBuilder();
+		StringBuilder next = null;
+		boolean quoted = false;
+		int spanned = 0;
+
+		while (true) {
+			raw.append(line);
+
+			for (int i = 0; i < line.length(); i++) {
+				char c = line.charAt(i);
+
+				if (quoted) {
+					if (c == '"') {
+						if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+							// A doubled quote is a literal quote
+							field.append('"');
+							i++;
+						} else {
+							quoted = false;
+						}
+					} else {
+						field.append(c);
+					}
+				} else if (c == '"') {
+					quoted = true;
+				} else if (c == ',') {
+					fields.add(field.toString());
+					field.setLength(0);
+				} else {
+					field.append(c);
+				}
+			}
+
+			if (! quoted) {
+				break;
+			}
+
+			// The quoted field spans a line break, so read on, but only so far that the reader can be put back
+			if (next == null) {
+				next = new StringBuilder();
+				in.mark(maxSpan);
+			}
+			int read = readLine(in, maxSpan - spanned, next);
+			if (read < 0) {
+				// A stray quote; the lines read past the first are most likely records of their own
+				in.reset();
+				raw.setLength(0);
+				raw.append(first);
+				throw new UnterminatedFieldException();
+			}
+			spanned += read;
+			line = next.toString();
+			raw.append('\n');
+			field.append('\n');
+		}
+
+		fields.add(field.toString());
+		return fields;
+	}
+
+	/*
+	 * Read one line into a StringBuilder, reading no more than limit characters, line break included.
+	 * Returns the number of characters read, or -1 if the input ends or the limit is reached first.
+	 */
+	private static int readLine(BufferedReader in, int limit, StringBuilder line) throws IOException {
+		line.setLength(0);
+		int read = 0;
+		while (read < limit) {
+			int c = in.read();
+			if (c < 0) {
+				return read == 0 ? -1 : read;
+			}
+			read++;
+			if (c == '\n') {
+				if (line.length() > 0 && line.charAt(line.length() - 1) == '\r') {
+					line.setLength(line.length() - 1);
+				}
+				return read;
+			}
+			line.append((char) c);
+		}
+		return -1;
+	}
+
+	/**
+	 * Parse a single JSON object.  Arrays are returned as an ArrayList of their elements,
+	 * numbers and booleans are returned as their String form, and null is returned as null.
+	 *
+	 * @param line The text of one JSON object
+	 * @return The members of the object, in the order they appeared
+	 * @throws IllegalArgumentException If the text is not a flat JSON object
+	 */
+	static LinkedHashMap<String, Object> parseJSONObject(String line) {
+		JSONCursor cur = new JSONCursor(line);
+		LinkedHashMap<String, Object> members = new LinkedHashMap<String, Object>();
+
+		cur.expect('{');
+		if (cur.peek() == '}') {
+			cur.pos++;
+			cur.end();
+			return members;
+		}
+
+		while (true) {
+			String name = cur.string();
+			cur.expect(':');
+
+			if (cur.peek() == '[') {
+				cur.pos++;
+				ArrayList<String> values = new ArrayList<String>();
+				if (cur.peek() == ']') {
+					cur.pos++;
+				} else {
+					while (true) {
+						values.add(cur.scalar());
+						if (cur.peek() == ',') {
+							cur.pos++;
+						} else {
+							cur.expect(']');
+							break;
+						}
+					}
+				}
+				members.put(name, values);
+			} else {
+				members.put(name, cur.scalar());
+			}
+
+			if (cur.peek() == ',') {
+				cur.pos++;
+			} else {
+				cur.expect('}');
+				cur.end();
+				return members;
+			}
+		}
+	}
+
+	/**
+	 * Append a value to a CSV row, quoting it only when required.
+	 *
+	 * @param sb The row being built
+	 * @param value The value to append, or null for an empty field
+	 */
+	static void appendCSV(StringBuilder sb, String value) {
+		if (value == null) {
+			return;
+		}
+
+		boolean needsQuotes = false;
+		for (int i = 0; i < value.length() && ! needsQuotes; i++) {
+			char c = value.charAt(i);
+			needsQuotes = (c == ',' || c == '"' || c == '\n' || c == '\r');
+		}
+
+		if (! needsQuotes) {
+			sb.append(value);
+			return;
+		}
+
+		sb.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"') {
+				sb.append('"');
+			}
+			sb.append(c);
+		}
+		sb.append('"');
+	}
+
+	/**
+	 * Append a value to a JSON document as a quoted and escaped string.
+	 *
+	 * @param sb The document being built
+	 * @param value The value to append, or null for a JSON null
+	 */
+	static void appendJSON(StringBuilder sb, String value) {
+		if (value == null) {
+			sb.append("null");
+			return;
+		}
+
+		sb.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+				case '"':
+					sb.append("\\\"");
+					break;
+				case '\\':
+					sb.append("\\\\");
+					break;
+				case '\n':
+					sb.append("\\n");
+					break;
+				case '\r':
+					sb.append("\\r");
+					break;
+				case '\t':
+					sb.append("\\t");
+					break;
+				default:
+					if (c < 0x20) {
+						String hex = Integer.toHexString(c);
+						sb.append("\\u");
+						for (int pad = hex.length(); pad < 4; pad++) {
+							sb.append('0');
+						}
+						sb.append(hex);
+					} else {
+						sb.append(c);
+					}
+			}
+		}
+		sb.append('"');
+	}
+
+	/**
+	 * Write a string to a binary record as its UTF-8 length and bytes.  Unlike writeUTF, this
+	 * has no 64KB limit and keeps null distinct from the empty string.
+	 *
+	 * @param out The record being written
+	 * @param value The value to write, or null
+	 * @throws IOException If the output fails
+	 */
+	static void writeString(DataOutput out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Read a string written by writeString.
+	 *
+	 * @param in The record being read
+	 * @return The value, or null
+	 * @throws IOException If the input fails or ends early
+	 */
+	static String readString(DataInput in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	/**
+	 * A position within a line of JSON text being parsed.
+	 */
+	private static class JSONCursor {
+		private final String text;
+		private int pos = 0;
+
+		JSONCursor(String text) {
+			this.text = text;
+		}
+
+		/*
+		 * Skip whitespace and return the next character, or 0 at the end of the text
+		 */
+		char peek() {
+			while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+				pos++;
+			}
+			return pos < text.length() ? text.charAt(pos) : 0;
+		}
+
+		void expect(char c) {
+			if (peek() != c) {
+				throw new IllegalArgumentException("Expected '" + c + "' at position " + pos);
+			}
+			pos++;
+		}
+
+		void end() {
+			if (peek() != 0) {
+				throw new IllegalArgumentException("Unexpected text after JSON object at position " + pos);
+			}
+		}
+
+		/*
+		 * Read a string, number, boolean or null
+		 */
+		String scalar() {
+			char c = peek();
+			if (c == '"') {
+				return string();
+			}
+
+			int start = pos;
+			while (pos < text.length() && ",]} \t".indexOf(text.charAt(pos)) == -1) {
+				pos++;
+			}
+			String token = text.substring(start, pos);
+
+			if (token.length() == 0) {
+				throw new IllegalArgumentException("Missing JSON value at position " + start);
+			}
+			if (token.equals("null")) {
+				return null;
+			}
+			return token;
+		}
+
+		String string() {
+			expect('"');
+			StringBuilder sb = new StringBuilder();
+
+			while (pos < text.length()) {
+				char c = text.charAt(pos++);
+				if (c == '"') {
+					return sb.toString();
+				}
+				if (c != '\\') {
+					sb.append(c);
+					continue;
+				}
+				if (pos >= text.length()) {
+					break;
+				}
+
+				char e = text.charAt(pos++);
+				switch (e) {
+					case 'n':
+						sb.append('\n');
+						break;
+					case 'r':
+						sb.append('\r');
+						break;
+					case 't':
+						sb.append('\t');
+						break;
+					case 'b':
+						sb.append('\b');
+						break;
+					case 'f':
+						sb.append('\f');
+						break;
+					case 'u':
+						if (pos + 4 > text.length()) {
+							throw new IllegalArgumentException("Truncated unicode escape at position " + pos);
+						}
+						sb.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+						pos += 4;
+						break;
+					default:
+						// Covers \" \\ and \/
+						sb.append(e);
+				}
+			}
+
+			throw new IllegalArgumentException("Unterminated JSON string");
+		}
+	}
+
+	/**
+	 * A quoted CSV field not closed within the limit or before the end of the input.  Only the first
+	 * line of the record is left in its raw text, and the reader is back at the line after it.
+	 */
+	static final class UnterminatedFieldException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		UnterminatedFieldException() {
+			super("Unterminated quoted CSV field");
+		}
+	}
+}
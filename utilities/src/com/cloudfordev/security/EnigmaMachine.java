@@ -2,6 +2,7 @@ package com.cloudfordev.security;
 
 import java.io.File;
 import java.io.IOException;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.KeyStore;
@@ -9,6 +10,16 @@ import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableEntryException;
 import java.security.cert.CertificateException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -22,10 +33,17 @@ import org.apache.commons.codec.binary.Base64;
 
 /**
  * The EnigmaMachine class is intended to simplify strong encryption and decryption
- * so that developers and administrators are more likely to encrypt sensitive data.  
+ * so that developers and administrators are more likely to encrypt sensitive data.  <br>
+ * <br>
+ * The SecretKey of each keystore file is loaded once and shared by every EnigmaMachine using that 
+ * file.  The file's modification time and size are checked at most once a second, and the key is 
+ * loaded again when either changes, so a replaced keystore takes effect without a restart.  Each 
+ * thread keeps one Cipher, initialized again with the key and IV of every call, rather than looking 
+ * up the provider and creating a Cipher per call.  The bulk methods encrypt, decrypt and 
+ * re-encrypt many values at once across threads, returning them in the order given.  
  * 
  * @author u1001 - Lynn Owens
- * @version 1.2
+ * @version 1.3
  */
 public class EnigmaMachine {
 	
@@ -34,6 +52,13 @@ public class EnigmaMachine {
 	// Although the keystore is not static
 	private File keyStoreFile = null;
 	
+	// The SecretKey loaded from each keystore file, by absolute path
+	private static final ConcurrentHashMap<String, CachedKey> keys = new ConcurrentHashMap<String, CachedKey>();
+	// How often a cached SecretKey's keystore file is checked for changes
+	private static final long checkInterval = 1000;
+	// Each thread's Cipher, initialized again for every use
+	private static final ThreadLocal<Cipher> ciphers = new ThreadLocal<Cipher>();
+	
 	/**
 	 * Create a new EnigmaMachine by specifying the location of the keystore
 	 * 
@@ -65,10 +90,10 @@ public class EnigmaMachine {
 		}
 		
 		// Get the key from the keystore
-		SecretKey secretKey = loadExistingKeyFromStore();
+		SecretKey secretKey = getSecretKey();
 		
-		// Initialize the cipher as AES with Cipher-block chaining (CBC) and PKCS5 padding
-		Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+		// Initialize the cipher as AES with Cipher-block chaining (CBC) and PKCS5 padding, with a new IV
+		Cipher cipher = getCipher();
 		cipher.init(Cipher.ENCRYPT_MODE, secretKey);
 		
 		// Get the initialization vector from the cipher
@@ -114,14 +139,14 @@ public class EnigmaMachine {
 		}
 		
 		// Get the SecretKey from the keystore
-		SecretKey secretKey = loadExistingKeyFromStore();
+		SecretKey secretKey = getSecretKey();
 		
 		// Decode the base64 string to a byte array
 		byte[] iv = Base64.decodeBase64(ivString);
 		byte[] cipherText = Base64.decodeBase64(cipherTextString);
 		
 		// Initialize the cipher with the provided initialization vector
-		Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+		Cipher cipher = getCipher();
 		cipher.init(Cipher.DECRYPT_MODE, secretKey, new IvParameterSpec(iv) );
 		
 		// Decrypt the cipher text into a UTF-8 String
@@ -129,6 +154,142 @@ public class EnigmaMachine {
 		return clearText;
 	}
 	
+	/**
+	 * Encrypt many clear texts at once, in parallel.  The SecretKey is read once, and each thread 
+	 * encrypts a contiguous share of the values with its own Cipher.
+	 * 
+	 * @param clearTexts The clear texts to encrypt
+	 * @param threads The number of threads to use, or 0 for one per processor
+	 * @return AESObject[] The AESObjects, in the order of the clear texts
+	 * @throws GeneralSecurityException If the key cannot be read or a value cannot be encrypted
+	 * @throws IOException If the keystore cannot be read
+	 * @throws InterruptedException If interrupted while waiting for the threads
+	 */
+	public AESObject[] encryptAll(String[] clearTexts, int threads) throws GeneralSecurityException, IOException, InterruptedException {
+		ExecutorService pool = newPool(threads);
+		try {
+			return encryptAll(pool, threads(threads), getKeyOrFail(), clearTexts);
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+	
+	/**
+	 * Encrypt a sequence of clear texts too long to hold at once, in parallel, a batch at a time.  
+	 * Results are handed over in the order of the clear texts, each batch once it is complete.
+	 * 
+	 * @param clearTexts The clear texts to encrypt
+	 * @param handler The Handler the AESObjects are handed to
+	 * @param threads The number of threads to use, or 0 for one per processor
+	 * @param batchSize The number of values encrypted at a time
+	 * @return long The number of values encrypted
+	 * @throws GeneralSecurityException If the key cannot be read or a value cannot be encrypted
+	 * @throws IOException If the keystore cannot be read
+	 * @throws InterruptedException If interrupted while waiting for the threads
+	 */
+	public long encryptEach(Iterator<String> clearTexts, Handler handler, int threads, int batchSize) throws GeneralSecurityException, IOException, InterruptedException {
+		SecretKey secretKey = getKeyOrFail();
+		int parts = threads(threads);
+		batchSize = Math.max(1, batchSize);
+		long index = 0;
+		
+		ExecutorService pool = newPool(threads);
+		try {
+			ArrayList<String> batch = new ArrayList<String>(batchSize);
+			while (clearTexts.hasNext()) {
+				batch.clear();
+				while (batch.size() < batchSize && clearTexts.hasNext()) {
+					batch.add(clearTexts.next());
+				}
+				AESObject[] encrypted = encryptAll(pool, parts, secretKey, batch.toArray(new String[batch.size()]));
+				for (AESObject ao : encrypted) {
+					handler.result(index++, ao);
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		return index;
+	}
+	
+	/**
+	 * Decrypt many AESObjects at once, in parallel.
+	 * 
+	 * @param values The AESObjects to decrypt
+	 * @param threads The number of threads to use, or 0 for one per processor
+	 * @return String[] The clear texts, in the order of the AESObjects
+	 * @throws GeneralSecurityException If the key cannot be read or a value cannot be decrypted
+	 * @throws IOException If the keystore cannot be read
+	 * @throws InterruptedException If interrupted while waiting for the threads
+	 */
+	public String[] decryptAll(final AESObject[] values, int threads) throws GeneralSecurityException, IOException, InterruptedException {
+		final SecretKey secretKey = getKeyOrFail();
+		final String[] clearTexts = new String[values.length];
+		
+		ExecutorService pool = newPool(threads);
+		try {
+			runParts(pool, threads(threads), values.length, new Part() {
+				public void run(int from, int to) throws GeneralSecurityException, IOException {
+					Cipher cipher = getCipher();
+					byte[] buffer = new byte[256];
+					for (int v = from; v < to; v++) {
+						byte[] cipherText = Base64.decodeBase64(values[v].getCipher());
+						cipher.init(Cipher.DECRYPT_MODE, secretKey, new IvParameterSpec(Base64.decodeBase64(values[v].getIv())));
+						buffer = fit(buffer, cipher.getOutputSize(cipherText.length));
+						int length = cipher.doFinal(cipherText, 0, cipherText.length, buffer);
+						clearTexts[v] = new String(buffer, 0, length, "UTF-8");
+					}
+				}
+			});
+		} finally {
+			pool.shutdownNow();
+		}
+		return clearTexts;
+	}
+	
+	/**
+	 * Re-encrypt many AESObjects encrypted by another EnigmaMachine's key with this one's, in 
+	 * parallel.  The clear texts are only ever held in reused byte buffers, never as Strings.
+	 * 
+	 * @param values The AESObjects to re-encrypt
+	 * @param source The EnigmaMachine whose key encrypted them
+	 * @param threads The number of threads to use, or 0 for one per processor
+	 * @return AESObject[] The re-encrypted AESObjects, in the order given
+	 * @throws GeneralSecurityException If a key cannot be read or a value cannot be re-encrypted
+	 * @throws IOException If a keystore cannot be read
+	 * @throws InterruptedException If interrupted while waiting for the threads
+	 */
+	public AESObject[] reencryptAll(final AESObject[] values, EnigmaMachine source, int threads) throws GeneralSecurityException, IOException, InterruptedException {
+		final SecretKey oldKey = source.getKeyOrFail();
+		final SecretKey newKey = getKeyOrFail();
+		final AESObject[] reencrypted = new AESObject[values.length];
+		
+		ExecutorService pool = newPool(threads);
+		try {
+			runParts(pool, threads(threads), values.length, new Part() {
+				public void run(int from, int to) throws GeneralSecurityException, IOException {
+					Cipher cipher = getCipher();
+					byte[] buffer = new byte[256];
+					for (int v = from; v < to; v++) {
+						byte[] cipherText = Base64.decodeBase64(values[v].getCipher());
+						cipher.init(Cipher.DECRYPT_MODE, oldKey, new IvParameterSpec(Base64.decodeBase64(values[v].getIv())));
+						buffer = fit(buffer, cipher.getOutputSize(cipherText.length));
+						int length = cipher.doFinal(cipherText, 0, cipherText.length, buffer);
+						
+						cipher.init(Cipher.ENCRYPT_MODE, newKey);
+						byte[] iv = cipher.getIV();
+						byte[] newCipherText = cipher.doFinal(buffer, 0, length);
+						Arrays.fill(buffer, 0, length, (byte) 0);
+						reencrypted[v] = new AESObject(Base64.encodeBase64String(iv), Base64.encodeBase64String(newCipherText));
+					}
+				}
+			});
+		} finally {
+			pool.shutdownNow();
+		}
+		return reencrypted;
+	}
+	
 	/**
 	 * Blank the keystore and populate it with a new SecretKey  
 	 * 
@@ -181,8 +342,67 @@ public class EnigmaMachine {
     	        fos.close();
     	    }
     	}
+    	
+    	// The modification time may not have moved, so the old key is dropped outright
+    	keys.remove(keyStoreFile.getAbsolutePath());
     }    
     
+    /**
+     * Get this thread's AES/CBC/PKCS5Padding Cipher, creating it on first use.  Every caller must 
+     * init it before use, which resets any state left by the previous caller on this thread.
+     * 
+     * @return Cipher The Cipher
+     * @throws NoSuchAlgorithmException
+     * @throws NoSuchPaddingException
+     */
+    private static Cipher getCipher() throws NoSuchAlgorithmException, NoSuchPaddingException {
+    	Cipher cipher = ciphers.get();
+    	if (cipher == null) {
+    		cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+    		ciphers.set(cipher);
+    	}
+    	return cipher;
+    }
+    
+    /**
+     * Get the SecretKey of the keystore file, loading it if it is not cached or the file changed.
+     * A key is cached whole once loaded, so callers never see one partly loaded.
+     * 
+     * @return SecretKey The SecretKey found in the keystore under the alias 'enigma'
+     * @throws KeyStoreException
+     * @throws NoSuchAlgorithmException
+     * @throws CertificateException
+     * @throws IOException
+     * @throws UnrecoverableEntryException
+     */
+    private SecretKey getSecretKey() throws KeyStoreException, NoSuchAlgorithmException, CertificateException, IOException, UnrecoverableEntryException {
+    	String path = keyStoreFile.getAbsolutePath();
+    	long now = System.currentTimeMillis();
+    	
+    	CachedKey cached = keys.get(path);
+    	if (cached != null) {
+    		if (now - cached.checked < checkInterval) {
+    			return cached.key;
+    		}
+    		if (cached.modified == keyStoreFile.lastModified() && cached.length == keyStoreFile.length()) {
+    			cached.checked = now;
+    			return cached.key;
+    		}
+    	}
+    	
+    	// One thread loads, and the others wait for its key
+    	synchronized (keys) {
+    		cached = keys.get(path);
+    		long modified = keyStoreFile.lastModified();
+    		long length = keyStoreFile.length();
+    		if (cached == null || cached.modified != modified || cached.length != length) {
+    			cached = new CachedKey(loadExistingKeyFromStore(), modified, length, now);
+    			keys.put(path, cached);
+    		}
+    		return cached.key;
+    	}
+    }
+    
     /**
      * Load a SecretKey from the keystore location provided at instantion time.
      * 
@@ -230,4 +450,134 @@ public class EnigmaMachine {
     	return keyGen.generateKey();
     }
 
+    /**
+     * Encrypt an array of clear texts on a pool, each part on its own thread.
+     */
+    private static AESObject[] encryptAll(ExecutorService pool, int parts, final SecretKey secretKey, final String[] clearTexts) throws GeneralSecurityException, IOException, InterruptedException {
+    	final AESObject[] encrypted = new AESObject[clearTexts.length];
+    	runParts(pool, parts, clearTexts.length, new Part() {
+    		public void run(int from, int to) throws GeneralSecurityException, IOException {
+    			Cipher cipher = getCipher();
+    			for (int v = from; v < to; v++) {
+    				cipher.init(Cipher.ENCRYPT_MODE, secretKey);
+    				byte[] iv = cipher.getIV();
+    				byte[] cipherText = cipher.doFinal(clearTexts[v].getBytes("UTF-8"));
+    				encrypted[v] = new AESObject(Base64.encodeBase64String(iv), Base64.encodeBase64String(cipherText));
+    			}
+    		}
+    	});
+    	return encrypted;
+    }
+    
+    /**
+     * Split the indexes 0 to count into contiguous parts, run them on a pool, and wait for all.  
+     * The first failure is rethrown.
+     */
+    private static void runParts(ExecutorService pool, int parts, int count, final Part part) throws GeneralSecurityException, IOException, InterruptedException {
+    	if (count == 0) {
+    		return;
+    	}
+    	parts = Math.min(parts, count);
+    	ArrayList<Future<Void>> futures = new ArrayList<Future<Void>>(parts);
+    	for (int p = 0; p < parts; p++) {
+    		final int from = (int) ((long) count * p / parts);
+    		final int to = (int) ((long) count * (p + 1) / parts);
+    		futures.add(pool.submit(new Callable<Void>() {
+    			public Void call() throws Exception {
+    				part.run(from, to);
+    				return null;
+    			}
+    		}));
+    	}
+    	
+    	try {
+    		for (Future<Void> f : futures) {
+    			f.get();
+    		}
+    	} catch (ExecutionException e) {
+    		for (Future<Void> f : futures) {
+    			f.cancel(true);
+    		}
+    		Throwable cause = e.getCause();
+    		if (cause instanceof GeneralSecurityException) {
+    			throw (GeneralSecurityException) cause;
+    		} else if (cause instanceof IOException) {
+    			throw (IOException) cause;
+    		} else if (cause instanceof RuntimeException) {
+    			throw (RuntimeException) cause;
+    		}
+    		throw new IOException(cause);
+    	}
+    }
+    
+    private static int threads(int threads) {
+    	return threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    }
+    
+    private static ExecutorService newPool(int threads) {
+    	return Executors.newFixedThreadPool(threads(threads), new ThreadFactory() {
+    		public Thread newThread(Runnable r) {
+    			Thread t = new Thread(r, "EnigmaMachine-bulk");
+    			t.setDaemon(true);
+    			return t;
+    		}
+    	});
+    }
+    
+    private static byte[] fit(byte[] buffer, int size) {
+    	return buffer.length >= size ? buffer : new byte[Math.max(size, buffer.length * 2)];
+    }
+    
+    /**
+     * Get the SecretKey, failing if the keystore is not set.
+     * 
+     * @return SecretKey The SecretKey
+     * @throws GeneralSecurityException If the key cannot be read
+     * @throws IOException If the keystore cannot be read
+     */
+    private SecretKey getKeyOrFail() throws GeneralSecurityException, IOException {
+		// Ensure the keystore is set
+		if (keyStoreFile == null) {
+			throw new KeyStoreException("KeyStore not yet defined");
+		}
+		return getSecretKey();
+    }
+    
+    /**
+     * One contiguous part of a bulk operation.
+     */
+    private interface Part {
+    	void run(int from, int to) throws GeneralSecurityException, IOException;
+    }
+    
+    /**
+     * Receives the results of encryptEach.
+     */
+    public interface Handler {
+    	
+    	/**
+    	 * Handle one encrypted value.
+    	 * 
+    	 * @param index The position of the value in the sequence, from 0
+    	 * @param value The AESObject
+    	 */
+    	void result(long index, AESObject value);
+    }
+    
+    /**
+     * A SecretKey and the state of the keystore file it was loaded from.
+     */
+    private static class CachedKey {
+    	final SecretKey key;
+    	final long modified;
+    	final long length;
+    	volatile long checked;
+    	
+    	CachedKey(SecretKey key, long modified, long length, long checked) {
+    		this.key = key;
+    		this.modified = modified;
+    		this.length = length;
+    		this.checked = checked;
+    	}
+    }
 }
\ No newline at end of file
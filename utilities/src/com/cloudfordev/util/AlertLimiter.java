@@ -0,0 +1,131 @@
+package com.cloudfordev.util;
+
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * AlertLimiter rate limits pages with token buckets, one per destination and one per source, so that
+ * an outage that fails every database call pages a few times rather than once per failure.<br>
+ * <br>
+ * A page is sent only when both its source's and its destination's buckets hold a token, and a
+ * token taken from the source is given back if the destination refuses, so that a busy destination
+ * does not spend the budgets of unrelated sources.  Buckets refill at a steady rate up to a burst,
+ * and are updated with a compare and set rather than a lock, so that limiting costs callers a few
+ * atomic operations even during a storm.  Pages held back are counted per destination, and the
+ * next page sent there is prefixed with how many were suppressed and since when.
+ *
+ * @author u1001
+ * @version 1.0
+ */
+public class AlertLimiter {
+
+	private final long interval;
+	private final long tolerance;
+	private final ConcurrentHashMap<String, Bucket> destinations = new ConcurrentHashMap<String, Bucket>();
+	private final ConcurrentHashMap<String, Bucket> sources = new ConcurrentHashMap<String, Bucket>();
+	private final AtomicLong suppressed = new AtomicLong();
+
+	/**
+	 * Create a new AlertLimiter.
+	 *
+	 * @param perMinute The number of pages per minute each source and each destination may send once its burst is spent
+	 * @param burst The number of pages each source and each destination may send at once
+	 */
+	public AlertLimiter(double perMinute, int burst) {
+		// Buckets are kept as the time they will be full again, in nanoseconds: a token is worth one interval
+		this.interval = (long) (60000000000L / Math.max(perMinute, 0.001));
+		this.tolerance = interval * (Math.max(1, burst) - 1);
+	}
+
+	/**
+	 * Take a token for a page from its source and its destination.
+	 *
+	 * @param source The source of the page
+	 * @param destination The address the page is sent to
+	 * @return Null if the page must be suppressed, otherwise a note of the pages suppressed since the last one sent to the destination, empty if there were none
+	 */
+	public String acquire(String source, String destination) {
+		long now = System.nanoTime();
+		Bucket src = bucket(sources, source);
+		Bucket dest = bucket(destinations, destination);
+
+		boolean taken = src.take(now);
+		if (taken && ! dest.take(now)) {
+			src.refund();
+			taken = false;
+		}
+		if (! taken) {
+			suppressed.incrementAndGet();
+			dest.suppress();
+			return null;
+		}
+		return dest.drainSuppressed();
+	}
+
+	/**
+	 * @return The number of pages suppressed since this AlertLimiter was created
+	 */
+	public long getSuppressed() {
+		return suppressed.get();
+	}
+
+	private Bucket bucket(ConcurrentHashMap<String, Bucket> buckets, String key) {
+		if (key == null) {
+			key = "";
+		}
+		Bucket b = buckets.get(key);
+		if (b == null) {
+			Bucket created = new Bucket();
+			b = buckets.putIfAbsent(key, created);
+			if (b == null) {
+				b = created;
+			}
+		}
+		return b;
+	}
+
+	/**
+	 * One token bucket, kept as the theoretical time it is next full, along with the pages suppressed
+	 * since the last page was sent.
+	 */
+	private class Bucket {
+		private final AtomicLong full = new AtomicLong(Long.MIN_VALUE);
+		private final AtomicLong suppressedCount = new AtomicLong();
+		private final AtomicLong suppressedSince = new AtomicLong();
+
+		boolean take(long now) {
+			while (true) {
+				long current = full.get();
+				long base = current == Long.MIN_VALUE || current - now < 0 ? now : current;
+				if (base - now > tolerance) {
+					// Every token is spent
+					return false;
+				}
+				if (full.compareAndSet(current, base + interval)) {
+					return true;
+				}
+			}
+		}
+
+		void refund() {
+			// Moving the time it is full back by one interval returns exactly the token taken
+			full.addAndGet(-interval);
+		}
+
+		void suppress() {
+			if (suppressedCount.getAndIncrement() == 0) {
+				suppressedSince.set(System.currentTimeMillis());
+			}
+		}
+
+		String drainSuppressed() {
+			long since = suppressedSince.get();
+			long count = suppressedCount.getAndSet(0);
+			if (count == 0) {
+				return "";
+			}
+			return count + " alerts suppressed since " + new Date(since) + "\n";
+		}
+	}
+}
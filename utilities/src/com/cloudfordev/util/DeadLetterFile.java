@@ -0,0 +1,338 @@
+package com.cloudfordev.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+
+/**
+ * DeadLetterFile keeps the emails and pages that could not be delivered, so that they can be sent
+ * again once the cause is fixed rather than being lost.<br>
+ * <br>
+ * Letters are appended one per line, their fields separated by tabs, with tabs, line breaks and
+ * backslashes escaped.  Replaying moves the file aside, sends every letter in it again, and
+ * appends those that failed once more back to the file, so that letters keep being appended
+ * while a slow replay is sending.  Lines that cannot be read as letters are kept.  Run this class
+ * with the path of a dead letter file to replay it from the command line.
+ *
+ * @author u1001
+ * @version 1.0
+ */
+public class DeadLetterFile {
+
+	private final File file;
+	private final Object replayLock = new Object();
+
+	/**
+	 * Create a new DeadLetterFile.
+	 *
+	 * @param file The file to append letters to, created on the first letter
+	 */
+	public DeadLetterFile(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Replay a dead letter file through Notification's MailRelay, from the command line:<br>
+	 * java com.cloudfordev.util.DeadLetterFile &lt;file&gt;
+	 *
+	 * @param args The path of the dead letter file
+	 * @throws IOException If the file cannot be read or rewritten
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length != 1) {
+			System.err.println("Usage: java " + DeadLetterFile.class.getCanonicalName() + " <file>");
+			System.exit(2);
+		}
+
+		DeadLetterFile dl = new DeadLetterFile(new File(args[0]));
+		Notification.setDeadLetters(dl);
+		int delivered = Notification.replayDeadLetters();
+		System.out.println("Delivered " + delivered + " dead letters, " + dl.size() + " kept in " + args[0]);
+
+		// Closes the relay's connection
+		Notification.setMailRelay(null);
+	}
+
+	/**
+	 * Append a letter.
+	 *
+	 * @param letter The Letter
+	 * @throws IOException If the letter cannot be written
+	 */
+	public synchronized void append(Letter letter) throws IOException {
+		Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"));
+		try {
+			write(out, letter);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Send every letter again, keeping those that fail.  Letters given up on during the replay are
+	 * appended as usual, since the file is only locked while it is swapped out and while the
+	 * failures are appended back, not while the letters are sent.
+	 *
+	 * @param sender The Sender that delivers the letters
+	 * @return The number of letters delivered
+	 * @throws IOException If the file cannot be read or rewritten
+	 */
+	public int replay(Sender sender) throws IOException {
+		synchronized (replayLock) {
+			File taken = new File(file.getPath() + ".replay");
+			ArrayList<Letter> letters = new ArrayList<Letter>();
+
+			synchronized (this) {
+				// A replay that was cut short left its letters taken, so those go first
+				if (! taken.exists()) {
+					if (! file.exists()) {
+						return 0;
+					}
+					if (! file.renameTo(taken)) {
+						throw new IOException("Could not move " + file + " aside to replay it");
+					}
+				}
+
+				ArrayList<String> unparsed = new ArrayList<String>();
+				BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(taken), "UTF-8"));
+				try {
+					String line;
+					while ((line = in.readLine()) != null) {
+						Letter l = Letter.parse(line);
+						if (l != null) {
+							letters.add(l);
+						} else if (line.length() > 0) {
+							unparsed.add(line);
+						}
+					}
+				} finally {
+					in.close();
+				}
+
+				if (! unparsed.isEmpty()) {
+					// A torn or foreign line is kept for a person to look at, not thrown away
+					Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"));
+					try {
+						for (String line : unparsed) {
+							out.write(line);
+							out.write('\n');
+						}
+					} finally {
+						out.close();
+					}
+				}
+			}
+
+			int delivered = 0;
+			ArrayList<Letter> kept = new ArrayList<Letter>();
+			for (Letter l : letters) {
+				if (sender.send(l)) {
+					delivered++;
+				} else {
+					kept.add(l);
+				}
+			}
+
+			synchronized (this) {
+				if (! kept.isEmpty()) {
+					Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"));
+					try {
+						for (Letter l : kept) {
+							write(out, l);
+						}
+					} finally {
+						out.close();
+					}
+				}
+				// Until this delete, a crash only means the taken letters are replayed again
+				if (! taken.delete()) {
+					throw new IOException("Could not delete the replayed letters in " + taken);
+				}
+			}
+			return delivered;
+		}
+	}
+
+	/**
+	 * @return The number of letters in the file
+	 * @throws IOException If the file cannot be read
+	 */
+	public synchronized int size() throws IOException {
+		if (! file.exists()) {
+			return 0;
+		}
+		int count = 0;
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			while (in.readLine() != null) {
+				count++;
+			}
+		} finally {
+			in.close();
+		}
+		return count;
+	}
+
+	private static void write(Writer out, Letter l) throws IOException {
+		out.write(String.valueOf(l.time));
+		out.write('\t');
+		out.write(escape(l.channel.name()));
+		out.write('\t');
+		out.write(escape(l.toAddr));
+		out.write('\t');
+		out.write(escape(l.subject));
+		out.write('\t');
+		out.write(escape(l.body));
+		out.write('\t');
+		out.write(escape(l.error));
+		out.write('\n');
+	}
+
+	private static String escape(String s) {
+		if (s == null) {
+			return "";
+		}
+		StringBuilder e = new StringBuilder(s.length());
+		for (int c = 0; c < s.length(); c++) {
+			char ch = s.charAt(c);
+			switch (ch) {
+				case '\\': e.append("\\\\"); break;
+				case '\t': e.append("\\t"); break;
+				case '\n': e.append("\\n"); break;
+				case '\r': e.append("\\r"); break;
+				default: e.append(ch);
+			}
+		}
+		return e.toString();
+	}
+
+	private static String unescape(String s) {
+		StringBuilder u = new StringBuilder(s.length());
+		for (int c = 0; c < s.length(); c++) {
+			char ch = s.charAt(c);
+			if (ch == '\\' && c + 1 < s.length()) {
+				char next = s.charAt(++c);
+				switch (next) {
+					case 't': u.append('\t'); break;
+					case 'n': u.append('\n'); break;
+					case 'r': u.append('\r'); break;
+					default: u.append(next);
+				}
+			} else {
+				u.append(ch);
+			}
+		}
+		return u.toString();
+	}
+
+	/**
+	 * Delivers the letters of a replay.
+	 */
+	public interface Sender {
+
+		/**
+		 * Deliver one letter.
+		 *
+		 * @param letter The Letter
+		 * @return True if it was delivered, false to keep it
+		 */
+		boolean send(Letter letter);
+	}
+
+	/**
+	 * An email or page that could not be delivered.
+	 */
+	public static class Letter {
+		private final long time;
+		private final NotificationMetrics.Channel channel;
+		private final String toAddr;
+		private final String subject;
+		private final String body;
+		private final String error;
+
+		/**
+		 * Create a new Letter.
+		 *
+		 * @param channel The channel it was sent on
+		 * @param toAddr The address it was sent to
+		 * @param subject The subject
+		 * @param body The body
+		 * @param error Why it was not delivered
+		 */
+		public Letter(NotificationMetrics.Channel channel, String toAddr, String subject, String body, String error) {
+			this(System.currentTimeMillis(), channel, toAddr, subject, body, error);
+		}
+
+		private Letter(long time, NotificationMetrics.Channel channel, String toAddr, String subject, String body, String error) {
+			this.time = time;
+			this.channel = channel;
+			this.toAddr = toAddr;
+			this.subject = subject;
+			this.body = body;
+			this.error = error;
+		}
+
+		static Letter parse(String line) {
+			String[] f = line.split("\t", -1);
+			if (f.length < 6) {
+				return null;
+			}
+			try {
+				return new Letter(Long.parseLong(f[0]), NotificationMetrics.Channel.valueOf(unescape(f[1])), unescape(f[2]),
+						unescape(f[3]), unescape(f[4]), unescape(f[5]));
+			} catch (IllegalArgumentException e) {
+				// A torn or foreign line
+				return null;
+			}
+		}
+
+		/**
+		 * @return When it was given up on, in milliseconds since the epoch
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		/**
+		 * @return The channel it was sent on
+		 */
+		public NotificationMetrics.Channel getChannel() {
+			return channel;
+		}
+
+		/**
+		 * @return The address it was sent to
+		 */
+		public String getToAddr() {
+			return toAddr;
+		}
+
+		/**
+		 * @return The subject
+		 */
+		public String getSubject() {
+			return subject;
+		}
+
+		/**
+		 * @return The body
+		 */
+		public String getBody() {
+			return body;
+		}
+
+		/**
+		 * @return Why it was not delivered
+		 */
+		public String getError() {
+			return error;
+		}
+	}
+}
@@ -131,6 +131,23 @@ public class InputScreener {
 		blacklistLength(input);		
 	}
 	
+	/**
+	 * Screen a free text description, such as a ConfigurationItem description or supplier.
+	 * Spaces are permitted, but markup and SQL meta characters are not.
+	 * 
+	 * @param input The String to be screened as a description
+	 * @throws InputScreenerException
+	 */
+	public void screenDescription(String input) throws InputScreenerException {
+		// Characters unacceptable for a description
+		char[] badCharacters = { '`','\\','"','\'','<','>',';','|','{','}' };
+		
+		// Screen that this String does not contain any dangerous characters
+		blacklistBadChars(input, badCharacters);
+		// Screen that the length of this String is reasonable for a description
+		blacklistLength(input, 255);
+	}
+	
 	private void whitelistStrength(String input) throws InputScreenerException {
 		String UPPER = ".*[A-Z].*";
 		String LOWER = ".*[a-z].*";
@@ -177,8 +194,17 @@ public class InputScreener {
 	 */
 	private void blacklistLength(String input) throws InputScreenerException {
 		// A reasonable length is defined as under 40 characters
-		int maxLength = 40;
-		
+		blacklistLength(input, 40);
+	}
+	
+	/**
+	 * Ensure that a String is not longer than the specified maximum.
+	 * 
+	 * @param input The String to ensure is a reasonable length
+	 * @param maxLength The maximum acceptable length
+	 * @throws InputScreenerException
+	 */
+	private void blacklistLength(String input, int maxLength) throws InputScreenerException {
 		// If the input is longer than the reasonable length, throw an exception
 		if (input.length() > maxLength) {
 			throw new InputScreenerException("Input length is outside boundaries");
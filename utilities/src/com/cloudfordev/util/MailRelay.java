@@ -0,0 +1,125 @@
+package com.cloudfordev.util;
+
+import java.util.Properties;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.PasswordAuthentication;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+
+/**
+ * MailRelay sends messages through one SMTP relay over a single connection that is kept open
+ * between messages, so that only the first message pays for the STARTTLS handshake and login.<br>
+ * <br>
+ * The Session is created once.  When sending over the open connection fails, because the relay
+ * closed it while idle or the network dropped it, the connection is reopened and the message sent
+ * once more.  A message the relay refuses for its recipients is not resent, since a new connection
+ * would not change that.  Messages are sent one at a time over the connection.
+ *
+ * @author u1001
+ * @version 1.0
+ */
+public class MailRelay {
+
+	private final Properties props = new Properties();
+	private final String username;
+	private final String password;
+	private Session session = null;
+	private Transport transport = null;
+
+	/**
+	 * Create a new MailRelay.  Nothing is connected until the first message is sent.
+	 *
+	 * @param host The host name of the SMTP relay
+	 * @param port The port of the SMTP relay
+	 * @param username The user name to log in with, or null if the relay does not authenticate
+	 * @param password The password to log in with
+	 * @param startTLS True to upgrade the connection with STARTTLS
+	 */
+	public MailRelay(String host, int port, String username, String password, boolean startTLS) {
+		this.username = username;
+		this.password = password;
+
+		props.put("mail.transport.protocol", "smtp");
+		props.put("mail.smtp.host", host);
+		props.put("mail.smtp.port", String.valueOf(port));
+		props.put("mail.smtp.auth", String.valueOf(username != null));
+		props.put("mail.smtp.starttls.enable", String.valueOf(startTLS));
+	}
+
+	/**
+	 * @return The Session messages for this MailRelay are built with
+	 */
+	public synchronized Session getSession() {
+		if (session == null) {
+			if (username == null) {
+				session = Session.getInstance(props);
+			} else {
+				session = Session.getInstance(props, new javax.mail.Authenticator() {
+					protected PasswordAuthentication getPasswordAuthentication() {
+						return new PasswordAuthentication(username, password);
+					}
+				});
+			}
+		}
+		return session;
+	}
+
+	/**
+	 * Send a message over the open connection, opening it if needed.
+	 *
+	 * @param msg The message, built with this MailRelay's Session
+	 * @throws MessagingException If the message could not be sent, even over a new connection
+	 */
+	public synchronized void send(Message msg) throws MessagingException {
+		msg.saveChanges();
+		try {
+			connected().sendMessage(msg, msg.getAllRecipients());
+		} catch (SendFailedException e) {
+			Address[] invalid = e.getInvalidAddresses();
+			if (invalid != null && invalid.length > 0) {
+				// The relay refused the recipients, and would again
+				throw e;
+			}
+			// JavaMail also reports a connection dropped part way through a message this way
+			disconnect();
+			connected().sendMessage(msg, msg.getAllRecipients());
+		} catch (MessagingException e) {
+			// The connection went stale, so send once more over a new one
+			disconnect();
+			connected().sendMessage(msg, msg.getAllRecipients());
+		}
+	}
+
+	/**
+	 * Close the connection.  The next message sent opens a new one.
+	 */
+	public synchronized void close() {
+		disconnect();
+	}
+
+	private Transport connected() throws MessagingException {
+		if (transport == null) {
+			transport = getSession().getTransport("smtp");
+		}
+		if (! transport.isConnected()) {
+			transport.connect();
+		}
+		return transport;
+	}
+
+	private void disconnect() {
+		if (transport == null) {
+			return;
+		}
+		try {
+			transport.close();
+		} catch (MessagingException e) {
+			// The connection is being thrown away
+		}
+		transport = null;
+	}
+}
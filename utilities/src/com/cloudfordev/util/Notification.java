@@ -1,17 +1,22 @@
 package com.cloudfordev.util;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
 import java.util.Date;
-import java.util.Properties;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 import javax.mail.Message;
 import javax.mail.MessagingException;
-import javax.mail.PasswordAuthentication;
-import javax.mail.Session;
-import javax.mail.Transport;
+import javax.mail.SendFailedException;
 import javax.mail.internet.AddressException;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
@@ -25,12 +30,24 @@ import com.cloudfordev.security.EnigmaMachine;
  * <br>
  * 1.  Page - Send an SMS text message to the oncall pager<br>
  * 2.  Email - Send an email to the ops email address<br>
- * 3.  Log - Write to standard out<br>
+ * 3.  Log - Write to standard out, or to a StructuredLog<br>
  * <br>
- * Note that an alert pages and logs.  
+ * Note that an alert pages and logs.  <br>
+ * <br>
+ * Pages and emails are sent by a NotificationDispatcher on its own threads, so alert and email
+ * return at once and a slow mail relay never holds up the caller.  Logging stays on the caller's
+ * thread, so an alert is always logged even if its page is dropped.  Every page and email goes
+ * through one MailRelay, which keeps its connection to the mail relay open between messages.  With
+ * a NotificationDigest set, severity 3 emails are collected into one summary per recipient, and
+ * with an AlertLimiter set, pages are rate limited per source and destination.  A Throwable logged
+ * again is written as a count of its repeats rather than its full stack trace, and the repeats
+ * are summarised with the next Throwable logged once a summary is due.  Emails and pages that fail
+ * for a reason that may pass are tried again with a backoff; those that cannot be delivered are
+ * kept in a DeadLetterFile, if one is set, to be replayed later.  Deliveries on every channel are
+ * counted in NotificationMetrics.
  * 
  * @author u1001
- * @version 1.2
+ * @version 1.3
  */
 public class Notification {
 	
@@ -40,6 +57,20 @@ public class Notification {
 	private String msgBody = "";
 	private Throwable thrown = null;
 	private Object pitcher = null;
+	private int severity = 0;
+	
+	private static NotificationDispatcher dispatcher = null;
+	private static MailRelay relay = null;
+	private static NotificationDigest digest = null;
+	private static AlertLimiter limiter = null;
+	private static StructuredLog structuredLog = null;
+	private static ThrowableCache throwables = new ThrowableCache(1000, 5, 60000);
+	private static final NotificationMetrics metrics = new NotificationMetrics();
+	private static DeadLetterFile deadLetters = null;
+	private static ScheduledExecutorService retries = null;
+	private static int maxAttempts = 4;
+	private static long baseDelay = 1000;
+	private static long maxDelay = 60000;
 	
 	/**
 	 * Create a new Notification using the class that threw the message and the message itself.
@@ -90,8 +121,19 @@ public class Notification {
 	 * An alert sends an SMS text message and logs the message.
 	 */
 	public void alert() {
-		log();	
-		sendEmail(smsEmail); 
+		log(StructuredLog.Level.ERROR);	
+		
+		// Pages over the rate limit are only logged, and counted in the next page
+		String preamble = "";
+		AlertLimiter l = getLimiter();
+		if (l != null) {
+			preamble = l.acquire(getSource(), smsEmail);
+			if (preamble == null) {
+				return;
+			}
+		}
+		
+		dispatch(1, NotificationMetrics.Channel.PAGER, smsEmail, preamble); 
 	}
 	
 	/**
@@ -104,106 +146,516 @@ public class Notification {
 			toAddr = smsEmail;
 		}
 		
-		sendEmail(toAddr);
+		// Severity 3 emails wait for the recipient's digest, when there is one
+		NotificationDigest d = getDigest();
+		if (d != null && (severity > 0 ? severity : 3) == 3 && d.add(toAddr, this)) {
+			return;
+		}
+		
+		dispatch(3, NotificationMetrics.Channel.EMAIL, toAddr, "");
 	}
 	
 	/**
-	 * Write the message to standard out.
+	 * Email the message to the specified email address now, bypassing any digest.
+	 * 
+	 * @param toAddr The address to email the message
 	 */
-	public void log() {
-		// Translate the pitcher class into a fully qualified name
-		String logBody = pitcher.getClass().getCanonicalName();
-		
+	void sendNow(String toAddr) {
+		dispatch(3, NotificationMetrics.Channel.EMAIL, toAddr, "");
+	}
+	
+	/**
+	 * Set the severity used to order this Notification's page or email against others waiting to be
+	 * sent, 1 being the highest.  This is optional: an alert is severity 1 and an email severity 3.
+	 * 
+	 * @param severity The severity
+	 * @return This Notification
+	 */
+	public Notification setSeverity(int severity) {
+		this.severity = severity;
+		return this;
+	}
+	
+	/**
+	 * Get the NotificationDispatcher that sends pages and emails, creating and starting the default
+	 * one on first use.  The default one sends whatever is queued when the JVM exits.
+	 * 
+	 * @return The NotificationDispatcher
+	 */
+	public static synchronized NotificationDispatcher getDispatcher() {
+		if (dispatcher == null) {
+			final NotificationDispatcher d = new NotificationDispatcher(2, 1000);
+			Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+				public void run() {
+					try {
+						// Pending digests are queued first, so that they are drained too
+						NotificationDigest digest = getDigest();
+						if (digest != null) {
+							digest.shutdown();
+						}
+						
+						// Retries still waiting get one last attempt, and are dead lettered if it fails
+						List<Runnable> waiting = shutdownRetries();
+						for (Runnable r : waiting) {
+							r.run();
+						}
+						d.shutdown(10, TimeUnit.SECONDS);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			}, "NotificationDispatcher-shutdown"));
+			dispatcher = d;
+		}
+		return dispatcher;
+	}
+	
+	/**
+	 * Replace the NotificationDispatcher that sends pages and emails.  The one replaced is not shut
+	 * down.
+	 * 
+	 * @param dispatcher The NotificationDispatcher
+	 */
+	public static synchronized void setDispatcher(NotificationDispatcher dispatcher) {
+		Notification.dispatcher = dispatcher;
+	}
+	
+	/**
+	 * @return The NotificationDigest severity 3 emails are collected in, or null if they are sent one by one
+	 */
+	public static synchronized NotificationDigest getDigest() {
+		return digest;
+	}
+	
+	/**
+	 * Collect severity 3 emails into a digest per recipient rather than sending them one by one.
+	 * This is optional.  The digest replaced, if any, is shut down and its pending emails sent.
+	 * 
+	 * @param digest The NotificationDigest, or null to send emails one by one
+	 */
+	public static void setDigest(NotificationDigest digest) {
+		NotificationDigest replaced;
+		synchronized (Notification.class) {
+			replaced = Notification.digest;
+			Notification.digest = digest;
+		}
+		if (replaced != null && replaced != digest) {
+			replaced.shutdown();
+		}
+	}
+	
+	/**
+	 * @return The AlertLimiter pages are rate limited by, or null if they are not limited
+	 */
+	public static synchronized AlertLimiter getLimiter() {
+		return limiter;
+	}
+	
+	/**
+	 * Rate limit pages per source and per destination.  This is optional.
+	 * 
+	 * @param limiter The AlertLimiter, or null to send every page
+	 */
+	public static synchronized void setLimiter(AlertLimiter limiter) {
+		Notification.limiter = limiter;
+	}
+	
+	/**
+	 * @return The source of this Notification: the pitcher itself if it is a String, otherwise its class name
+	 */
+	String getSource() {
+		if (pitcher instanceof String) {
+			return (String) pitcher;
+		}
+		return pitcher.getClass().getCanonicalName();
+	}
+	
+	/**
+	 * @return The text an email of this Notification carries
+	 */
+	String getText() {
 		if (thrown == null) {
 			// If a throwable was not passed in, assume it was a string message and append it
-			logBody += " | " + msgBody;
+			return msgBody;
 		} else {
 			// Else a throwable was passed in, so we get information out of it
-			StringWriter errors = new StringWriter();
-			thrown.printStackTrace(new PrintWriter(errors));
-			logBody += " | " + thrown.getLocalizedMessage() + "\n" + errors.toString();
+			return thrown.getLocalizedMessage();
+		}
+	}
+	
+	/**
+	 * Write the message to the StructuredLog, or to standard out if none is set.
+	 */
+	public void log() {
+		StructuredLog.Level level = StructuredLog.Level.INFO;
+		if (thrown != null || (severity > 0 && severity < 3)) {
+			level = StructuredLog.Level.ERROR;
+		} else if (severity == 3) {
+			level = StructuredLog.Level.WARN;
+		}
+		log(level);
+	}
+	
+	/**
+	 * @return The ThrowableCache repeated Throwables are recognised by, or null if every one is logged in full
+	 */
+	public static synchronized ThrowableCache getThrowableCache() {
+		return throwables;
+	}
+	
+	/**
+	 * Replace the ThrowableCache repeated Throwables are recognised by.  By default the 1000 most
+	 * recent fingerprints are kept, and repeats are summarised every minute.
+	 * 
+	 * @param throwables The ThrowableCache, or null to log every Throwable in full
+	 */
+	public static synchronized void setThrowableCache(ThrowableCache throwables) {
+		Notification.throwables = throwables;
+	}
+	
+	/**
+	 * @return The StructuredLog Notifications are written to, or null if they are written to standard out
+	 */
+	public static synchronized StructuredLog getLog() {
+		return structuredLog;
+	}
+	
+	/**
+	 * Write Notifications to a StructuredLog rather than standard out.  This is optional.  The log
+	 * replaced is not closed.
+	 * 
+	 * @param log The StructuredLog, or null to write to standard out
+	 */
+	public static synchronized void setLog(StructuredLog log) {
+		Notification.structuredLog = log;
+	}
+	
+	/**
+	 * Write the message at a level.
+	 * 
+	 * @param level The level, used by the StructuredLog
+	 */
+	private void log(StructuredLog.Level level) {
+		long start = System.nanoTime();
+		StructuredLog sl = getLog();
+		if (sl != null && ! sl.isEnabled(getSource(), level)) {
+			// Filtered out, so neither formatted nor counted as a repeat nobody saw
+			return;
+		}
+		
+		String message = thrown == null ? msgBody : thrown.getLocalizedMessage();
+		Throwable trace = thrown;
+		ThrowableCache.Occurrence seen = null;
+		String summary = null;
+		
+		// A repeated Throwable is counted rather than written in full
+		ThrowableCache tc = getThrowableCache();
+		if (tc != null && thrown != null) {
+			seen = tc.record(thrown);
+			summary = tc.summarize();
+			if (! seen.isFirst()) {
+				message += " (seen " + seen.getCount() + " times since " + new Date(seen.getFirstSeen()) + ")";
+				trace = null;
+			}
+		}
+		
+		if (sl != null) {
+			// The stack trace is formatted by the log's own thread, if the event is written at all
+			sl.log(level, getSource(), message, trace);
+			if (summary != null) {
+				sl.log(StructuredLog.Level.INFO, ThrowableCache.class.getCanonicalName(), summary, null);
+			}
+			metrics.delivered(NotificationMetrics.Channel.LOG, System.nanoTime() - start);
+			return;
+		}
+		
+		// Translate the pitcher class into a fully qualified name, unless it names itself
+		String logBody = getSource() + " | " + message;
+		
+		if (trace != null) {
+			// A throwable was passed in, so we get information out of it
+			if (seen != null) {
+				logBody += "\n" + seen.getTrace();
+			} else {
+				StringWriter errors = new StringWriter();
+				thrown.printStackTrace(new PrintWriter(errors));
+				logBody += "\n" + errors.toString();
+			}
+		}
+		
+		if (summary != null) {
+			logBody += "\nRepeated errors:\n" + summary;
 		}
 		
 		// Write a formatted message to standard out
 		System.out.println(new Date().toString() + " [ N O T I F I C A T I O N ]\n" + logBody);
+		metrics.delivered(NotificationMetrics.Channel.LOG, System.nanoTime() - start);
 	}
 	
 	/**
-	 * Send an email to the specified email address.
+	 * Queue an email to the specified email address on the NotificationDispatcher.
 	 * 
+	 * @param defaultSeverity The severity used unless one was set
+	 * @param channel The channel the email is counted in
 	 * @param toAddr The address to email the message to
+	 * @param preamble The text put before the message
 	 */
-	private void sendEmail(String toAddr)  {
-		Session session = null;
-		// The from information is set
-		String fromAddr = "notification@cloudfordev.com";	
-		String fromName = "CFD Notifications";
-		String emailBody;
-		
-		if (thrown == null) {
-			// If a throwable was not passed in, assume it was a string message and append it
-			emailBody = msgBody;
-		} else {
-			// Else a throwable was passed in, so we get information out of it
-			emailBody = thrown.getLocalizedMessage();
+	private void dispatch(int defaultSeverity, NotificationMetrics.Channel channel, String toAddr, String preamble) {
+		deliver(severity > 0 ? severity : defaultSeverity, channel, toAddr, pitcher.getClass().getCanonicalName(), preamble + getText(), 1);
+	}
+	
+	/**
+	 * Queue one attempt to deliver an email.  An attempt that fails for a reason that may pass is
+	 * tried again after a backoff, and one that cannot succeed, or has been tried too often, is
+	 * written to the dead letters.
+	 * 
+	 * @param sev The severity the email is queued with
+	 * @param channel The channel the email is counted in
+	 * @param toAddr The address to email the message to
+	 * @param subject The subject
+	 * @param body The body
+	 * @param attempt The number of the attempt, starting at 1
+	 */
+	private void deliver(final int sev, final NotificationMetrics.Channel channel, final String toAddr, final String subject, final String body, final int attempt) {
+		getDispatcher().dispatch(sev, new Runnable() {
+			public void run() {
+				long start = System.nanoTime();
+				try {
+					send(toAddr, subject, body);
+					metrics.delivered(channel, System.nanoTime() - start);
+				} catch (Exception e) {
+					metrics.failed(channel, System.nanoTime() - start);
+					
+					// Ironically, Notification uses itself to log this exception
+					Notification n = new Notification(Notification.this, e);
+					n.log();
+					
+					if (isTransient(e) && attempt < maxAttempts && retry(sev, channel, toAddr, subject, body, attempt)) {
+						return;
+					}
+					deadLetter(channel, toAddr, subject, body, e.toString());
+				}
+			}
+		}, new Runnable() {
+			public void run() {
+				metrics.dropped(channel);
+				
+				// A retry is not lost to a full or closed queue, or to a more severe delivery, though a first attempt is
+				if (attempt > 1) {
+					deadLetter(channel, toAddr, subject, body, "Dropped by the NotificationDispatcher");
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Schedule another attempt after an exponential backoff with jitter.
+	 * 
+	 * @return False if retries are no longer taken
+	 */
+	private boolean retry(final int sev, final NotificationMetrics.Channel channel, final String toAddr, final String subject, final String body, final int attempt) {
+		// Half the backoff is fixed and half random, so that failures at once do not retry at once
+		long backoff = Math.min(maxDelay, baseDelay << Math.min(attempt - 1, 30));
+		long delay = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+		try {
+			getRetryScheduler().schedule(new Runnable() {
+				public void run() {
+					deliver(sev, channel, toAddr, subject, body, attempt + 1);
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			return false;
+		}
+		metrics.retried(channel);
+		return true;
+	}
+	
+	/**
+	 * @return True if an exception sending an email may not happen on another attempt
+	 */
+	private static boolean isTransient(Exception e) {
+		// A bad address or body fails every time
+		return ! (e instanceof SendFailedException || e instanceof AddressException || e instanceof UnsupportedEncodingException);
+	}
+	
+	/**
+	 * Write an undeliverable email to the dead letters, if they are kept.
+	 */
+	private void deadLetter(NotificationMetrics.Channel channel, String toAddr, String subject, String body, String error) {
+		metrics.deadLettered(channel);
+		DeadLetterFile dl = getDeadLetters();
+		if (dl == null) {
+			return;
 		}
-		
 		try {
-			// Our user name is webmaster at CFD
-			final String username = "webmaster@cloudfordev.com";
-			
-			// Setup the EnigmaMachine
-			String keyLocation = "";
-			if (System.getProperty("os.name").toLowerCase().startsWith("win")) {
-				keyLocation = "C:\\Users\\jboss\\keys\\enigma";
-			} else {
-				keyLocation = "/home/jboss/keys/enigma";
+			dl.append(new DeadLetterFile.Letter(channel, toAddr, subject, body, error));
+		} catch (IOException e) {
+			Notification n = new Notification(this, e);
+			n.log();
+		}
+	}
+	
+	/**
+	 * @return The NotificationMetrics deliveries are counted in
+	 */
+	public static NotificationMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * @return The DeadLetterFile undeliverable emails and pages are written to, or null if they are only logged
+	 */
+	public static synchronized DeadLetterFile getDeadLetters() {
+		return deadLetters;
+	}
+	
+	/**
+	 * Keep undeliverable emails and pages in a DeadLetterFile.  This is optional.
+	 * 
+	 * @param deadLetters The DeadLetterFile, or null to only log them
+	 */
+	public static synchronized void setDeadLetters(DeadLetterFile deadLetters) {
+		Notification.deadLetters = deadLetters;
+	}
+	
+	/**
+	 * Set how emails and pages that fail for a reason that may pass are tried again.  By default they
+	 * are tried 4 times, waiting about 1, 2 and 4 seconds between attempts.
+	 * 
+	 * @param maxAttempts The maximum number of attempts
+	 * @param baseDelay The backoff in milliseconds after the first attempt, doubled after each further one
+	 * @param maxDelay The longest backoff in milliseconds
+	 */
+	public static synchronized void setRetryPolicy(int maxAttempts, long baseDelay, long maxDelay) {
+		Notification.maxAttempts = Math.max(1, maxAttempts);
+		Notification.baseDelay = Math.max(1, baseDelay);
+		Notification.maxDelay = Math.max(Notification.baseDelay, maxDelay);
+	}
+	
+	/**
+	 * Send every dead letter again, on the calling thread, keeping those that fail.
+	 * 
+	 * @return The number of letters delivered
+	 * @throws IOException If there are no dead letters kept, or they cannot be read or rewritten
+	 */
+	public static int replayDeadLetters() throws IOException {
+		DeadLetterFile dl = getDeadLetters();
+		if (dl == null) {
+			throw new IOException("No dead letters are kept");
+		}
+		return dl.replay(new DeadLetterFile.Sender() {
+			public boolean send(DeadLetterFile.Letter letter) {
+				long start = System.nanoTime();
+				try {
+					Notification.send(letter.getToAddr(), letter.getSubject(), letter.getBody());
+					metrics.delivered(letter.getChannel(), System.nanoTime() - start);
+					return true;
+				} catch (Exception e) {
+					metrics.failed(letter.getChannel(), System.nanoTime() - start);
+					Notification n = new Notification(Notification.class.getCanonicalName(), e);
+					n.log();
+					return false;
+				}
 			}
-			EnigmaMachine em = new EnigmaMachine(new File(keyLocation));
-			
-			// Decrypt the mail relay password
-			final String password = em.decrypt("pBbhgWGyzNnKmhrYtkIASw==","TOu9l9xDbKcHRF5+TKZVdg==");
-	
-			// These are Gmail's mail relay properties
-			Properties props = new Properties();
-			props.put("mail.smtp.auth", "true");
-			props.put("mail.smtp.starttls.enable", "true");
-			props.put("mail.smtp.host", "smtp.gmail.com");
-			props.put("mail.smtp.port", "587");
-			
-			// Get a session to the mail relay
-			session = Session.getInstance(props, new javax.mail.Authenticator() {
-				protected PasswordAuthentication getPasswordAuthentication() {
-					return new PasswordAuthentication(username, password);
+		});
+	}
+	
+	private static synchronized List<Runnable> shutdownRetries() {
+		if (retries == null) {
+			return new java.util.ArrayList<Runnable>();
+		}
+		return retries.shutdownNow();
+	}
+	
+	private static synchronized ScheduledExecutorService getRetryScheduler() {
+		if (retries == null) {
+			retries = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "Notification-retry");
+					t.setDaemon(true);
+					return t;
 				}
 			});
-		} catch (Exception e) {
-			Notification n = new Notification(this,e);
-			n.log();
 		}
+		return retries;
+	}
 	
-		// Build a MIME message based on the session
-        Message msg = new MimeMessage(session);
-        try {
-        	// Set the MIME fields
-	        msg.setFrom(new InternetAddress(fromAddr, fromName));
-	        msg.addRecipient(Message.RecipientType.TO, new InternetAddress(toAddr));
-	        msg.setSubject(pitcher.getClass().getCanonicalName());
-	        msg.setText(emailBody);
-	        // Send the message
-	        Transport.send(msg);
-        } catch (AddressException ae) { 
-        	// Ironically, Notification uses itself to log this exception
-        	Notification n = new Notification(this,ae);
-        	n.log();
-        } catch (MessagingException me) {
-        	// Ironically, Notification uses itself to log this exception
-        	Notification n = new Notification(this,me);
-        	n.log();
-        } catch (UnsupportedEncodingException e) {
-        	// Ironically, Notification uses itself to log this exception
-        	Notification n = new Notification(this,e);
-        	n.log();
+	/**
+	 * Get the MailRelay pages and emails are sent through, creating the default one on first use.
+	 * The default one logs in to Gmail's relay with the password kept in the EnigmaMachine keystore,
+	 * which is read once.
+	 * 
+	 * @return The MailRelay, or null if the relay password could not be decrypted
+	 */
+	public static synchronized MailRelay getMailRelay() {
+		if (relay == null) {
+			try {
+				// Our user name is webmaster at CFD
+				String username = "webmaster@cloudfordev.com";
+				
+				// Setup the EnigmaMachine
+				String keyLocation = "";
+				if (System.getProperty("os.name").toLowerCase().startsWith("win")) {
+					keyLocation = "C:\\Users\\jboss\\keys\\enigma";
+				} else {
+					keyLocation = "/home/jboss/keys/enigma";
+				}
+				EnigmaMachine em = new EnigmaMachine(new File(keyLocation));
+				
+				// Decrypt the mail relay password
+				String password = em.decrypt("pBbhgWGyzNnKmhrYtkIASw==","TOu9l9xDbKcHRF5+TKZVdg==");
+				
+				// These are Gmail's mail relay properties
+				relay = new MailRelay("smtp.gmail.com", 587, username, password, true);
+			} catch (Exception e) {
+				// Not cached, so the next email tries again
+				Notification n = new Notification(Notification.class.getCanonicalName(), e);
+				n.log();
+			}
+		}
+		return relay;
+	}
+	
+	/**
+	 * Replace the MailRelay pages and emails are sent through.  The one replaced is closed.
+	 * 
+	 * @param relay The MailRelay
+	 */
+	public static synchronized void setMailRelay(MailRelay relay) {
+		if (Notification.relay != null && Notification.relay != relay) {
+			Notification.relay.close();
+		}
+		Notification.relay = relay;
+	}
+	
+	/**
+	 * Send an email to the specified email address.
+	 * 
+	 * @param toAddr The address to email the message to
+	 * @param subject The subject
+	 * @param body The body
+	 * @throws MessagingException If the email could not be sent
+	 * @throws UnsupportedEncodingException If the from name cannot be encoded
+	 */
+	private static void send(String toAddr, String subject, String body) throws MessagingException, UnsupportedEncodingException {
+		// The from information is set
+		String fromAddr = "notification@cloudfordev.com";	
+		String fromName = "CFD Notifications";
+		
+		// The relay and its connection are shared by every Notification
+		MailRelay mailRelay = getMailRelay();
+		if (mailRelay == null) {
+			throw new MessagingException("The mail relay is not available");
 		}
+		
+		// Build a MIME message based on the session
+        Message msg = new MimeMessage(mailRelay.getSession());
+    	// Set the MIME fields
+        msg.setFrom(new InternetAddress(fromAddr, fromName));
+        msg.addRecipient(Message.RecipientType.TO, new InternetAddress(toAddr));
+        msg.setSubject(subject);
+        msg.setText(body);
+        // Send the message
+        mailRelay.send(msg);
 	}
 }
@@ -0,0 +1,246 @@
+package com.cloudfordev.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * NotificationDigest coalesces the severity 3 emails sent to each recipient over a window into one
+ * summary email, so that a storm of Incidents sends each team a few emails rather than thousands.<br>
+ * <br>
+ * The window of a recipient opens with the first email queued for them.  When it closes, a recipient
+ * with only one email gets that email as it was, and one with more gets a summary: how many emails
+ * there were, over what time, and the most frequent messages with their counts.  Memory stays
+ * bounded however many emails arrive: each recipient keeps counts for a limited number of distinct
+ * messages and lumps the rest together, and when too many recipients are pending, the oldest pending
+ * digest is sent early.<br>
+ * <br>
+ * Digests still pending are sent on shutdown, and when the default NotificationDispatcher drains on
+ * JVM exit.
+ *
+ * @author u1001
+ * @version 1.0
+ */
+public class NotificationDigest {
+
+	private final long window;
+	private final int maxMessages;
+	private final int maxRecipients;
+	private int topMessages = 10;
+
+	// Pending digests in the order their windows opened
+	private final LinkedHashMap<String, Pending> pending = new LinkedHashMap<String, Pending>();
+	private boolean running = true;
+	private final Thread flusher;
+
+	/**
+	 * Create and start a new NotificationDigest.
+	 *
+	 * @param window The time in milliseconds a recipient's emails are collected before they are sent
+	 * @param maxMessages The number of distinct messages counted per recipient, beyond which messages are counted together
+	 * @param maxRecipients The number of recipients with a pending digest, beyond which the oldest is sent early
+	 */
+	public NotificationDigest(long window, int maxMessages, int maxRecipients) {
+		this.window = Math.max(1, window);
+		this.maxMessages = Math.max(1, maxMessages);
+		this.maxRecipients = Math.max(1, maxRecipients);
+
+		flusher = new Thread(new Runnable() {
+			public void run() {
+				flushLoop();
+			}
+		}, "NotificationDigest-flusher");
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	/**
+	 * Add an email to the digest of its recipient.
+	 *
+	 * @param toAddr The recipient
+	 * @param n The Notification to email
+	 * @return False if the digest is shut down and the email was not taken
+	 */
+	public boolean add(String toAddr, Notification n) {
+		Pending early = null;
+		synchronized (this) {
+			if (! running) {
+				return false;
+			}
+			Pending p = pending.get(toAddr);
+			if (p == null) {
+				if (pending.size() >= maxRecipients) {
+					Iterator<Pending> oldest = pending.values().iterator();
+					early = oldest.next();
+					oldest.remove();
+				}
+				p = new Pending(toAddr, n);
+				pending.put(toAddr, p);
+				notifyAll();
+			}
+			p.add(n.getText(), maxMessages);
+		}
+
+		if (early != null) {
+			send(early);
+		}
+		return true;
+	}
+
+	/**
+	 * Send every pending digest now, whether or not its window has closed.
+	 */
+	public void flush() {
+		ArrayList<Pending> due;
+		synchronized (this) {
+			due = new ArrayList<Pending>(pending.values());
+			pending.clear();
+		}
+		for (Pending p : due) {
+			send(p);
+		}
+	}
+
+	/**
+	 * Stop taking emails and send every pending digest.
+	 */
+	public void shutdown() {
+		synchronized (this) {
+			running = false;
+			notifyAll();
+		}
+		flush();
+	}
+
+	/**
+	 * @return The number of recipients with a pending digest
+	 */
+	public synchronized int getPendingCount() {
+		return pending.size();
+	}
+
+	/**
+	 * Set how many of the most frequent messages a summary lists.
+	 *
+	 * @param topMessages The number of messages
+	 */
+	public synchronized void setTopMessages(int topMessages) {
+		this.topMessages = Math.max(1, topMessages);
+	}
+
+	private void flushLoop() {
+		while (true) {
+			ArrayList<Pending> due = new ArrayList<Pending>();
+			synchronized (this) {
+				if (! running) {
+					return;
+				}
+				long now = System.currentTimeMillis();
+				Iterator<Pending> it = pending.values().iterator();
+				long wait = window;
+				while (it.hasNext()) {
+					Pending p = it.next();
+					long left = p.opened + window - now;
+					if (left > 0) {
+						// Windows open in order, so the rest close later still
+						wait = left;
+						break;
+					}
+					due.add(p);
+					it.remove();
+				}
+				if (due.isEmpty()) {
+					try {
+						wait(wait);
+					} catch (InterruptedException e) {
+						return;
+					}
+					continue;
+				}
+			}
+			for (Pending p : due) {
+				send(p);
+			}
+		}
+	}
+
+	private void send(Pending p) {
+		if (p.count == 1) {
+			// A lone email goes out as it was
+			p.first.sendNow(p.toAddr);
+			return;
+		}
+
+		Notification n = new Notification(this, summarize(p));
+		n.setSeverity(3);
+		n.sendNow(p.toAddr);
+	}
+
+	private String summarize(Pending p) {
+		int top;
+		synchronized (this) {
+			top = topMessages;
+		}
+
+		List<Map.Entry<String, Integer>> counts = new ArrayList<Map.Entry<String, Integer>>(p.messages.entrySet());
+		Collections.sort(counts, new Comparator<Map.Entry<String, Integer>>() {
+			public int compare(Map.Entry<String, Integer> a, Map.Entry<String, Integer> b) {
+				return b.getValue().compareTo(a.getValue());
+			}
+		});
+
+		StringBuilder body = new StringBuilder();
+		body.append(p.count).append(" notifications between ").append(new Date(p.opened)).append(" and ").append(new Date(p.last)).append("\n\n");
+		int listed = 0;
+		int unlisted = p.others;
+		for (Map.Entry<String, Integer> e : counts) {
+			if (listed < top) {
+				body.append(e.getValue()).append(" x ").append(e.getKey()).append("\n");
+				listed++;
+			} else {
+				unlisted += e.getValue();
+			}
+		}
+		if (unlisted > 0) {
+			body.append(unlisted).append(" x other messages\n");
+		}
+		return body.toString();
+	}
+
+	/**
+	 * The emails collected for one recipient.
+	 */
+	private static class Pending {
+		final String toAddr;
+		final Notification first;
+		final long opened = System.currentTimeMillis();
+		long last = opened;
+		int count = 0;
+		int others = 0;
+		final HashMap<String, Integer> messages = new HashMap<String, Integer>();
+
+		Pending(String toAddr, Notification first) {
+			this.toAddr = toAddr;
+			this.first = first;
+		}
+
+		void add(String text, int maxMessages) {
+			count++;
+			last = System.currentTimeMillis();
+			Integer seen = messages.get(text);
+			if (seen != null) {
+				messages.put(text, seen + 1);
+			} else if (messages.size() < maxMessages) {
+				messages.put(text, 1);
+			} else {
+				others++;
+			}
+		}
+	}
+}
@@ -0,0 +1,234 @@
+package com.cloudfordev.util;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * NotificationDispatcher sends Notification emails and pages on worker threads, so that callers
+ * never wait on the mail relay.<br>
+ * <br>
+ * Deliveries wait in a bounded queue ordered by severity, 1 being the highest, and then by age, so
+ * the workers always send the most severe delivery first.  When the queue is full, the least
+ * severe and newest delivery is dropped: either the one being queued or the one it displaces.
+ * Every drop is counted and logged, and handed to the drop handler the delivery was queued with,
+ * so that the sender can keep what would otherwise be lost.<br>
+ * <br>
+ * On shutdown, the queue stops accepting deliveries and the workers send what is left before they
+ * stop.  The dispatcher Notification uses by default is shut down this way when the JVM exits.
+ *
+ * @author u1001
+ * @version 1.0
+ */
+public class NotificationDispatcher {
+
+	private final int capacity;
+	private final TreeSet<Delivery> queue = new TreeSet<Delivery>(new Comparator<Delivery>() {
+		public int compare(Delivery a, Delivery b) {
+			if (a.severity != b.severity) {
+				return a.severity < b.severity ? -1 : 1;
+			}
+			return a.seq < b.seq ? -1 : (a.seq > b.seq ? 1 : 0);
+		}
+	});
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final ArrayList<Thread> workers = new ArrayList<Thread>();
+
+	private final AtomicLong seq = new AtomicLong();
+	private final AtomicLong sent = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private volatile boolean running = true;
+
+	/**
+	 * Create and start a new NotificationDispatcher.
+	 *
+	 * @param threads The number of worker threads
+	 * @param capacity The maximum number of deliveries waiting to be sent
+	 */
+	public NotificationDispatcher(int threads, int capacity) {
+		this.capacity = Math.max(1, capacity);
+
+		for (int t = 0; t < Math.max(1, threads); t++) {
+			Thread worker = new Thread(new Runnable() {
+				public void run() {
+					work();
+				}
+			}, "NotificationDispatcher-" + (t + 1));
+			worker.setDaemon(true);
+			workers.add(worker);
+			worker.start();
+		}
+	}
+
+	/**
+	 * Queue a delivery without waiting.
+	 *
+	 * @param severity The severity of the delivery, 1 being the highest
+	 * @param delivery The work that sends it
+	 * @return False if the delivery was dropped, because the queue was full of more severe deliveries or the dispatcher is shut down
+	 */
+	public boolean dispatch(int severity, Runnable delivery) {
+		return dispatch(severity, delivery, null);
+	}
+
+	/**
+	 * Queue a delivery without waiting, with a handler that runs if it is dropped.  The handler runs
+	 * on the thread that queues the delivery which caused the drop, after the queue is unlocked.
+	 *
+	 * @param severity The severity of the delivery, 1 being the highest
+	 * @param delivery The work that sends it
+	 * @param onDrop The work that runs instead if the delivery is dropped, now or when a more severe one displaces it, or null for none
+	 * @return False if the delivery was dropped, because the queue was full of more severe deliveries or the dispatcher is shut down
+	 */
+	public boolean dispatch(int severity, Runnable delivery, Runnable onDrop) {
+		Delivery d = new Delivery(severity, seq.incrementAndGet(), delivery, onDrop);
+		Delivery displaced = null;
+
+		lock.lock();
+		try {
+			if (! running) {
+				dropped.incrementAndGet();
+				displaced = d;
+			} else if (queue.size() >= capacity) {
+				Delivery worst = queue.last();
+				if (worst.severity <= severity) {
+					// Nothing queued is less severe, so the new delivery is the one dropped
+					dropped.incrementAndGet();
+					displaced = d;
+				} else {
+					queue.pollLast();
+					dropped.incrementAndGet();
+					displaced = worst;
+				}
+			}
+			if (displaced != d) {
+				queue.add(d);
+				notEmpty.signal();
+			}
+		} finally {
+			lock.unlock();
+		}
+
+		if (displaced != null) {
+			// Logging does not go through the dispatcher, so this cannot recurse
+			Notification n = new Notification(this, (running ? "Queue full" : "Shut down") + ", dropped a severity " + displaced.severity + " notification");
+			n.setSeverity(3);
+			n.log();
+			if (displaced.onDrop != null) {
+				displaced.onDrop.run();
+			}
+		}
+		return displaced != d;
+	}
+
+	/**
+	 * Stop accepting deliveries, send those already queued, and stop the workers.
+	 *
+	 * @param timeout The longest time to wait for the queue to drain
+	 * @param unit The unit of the timeout
+	 * @return True if every queued delivery was sent before the timeout
+	 * @throws InterruptedException If interrupted while waiting
+	 */
+	public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+		lock.lock();
+		try {
+			running = false;
+			notEmpty.signalAll();
+		} finally {
+			lock.unlock();
+		}
+
+		long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+		for (Thread worker : workers) {
+			long left = deadline - System.currentTimeMillis();
+			if (left > 0) {
+				worker.join(left);
+			}
+		}
+		return getQueueDepth() == 0;
+	}
+
+	/**
+	 * @return The number of deliveries waiting to be sent
+	 */
+	public int getQueueDepth() {
+		lock.lock();
+		try {
+			return queue.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return The number of deliveries sent
+	 */
+	public long getSent() {
+		return sent.get();
+	}
+
+	/**
+	 * @return The number of deliveries dropped because the queue was full or shut down
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * @return The number of deliveries that failed with an unexpected exception
+	 */
+	public long getFailed() {
+		return failed.get();
+	}
+
+	private void work() {
+		while (true) {
+			Delivery d;
+			lock.lock();
+			try {
+				while (queue.isEmpty() && running) {
+					notEmpty.awaitUninterruptibly();
+				}
+				d = queue.pollFirst();
+				if (d == null) {
+					// Shut down and drained
+					return;
+				}
+			} finally {
+				lock.unlock();
+			}
+
+			try {
+				d.work.run();
+				sent.incrementAndGet();
+			} catch (RuntimeException e) {
+				failed.incrementAndGet();
+				Notification n = new Notification(this, e);
+				n.log();
+			}
+		}
+	}
+
+	/**
+	 * A queued delivery.
+	 */
+	private static class Delivery {
+		final int severity;
+		final long seq;
+		final Runnable work;
+		final Runnable onDrop;
+
+		Delivery(int severity, long seq, Runnable work, Runnable onDrop) {
+			this.severity = severity;
+			this.seq = seq;
+			this.work = work;
+			this.onDrop = onDrop;
+		}
+	}
+}
@@ -0,0 +1,223 @@
+package com.cloudfordev.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * NotificationMetrics counts the deliveries of Notifications on each channel, and keeps a
+ * histogram of how long they took, so that delivery throughput and failure rates can be watched
+ * under load.<br>
+ * <br>
+ * Latencies are counted in buckets whose bounds double, from one microsecond upwards, so that
+ * recording a delivery costs a few atomic increments and percentiles are read to within a factor of
+ * two.
+ *
+ * @author u1001
+ * @version 1.0
+ */
+public class NotificationMetrics {
+
+	/**
+	 * The ways a Notification is delivered.
+	 */
+	public enum Channel { LOG, EMAIL, PAGER }
+
+	// Bucket b counts latencies under 2^b microseconds, and the last counts the rest
+	private static final int BUCKETS = 32;
+
+	private final Stats[] stats = new Stats[Channel.values().length];
+	private final long started = System.currentTimeMillis();
+
+	/**
+	 * Create a new NotificationMetrics with every count at zero.
+	 */
+	public NotificationMetrics() {
+		for (int c = 0; c < stats.length; c++) {
+			stats[c] = new Stats();
+		}
+	}
+
+	/**
+	 * Record a delivery.
+	 *
+	 * @param channel The channel
+	 * @param nanos How long the delivery took, in nanoseconds
+	 */
+	public void delivered(Channel channel, long nanos) {
+		Stats s = stats[channel.ordinal()];
+		s.delivered.incrementAndGet();
+		s.latency.incrementAndGet(bucket(nanos));
+	}
+
+	/**
+	 * Record a failed delivery attempt.
+	 *
+	 * @param channel The channel
+	 * @param nanos How long the attempt took, in nanoseconds
+	 */
+	public void failed(Channel channel, long nanos) {
+		Stats s = stats[channel.ordinal()];
+		s.failed.incrementAndGet();
+		s.latency.incrementAndGet(bucket(nanos));
+	}
+
+	/**
+	 * Record that a failed delivery was scheduled to be tried again.
+	 *
+	 * @param channel The channel
+	 */
+	public void retried(Channel channel) {
+		stats[channel.ordinal()].retried.incrementAndGet();
+	}
+
+	/**
+	 * Record that a delivery attempt was dropped by the NotificationDispatcher before it was made.
+	 *
+	 * @param channel The channel
+	 */
+	public void dropped(Channel channel) {
+		stats[channel.ordinal()].dropped.incrementAndGet();
+	}
+
+	/**
+	 * Record that a delivery was given up on and written to the dead letters.
+	 *
+	 * @param channel The channel
+	 */
+	public void deadLettered(Channel channel) {
+		stats[channel.ordinal()].deadLettered.incrementAndGet();
+	}
+
+	/**
+	 * @param channel The channel
+	 * @return The number of deliveries
+	 */
+	public long getDelivered(Channel channel) {
+		return stats[channel.ordinal()].delivered.get();
+	}
+
+	/**
+	 * @param channel The channel
+	 * @return The number of failed delivery attempts
+	 */
+	public long getFailed(Channel channel) {
+		return stats[channel.ordinal()].failed.get();
+	}
+
+	/**
+	 * @param channel The channel
+	 * @return The number of retries scheduled
+	 */
+	public long getRetried(Channel channel) {
+		return stats[channel.ordinal()].retried.get();
+	}
+
+	/**
+	 * @param channel The channel
+	 * @return The number of delivery attempts dropped by the NotificationDispatcher
+	 */
+	public long getDropped(Channel channel) {
+		return stats[channel.ordinal()].dropped.get();
+	}
+
+	/**
+	 * @param channel The channel
+	 * @return The number of deliveries given up on
+	 */
+	public long getDeadLettered(Channel channel) {
+		return stats[channel.ordinal()].deadLettered.get();
+	}
+
+	/**
+	 * Get the latency histogram of a channel, attempts that failed included.
+	 *
+	 * @param channel The channel
+	 * @return The count of each bucket, bucket b holding latencies under getBucketBound(b) microseconds
+	 */
+	public long[] getHistogram(Channel channel) {
+		AtomicLongArray latency = stats[channel.ordinal()].latency;
+		long[] counts = new long[BUCKETS];
+		for (int b = 0; b < BUCKETS; b++) {
+			counts[b] = latency.get(b);
+		}
+		return counts;
+	}
+
+	/**
+	 * @param bucket A bucket of the latency histogram
+	 * @return The upper bound of the bucket in microseconds, or Long.MAX_VALUE for the last bucket
+	 */
+	public static long getBucketBound(int bucket) {
+		return bucket >= BUCKETS - 1 ? Long.MAX_VALUE : 1L << bucket;
+	}
+
+	/**
+	 * Estimate a latency percentile of a channel from its histogram.
+	 *
+	 * @param channel The channel
+	 * @param percentile The percentile, between 0 and 100
+	 * @return The upper bound in microseconds of the bucket the percentile falls in, or 0 if nothing was recorded
+	 */
+	public long getPercentile(Channel channel, double percentile) {
+		long[] counts = getHistogram(channel);
+		long total = 0;
+		for (long c : counts) {
+			total += c;
+		}
+		if (total == 0) {
+			return 0;
+		}
+
+		long rank = (long) Math.ceil(total * Math.min(100, Math.max(0, percentile)) / 100);
+		long seen = 0;
+		for (int b = 0; b < BUCKETS; b++) {
+			seen += counts[b];
+			if (seen >= Math.max(1, rank)) {
+				return getBucketBound(b);
+			}
+		}
+		return getBucketBound(BUCKETS - 1);
+	}
+
+	/**
+	 * @return One line per channel with its counts, delivery rate and latency percentiles.  The
+	 * failure rate counts dropped attempts as failed.
+	 */
+	public String report() {
+		double seconds = Math.max(1, System.currentTimeMillis() - started) / 1000.0;
+		StringBuilder report = new StringBuilder();
+		for (Channel c : Channel.values()) {
+			long delivered = getDelivered(c);
+			long failed = getFailed(c) + getDropped(c);
+			report.append(c).append(": delivered ").append(delivered)
+					.append(", failed ").append(getFailed(c))
+					.append(", dropped ").append(getDropped(c))
+					.append(", retried ").append(getRetried(c))
+					.append(", dead lettered ").append(getDeadLettered(c))
+					.append(", ").append(String.format("%.2f", delivered / seconds)).append("/s")
+					.append(", failure rate ").append(String.format("%.2f%%", delivered + failed == 0 ? 0.0 : 100.0 * failed / (delivered + failed)))
+					.append(", p50 < ").append(getPercentile(c, 50)).append("us")
+					.append(", p99 < ").append(getPercentile(c, 99)).append("us\n");
+		}
+		return report.toString();
+	}
+
+	private static int bucket(long nanos) {
+		long micros = Math.max(0, nanos / 1000);
+		// The smallest b with micros < 2^b
+		int b = 64 - Long.numberOfLeadingZeros(micros);
+		return Math.min(b, BUCKETS - 1);
+	}
+
+	/**
+	 * The counts of one channel.
+	 */
+	private static class Stats {
+		final AtomicLong delivered = new AtomicLong();
+		final AtomicLong failed = new AtomicLong();
+		final AtomicLong retried = new AtomicLong();
+		final AtomicLong dropped = new AtomicLong();
+		final AtomicLong deadLettered = new AtomicLong();
+		final AtomicLongArray latency = new AtomicLongArray(BUCKETS);
+	}
+}
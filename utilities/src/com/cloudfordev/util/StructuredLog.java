@@ -0,0 +1,389 @@
+package com.cloudfordev.util;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * StructuredLog writes log events as JSON lines to a rotated file on a background thread, so that
+ * logging costs the calling thread a few field writes rather than formatting and a lock on
+ * standard out.<br>
+ * <br>
+ * Events are handed over through a ring buffer of slots allocated once, claimed with a compare and
+ * set, so that threads logging at once do not block each other.  The background thread formats
+ * each event, including its stack trace, only after taking it from the ring.  When the ring is
+ * full, events are dropped and counted, and the count is written once there is room again.  Each
+ * source has a level below which its events are discarded before anything is captured, so the
+ * events filtered out cost one map lookup.<br>
+ * <br>
+ * Once the file reaches its maximum size it is renamed with a .1 suffix, older files shift up one,
+ * and the oldest beyond the number kept is deleted.  Events still in the ring are written when the
+ * log is closed, or when the JVM exits.
+ *
+ * @author u1001
+ * @version 1.0
+ */
+public class StructuredLog {
+
+	/**
+	 * The level of an event, from least to most important.
+	 */
+	public enum Level { DEBUG, INFO, WARN, ERROR }
+
+	private final File file;
+	private final long maxBytes;
+	private final int keep;
+
+	private final Slot[] slots;
+	private final AtomicLongArray sequences;
+	private final int mask;
+	private final AtomicLong tail = new AtomicLong();
+	private long head = 0;
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong written = new AtomicLong();
+
+	private volatile Level defaultLevel = Level.INFO;
+	private final ConcurrentHashMap<String, Level> levels = new ConcurrentHashMap<String, Level>();
+	// Each source's effective level, found once from the levels set by prefix
+	private final ConcurrentHashMap<String, Level> resolved = new ConcurrentHashMap<String, Level>();
+
+	private final Thread writer;
+	private volatile boolean running = true;
+	private OutputStream out = null;
+	private long size = 0;
+	private final SimpleDateFormat timestamps = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+
+	/**
+	 * Create and start a new StructuredLog.
+	 *
+	 * @param file The file to write, appended to if it exists
+	 * @param capacity The number of events the ring holds, rounded up to a power of two
+	 * @param maxBytes The size of the file at which it is rotated
+	 * @param keep The number of rotated files kept
+	 */
+	public StructuredLog(File file, int capacity, long maxBytes, int keep) {
+		this.file = file;
+		this.maxBytes = Math.max(1, maxBytes);
+		this.keep = Math.max(0, keep);
+		timestamps.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+		int slotCount = 1;
+		while (slotCount < capacity) {
+			slotCount <<= 1;
+		}
+		slots = new Slot[slotCount];
+		sequences = new AtomicLongArray(slotCount);
+		for (int s = 0; s < slotCount; s++) {
+			slots[s] = new Slot();
+			sequences.set(s, s);
+		}
+		mask = slotCount - 1;
+
+		writer = new Thread(new Runnable() {
+			public void run() {
+				writeLoop();
+			}
+		}, "StructuredLog-writer");
+		writer.setDaemon(true);
+		writer.start();
+
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			public void run() {
+				close();
+			}
+		}, "StructuredLog-shutdown"));
+	}
+
+	/**
+	 * Check whether events of a source and level would be written.
+	 *
+	 * @param source The source
+	 * @param level The level
+	 * @return True if they would be written
+	 */
+	public boolean isEnabled(String source, Level level) {
+		return level.compareTo(levelOf(source)) >= 0;
+	}
+
+	/**
+	 * Log an event, unless its source's level filters it out or the ring is full.
+	 *
+	 * @param level The level
+	 * @param source The source, usually a class name
+	 * @param message The message
+	 * @param thrown The Throwable behind the event, or null
+	 * @return True if the event was taken
+	 */
+	public boolean log(Level level, String source, String message, Throwable thrown) {
+		if (! running || ! isEnabled(source, level)) {
+			return false;
+		}
+
+		while (true) {
+			long pos = tail.get();
+			int index = (int) (pos & mask);
+			long seq = sequences.get(index);
+			if (seq < pos) {
+				// The writer has not freed this slot yet
+				dropped.incrementAndGet();
+				return false;
+			}
+			if (seq == pos && tail.compareAndSet(pos, pos + 1)) {
+				Slot slot = slots[index];
+				slot.time = System.currentTimeMillis();
+				slot.level = level;
+				slot.source = source;
+				slot.thread = Thread.currentThread().getName();
+				slot.message = message;
+				slot.thrown = thrown;
+				// Publish the slot to the writer
+				sequences.set(index, pos + 1);
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Set the level below which events of a source are discarded.  A level set for a source also
+	 * applies to every source it is a prefix of, unless a longer prefix has its own level.
+	 *
+	 * @param source The source, or source prefix such as a package name
+	 * @param level The level, or null to remove the source's level
+	 */
+	public void setLevel(String source, Level level) {
+		if (level == null) {
+			levels.remove(source);
+		} else {
+			levels.put(source, level);
+		}
+		resolved.clear();
+	}
+
+	/**
+	 * Set the level of sources with no level of their own.
+	 *
+	 * @param level The level
+	 */
+	public void setDefaultLevel(Level level) {
+		this.defaultLevel = level;
+		resolved.clear();
+	}
+
+	/**
+	 * @return The number of events dropped because the ring was full
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * @return The number of events written
+	 */
+	public long getWritten() {
+		return written.get();
+	}
+
+	/**
+	 * Stop taking events, write those in the ring and close the file.
+	 */
+	public void close() {
+		if (! running) {
+			return;
+		}
+		running = false;
+		LockSupport.unpark(writer);
+		try {
+			writer.join(10000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private Level levelOf(String source) {
+		if (source == null) {
+			source = "";
+		}
+		Level level = resolved.get(source);
+		if (level == null) {
+			// The longest prefix with a level wins
+			String best = null;
+			level = defaultLevel;
+			for (Map.Entry<String, Level> e : levels.entrySet()) {
+				String prefix = e.getKey();
+				if (source.startsWith(prefix) && (best == null || prefix.length() > best.length())) {
+					best = prefix;
+					level = e.getValue();
+				}
+			}
+			resolved.put(source, level);
+		}
+		return level;
+	}
+
+	private void writeLoop() {
+		long reported = 0;
+		while (true) {
+			int index = (int) (head & mask);
+			if (sequences.get(index) != head + 1) {
+				// Nothing published yet
+				flush();
+				if (! running && tail.get() == head) {
+					break;
+				}
+				LockSupport.parkNanos(1000000);
+				continue;
+			}
+
+			Slot slot = slots[index];
+			String line = format(slot.time, slot.level, slot.source, slot.thread, slot.message, slot.thrown);
+			slot.clear();
+			// Free the slot for the lap after this one
+			sequences.set(index, head + slots.length);
+			head++;
+			write(line);
+
+			long lost = dropped.get();
+			if (lost > reported) {
+				write(format(System.currentTimeMillis(), Level.WARN, StructuredLog.class.getCanonicalName(), writer.getName(),
+						(lost - reported) + " log events dropped, the ring was full", null));
+				reported = lost;
+			}
+		}
+		closeFile();
+	}
+
+	private String format(long time, Level level, String source, String thread, String message, Throwable thrown) {
+		StringBuilder json = new StringBuilder(256);
+		json.append("{\"ts\":\"").append(timestamps.format(new Date(time))).append('"');
+		json.append(",\"level\":\"").append(level).append('"');
+		json.append(",\"source\":");
+		quote(json, source);
+		json.append(",\"thread\":");
+		quote(json, thread);
+		json.append(",\"msg\":");
+		quote(json, message);
+		if (thrown != null) {
+			StringWriter trace = new StringWriter();
+			thrown.printStackTrace(new PrintWriter(trace));
+			json.append(",\"error\":");
+			quote(json, thrown.toString());
+			json.append(",\"trace\":");
+			quote(json, trace.toString());
+		}
+		json.append("}\n");
+		return json.toString();
+	}
+
+	private static void quote(StringBuilder json, String s) {
+		if (s == null) {
+			json.append("null");
+			return;
+		}
+		json.append('"');
+		for (int c = 0; c < s.length(); c++) {
+			char ch = s.charAt(c);
+			switch (ch) {
+				case '"': json.append("\\\""); break;
+				case '\\': json.append("\\\\"); break;
+				case '\n': json.append("\\n"); break;
+				case '\r': json.append("\\r"); break;
+				case '\t': json.append("\\t"); break;
+				default:
+					if (ch < 0x20) {
+						json.append(String.format("\\u%04x", (int) ch));
+					} else {
+						json.append(ch);
+					}
+			}
+		}
+		json.append('"');
+	}
+
+	private void write(String line) {
+		try {
+			if (out == null) {
+				size = file.length();
+				out = new BufferedOutputStream(new FileOutputStream(file, true), 65536);
+			}
+			byte[] bytes = line.getBytes("UTF-8");
+			out.write(bytes);
+			size += bytes.length;
+			written.incrementAndGet();
+			if (size >= maxBytes) {
+				rotate();
+			}
+		} catch (IOException e) {
+			// The log cannot log its own failures, so they go to standard out
+			System.out.println("StructuredLog | Could not write " + file + ": " + e);
+			closeFile();
+		}
+	}
+
+	private void rotate() throws IOException {
+		closeFile();
+		for (int r = keep; r >= 1; r--) {
+			File from = r == 1 ? file : new File(file.getPath() + "." + (r - 1));
+			File to = new File(file.getPath() + "." + r);
+			if (from.exists()) {
+				to.delete();
+				from.renameTo(to);
+			}
+		}
+		if (keep == 0) {
+			file.delete();
+		}
+	}
+
+	private void flush() {
+		if (out != null) {
+			try {
+				out.flush();
+			} catch (IOException e) {
+				System.out.println("StructuredLog | Could not write " + file + ": " + e);
+				closeFile();
+			}
+		}
+	}
+
+	private void closeFile() {
+		if (out != null) {
+			try {
+				out.close();
+			} catch (IOException e) {
+				System.out.println("StructuredLog | Could not close " + file + ": " + e);
+			}
+			out = null;
+		}
+	}
+
+	/**
+	 * One preallocated event in the ring.
+	 */
+	private static class Slot {
+		long time;
+		Level level;
+		String source;
+		String thread;
+		String message;
+		Throwable thrown;
+
+		void clear() {
+			source = null;
+			thread = null;
+			message = null;
+			thrown = null;
+		}
+	}
+}
@@ -0,0 +1,229 @@
+package com.cloudfordev.util;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * ThrowableCache recognises a Throwable that was logged before, so that an error repeated
+ * thousands of times during an outage is formatted and written in full once, and afterwards as a
+ * one line count.<br>
+ * <br>
+ * Throwables are fingerprinted by their class, the top frames of their stack trace, and the class
+ * of their root cause, leaving out the message, which often carries an ID or a time that changes
+ * on every repeat.  The cache keeps the formatted stack trace and the number of occurrences of
+ * each fingerprint, holding only the most recently seen fingerprints beyond its maximum size.  A
+ * periodic summary lists the fingerprints that repeated since the previous one.
+ *
+ * @author u1001
+ * @version 1.0
+ */
+public class ThrowableCache {
+
+	private final int frames;
+	private final long summaryInterval;
+	private final LinkedHashMap<String, Occurrence> cache;
+	private long lastSummary = System.currentTimeMillis();
+
+	/**
+	 * Create a new ThrowableCache.
+	 *
+	 * @param maxEntries The number of fingerprints kept, beyond which the least recently seen are forgotten
+	 * @param frames The number of stack frames in a fingerprint
+	 * @param summaryInterval The time in milliseconds between summaries of repeats
+	 */
+	public ThrowableCache(final int maxEntries, int frames, long summaryInterval) {
+		this.frames = Math.max(1, frames);
+		this.summaryInterval = Math.max(1, summaryInterval);
+		this.cache = new LinkedHashMap<String, Occurrence>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<String, Occurrence> eldest) {
+				return size() > Math.max(1, maxEntries);
+			}
+		};
+	}
+
+	/**
+	 * Fingerprint a Throwable.
+	 *
+	 * @param t The Throwable
+	 * @return The fingerprint
+	 */
+	public String fingerprint(Throwable t) {
+		StringBuilder fp = new StringBuilder(t.getClass().getName());
+		StackTraceElement[] trace = t.getStackTrace();
+		for (int f = 0; f < Math.min(frames, trace.length); f++) {
+			fp.append('|').append(trace[f].getClassName()).append('.').append(trace[f].getMethodName()).append(':').append(trace[f].getLineNumber());
+		}
+
+		Throwable root = t;
+		while (root.getCause() != null && root.getCause() != root) {
+			root = root.getCause();
+		}
+		if (root != t) {
+			fp.append("|caused by ").append(root.getClass().getName());
+		}
+		return fp.toString();
+	}
+
+	/**
+	 * Record an occurrence of a Throwable.
+	 *
+	 * @param t The Throwable
+	 * @return The Occurrence of its fingerprint, counting this one
+	 */
+	public Occurrence record(Throwable t) {
+		String fp = fingerprint(t);
+		synchronized (this) {
+			Occurrence o = cache.get(fp);
+			if (o == null) {
+				o = new Occurrence(fp, t);
+				cache.put(fp, o);
+			}
+			o.count++;
+			o.lastSeen = System.currentTimeMillis();
+			return o.copy();
+		}
+	}
+
+	/**
+	 * Summarise the fingerprints that repeated since the previous summary, if one is due.
+	 *
+	 * @return The summary, or null if none is due or nothing repeated
+	 */
+	public String summarize() {
+		ArrayList<Occurrence> repeated = new ArrayList<Occurrence>();
+		synchronized (this) {
+			long now = System.currentTimeMillis();
+			if (now - lastSummary < summaryInterval) {
+				return null;
+			}
+			lastSummary = now;
+			for (Occurrence o : cache.values()) {
+				if (o.count > o.summarized) {
+					repeated.add(o.copy());
+					o.summarized = o.count;
+				}
+			}
+		}
+
+		StringBuilder summary = new StringBuilder();
+		for (Occurrence o : repeated) {
+			// The first occurrence was logged in full
+			long repeats = o.count - Math.max(1, o.summarized);
+			if (repeats > 0) {
+				summary.append(repeats).append(" more x ").append(o.message).append(" (seen ").append(o.count)
+						.append(" times since ").append(new Date(o.firstSeen)).append(")\n");
+			}
+		}
+		return summary.length() == 0 ? null : summary.toString();
+	}
+
+	/**
+	 * @return The number of fingerprints kept
+	 */
+	public synchronized int size() {
+		return cache.size();
+	}
+
+	/**
+	 * The occurrences of one fingerprint.
+	 */
+	public static class Occurrence {
+		private final String fingerprint;
+		private final String message;
+		private final long firstSeen;
+		private final Throwable first;
+		// The Occurrence kept in the cache, which a copy formats the trace in
+		private final Occurrence origin;
+		private String trace = null;
+		private long lastSeen;
+		private long count = 0;
+		private long summarized = 0;
+
+		Occurrence(String fingerprint, Throwable first) {
+			this.fingerprint = fingerprint;
+			this.message = first.toString();
+			this.firstSeen = System.currentTimeMillis();
+			this.lastSeen = firstSeen;
+			this.first = first;
+			this.origin = null;
+		}
+
+		private Occurrence(Occurrence o) {
+			this.fingerprint = o.fingerprint;
+			this.message = o.message;
+			this.firstSeen = o.firstSeen;
+			this.first = o.first;
+			this.origin = o;
+			this.lastSeen = o.lastSeen;
+			this.count = o.count;
+			this.summarized = o.summarized;
+		}
+
+		Occurrence copy() {
+			return new Occurrence(this);
+		}
+
+		/**
+		 * @return The fingerprint
+		 */
+		public String getFingerprint() {
+			return fingerprint;
+		}
+
+		/**
+		 * @return The number of times the fingerprint was seen, while it was kept
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * @return True if this is the first time the fingerprint was seen, while it was kept
+		 */
+		public boolean isFirst() {
+			return count == 1;
+		}
+
+		/**
+		 * @return When the fingerprint was first seen, in milliseconds since the epoch
+		 */
+		public long getFirstSeen() {
+			return firstSeen;
+		}
+
+		/**
+		 * @return When the fingerprint was last seen, in milliseconds since the epoch
+		 */
+		public long getLastSeen() {
+			return lastSeen;
+		}
+
+		/**
+		 * Get the stack trace of the first Throwable seen with the fingerprint.  It is formatted on the
+		 * first call only.
+		 *
+		 * @return The stack trace
+		 */
+		public String getTrace() {
+			if (origin != null) {
+				return origin.getTrace();
+			}
+			return format();
+		}
+
+		private synchronized String format() {
+			if (trace == null) {
+				StringWriter errors = new StringWriter();
+				first.printStackTrace(new PrintWriter(errors));
+				trace = errors.toString();
+			}
+			return trace;
+		}
+	}
+}
@@ -0,0 +1,187 @@
+package com.cloudfordev.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests MailRelay against a fake SMTP server on a local socket, counting the connections it opens.
+ *
+ * @author u1001
+ * @version 1.0
+ */
+public class MailRelayTest {
+
+	private FakeSMTPServer server;
+	private MailRelay relay;
+
+	@Before
+	public void setUp() throws IOException {
+		server = new FakeSMTPServer();
+		relay = new MailRelay("127.0.0.1", server.getPort(), null, null, false);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		relay.close();
+		server.close();
+	}
+
+	@Test
+	public void reusesOneConnection() throws Exception {
+		for (int m = 0; m < 3; m++) {
+			relay.send(message("ops@example.com", "Message " + m));
+		}
+
+		assertEquals(1, server.connections.get());
+		assertEquals(3, server.delivered.get());
+	}
+
+	@Test
+	public void reconnectsWhenTheConnectionWentStale() throws Exception {
+		relay.send(message("ops@example.com", "Before"));
+
+		// The relay drops the idle connection, but still answers the NOOP that checks it
+		server.dropOnNextMail.set(true);
+		relay.send(message("ops@example.com", "After"));
+
+		assertEquals(2, server.connections.get());
+		assertEquals(2, server.delivered.get());
+	}
+
+	@Test
+	public void reconnectsAfterClose() throws Exception {
+		relay.send(message("ops@example.com", "Before"));
+		relay.close();
+		relay.send(message("ops@example.com", "After"));
+
+		assertEquals(2, server.connections.get());
+		assertEquals(2, server.delivered.get());
+	}
+
+	@Test
+	public void doesNotResendRefusedRecipients() throws Exception {
+		try {
+			relay.send(message("refused@example.com", "Refused"));
+			fail("The refused recipient was not reported");
+		} catch (SendFailedException e) {
+			// Expected
+		}
+
+		assertEquals(1, server.connections.get());
+		assertEquals(0, server.delivered.get());
+	}
+
+	private Message message(String to, String subject) throws MessagingException {
+		MimeMessage msg = new MimeMessage(relay.getSession());
+		msg.setFrom(new InternetAddress("monitor@example.com"));
+		msg.addRecipient(Message.RecipientType.TO, new InternetAddress(to));
+		msg.setSubject(subject);
+		msg.setText("Body of " + subject);
+		return msg;
+	}
+
+	/**
+	 * Speaks just enough SMTP for JavaMail to deliver plain messages, one connection at a time.
+	 * Recipients starting with "refused" are refused.
+	 */
+	private static class FakeSMTPServer implements Runnable {
+		final AtomicInteger connections = new AtomicInteger();
+		final AtomicInteger delivered = new AtomicInteger();
+		final AtomicBoolean dropOnNextMail = new AtomicBoolean();
+		private final ServerSocket listener;
+		private final Thread acceptor;
+
+		FakeSMTPServer() throws IOException {
+			listener = new ServerSocket(0, 5, InetAddress.getByName("127.0.0.1"));
+			acceptor = new Thread(this, "FakeSMTPServer");
+			acceptor.setDaemon(true);
+			acceptor.start();
+		}
+
+		int getPort() {
+			return listener.getLocalPort();
+		}
+
+		void close() throws IOException {
+			listener.close();
+		}
+
+		public void run() {
+			while (! listener.isClosed()) {
+				try {
+					Socket s = listener.accept();
+					connections.incrementAndGet();
+					try {
+						converse(s);
+					} finally {
+						s.close();
+					}
+				} catch (IOException e) {
+					// Closed by the test, or the client went away
+				}
+			}
+		}
+
+		private void converse(Socket s) throws IOException {
+			BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), "US-ASCII"));
+			OutputStream out = s.getOutputStream();
+			reply(out, "220 fake ESMTP");
+
+			String line;
+			while ((line = in.readLine()) != null) {
+				String command = line.toUpperCase();
+				if (command.startsWith("EHLO")) {
+					reply(out, "250-fake");
+					reply(out, "250 8BITMIME");
+				} else if (command.startsWith("HELO") || command.startsWith("NOOP") || command.startsWith("RSET")) {
+					reply(out, "250 OK");
+				} else if (command.startsWith("MAIL")) {
+					if (dropOnNextMail.compareAndSet(true, false)) {
+						// Gone without a word, as an idle connection cut by a firewall is
+						return;
+					}
+					reply(out, "250 OK");
+				} else if (command.startsWith("RCPT")) {
+					reply(out, command.contains("<REFUSED") ? "550 No such user" : "250 OK");
+				} else if (command.startsWith("DATA")) {
+					reply(out, "354 End with .");
+					while ((line = in.readLine()) != null && ! line.equals(".")) {
+						// The message itself is not checked
+					}
+					delivered.incrementAndGet();
+					reply(out, "250 Queued");
+				} else if (command.startsWith("QUIT")) {
+					reply(out, "221 Bye");
+					return;
+				} else {
+					reply(out, "502 Not implemented");
+				}
+			}
+		}
+
+		private static void reply(OutputStream out, String line) throws IOException {
+			out.write((line + "\r\n").getBytes("US-ASCII"));
+			out.flush();
+		}
+	}
+}